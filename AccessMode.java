@@ -0,0 +1,33 @@
+package simpledb;
+
+/**
+ * How a {@link DbFile} moves its pages between disk and memory.
+ * <p>
+ * The mode only changes how page bytes get between the file and memory. Pages are
+ * still cached, locked and dirtied in the {@link BufferPool}, and dirty pages
+ * still reach the file only when the BufferPool flushes them through
+ * {@link DbFile#writePage(Page)}, so the NO STEAL and write-ahead logging rules
+ * are the same in every mode.
+ *
+ * @see FileHandleManager
+ */
+public enum AccessMode {
+	/** positional reads through the file's FileChannel */
+	STANDARD,
+	/**
+	 * pages are copied out of a read-only memory mapping of the file, without a
+	 * system call per page; the operating system decides which parts of the
+	 * file stay in memory. Meant for read-mostly tables that fit in RAM.
+	 * Writes still go through the FileChannel, and the mapping sees them.
+	 */
+	MAPPED,
+	/**
+	 * pages are read and written with direct I/O (O_DIRECT), bypassing the
+	 * operating system's page cache, so that the BufferPool is the only copy
+	 * of them in memory and can be given most of it. Every read is a system
+	 * call that goes to the device. Writes that do not cover whole file-system
+	 * blocks, and all I/O on file systems without direct I/O, go through the
+	 * page cache as in STANDARD.
+	 */
+	DIRECT
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 import simpledb.Predicate.Op;
@@ -24,6 +25,7 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private volatile AccessMode accessMode;
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +36,27 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, AccessMode.STANDARD);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file, reading its pages the way
+	 * mode says.
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, AccessMode mode) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.accessMode = mode;
+	}
+
+	public AccessMode getAccessMode() {
+		return accessMode;
+	}
+
+	public void setAccessMode(AccessMode mode) {
+		this.accessMode = mode;
 	}
 
 	/**
@@ -78,13 +97,11 @@ public class BTreeFile implements DbFile {
 	 */
 	public Page readPage(PageId pid) {
 		BTreePageId id = (BTreePageId) pid;
-		BufferedInputStream bis = null;
 
 		try {
-			bis = new BufferedInputStream(new FileInputStream(f));
 			if(id.pgcateg() == BTreePageId.ROOT_PTR) {
 				byte pageBuf[] = new byte[BTreeRootPtrPage.getPageSize()];
-				int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
+				int retval = Database.getFileHandles().read(f, ByteBuffer.wrap(pageBuf), 0, accessMode);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -98,12 +115,8 @@ public class BTreeFile implements DbFile {
 			}
 			else {
 				byte pageBuf[] = new byte[BufferPool.getPageSize()];
-				if (bis.skip(BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) !=
-						BTreeRootPtrPage.getPageSize() + (id.getPageNumber()-1) * BufferPool.getPageSize()) {
-					throw new IllegalArgumentException(
-							"Unable to seek to correct place in BTreeFile");
-				}
-				int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
+				int retval = Database.getFileHandles().read(f, ByteBuffer.wrap(pageBuf), pageOffset(id.getPageNumber()),
+						accessMode);
 				if (retval == -1) {
 					throw new IllegalArgumentException("Read past end of table");
 				}
@@ -112,30 +125,82 @@ public class BTreeFile implements DbFile {
 							+ BufferPool.getPageSize() + " bytes from BTreeFile");
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
-				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
-					return p;
+				return makePage(id, pageBuf);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// an internal, leaf or header page of the given bytes
+	private Page makePage(BTreePageId id, byte[] pageBuf) throws IOException {
+		if(id.pgcateg() == BTreePageId.INTERNAL) {
+			return new BTreeInternalPage(id, pageBuf, keyField);
+		}
+		else if(id.pgcateg() == BTreePageId.LEAF) {
+			return new BTreeLeafPage(id, pageBuf, keyField);
+		}
+		else { // id.pgcateg() == BTreePageId.HEADER
+			return new BTreeHeaderPage(id, pageBuf);
+		}
+	}
+
+	/**
+	 * Reads the pages sorted by page number, with one scatter read per run of
+	 * up to {@link HeapFile#MAX_RUN} pages adjacent in the file, whatever
+	 * their kind; the root pointer page is read on its own.
+	 */
+	@Override
+	public List<Page> readPages(List<PageId> pids) {
+		int n = pids.size();
+		Page[] pages = new Page[n];
+		ArrayList<Integer> order = new ArrayList<Integer>(n);
+		for (int i = 0; i < n; i++) {
+			BTreePageId id = (BTreePageId) pids.get(i);
+			if (id.pgcateg() == BTreePageId.ROOT_PTR)
+				pages[i] = readPage(id);
+			else
+				order.add(i);
+		}
+		order.sort((a, b) -> Integer.compare(pids.get(a).getPageNumber(), pids.get(b).getPageNumber()));
+
+		try {
+			for (int i = 0; i < order.size();) {
+				int first = pids.get(order.get(i)).getPageNumber();
+				int j = i + 1;
+				while (j < order.size() && j - i < HeapFile.MAX_RUN
+						&& pids.get(order.get(j)).getPageNumber() == first + (j - i))
+					j++;
+				byte[][] run = new byte[j - i][];
+				ByteBuffer[] bufs = new ByteBuffer[run.length];
+				for (int k = 0; k < run.length; k++) {
+					run[k] = new byte[BufferPool.getPageSize()];
+					bufs[k] = ByteBuffer.wrap(run[k]);
 				}
-				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
-					return p;
+				long retval = Database.getFileHandles().read(f, bufs, pageOffset(first), accessMode);
+				if (retval < (long) run.length * BufferPool.getPageSize()) {
+					throw new IllegalArgumentException("Unable to read pages " + first + " to "
+							+ (first + run.length - 1) + " from BTreeFile");
 				}
-				else { // id.pgcateg() == BTreePageId.HEADER
-					BTreeHeaderPage p = new BTreeHeaderPage(id, pageBuf);
-					return p;
+				Debug.log(1, "BTreeFile.readPages: read pages %d to %d", first, first + run.length - 1);
+				for (int k = 0; k < run.length; k++) {
+					int at = order.get(i + k);
+					pages[at] = makePage((BTreePageId) pids.get(at), run[k]);
 				}
+				i = j;
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
-		} finally {
-			// Close the file on success or error
-			try {
-				if (bis != null)
-					bis.close();
-			} catch (IOException ioe) {
-				// Ignore failures closing the file
-			}
 		}
+		return Arrays.asList(pages);
+	}
+
+	/**
+	 * @return the offset in the file of the page with the given number; the root pointer page
+	 * comes first, and page numbers of the other pages start at 1
+	 */
+	private static long pageOffset(int pgNo) {
+		return BTreeRootPtrPage.getPageSize() + (long) (pgNo-1) * BufferPool.getPageSize();
 	}
 
 	/**
@@ -148,15 +213,11 @@ public class BTreeFile implements DbFile {
 		BTreePageId id = (BTreePageId) page.getId();
 		
 		byte[] data = page.getPageData();
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
 		if(id.pgcateg() == BTreePageId.ROOT_PTR) {
-			rf.write(data);
-			rf.close();
+			Database.getFileHandles().write(f, ByteBuffer.wrap(data), 0);
 		}
 		else {
-			rf.seek(BTreeRootPtrPage.getPageSize() + (page.getId().getPageNumber()-1) * BufferPool.getPageSize());
-			rf.write(data);
-			rf.close();
+			Database.getFileHandles().write(f, ByteBuffer.wrap(data), pageOffset(id.getPageNumber()), accessMode);
 		}
 	}
 	
@@ -165,7 +226,12 @@ public class BTreeFile implements DbFile {
 	 */
 	public int numPages() {
 		// we only ever write full pages
-		return (int) ((f.length() - BTreeRootPtrPage.getPageSize())/ BufferPool.getPageSize());
+		try {
+			return (int) ((Database.getFileHandles().length(f) - BTreeRootPtrPage.getPageSize())
+					/ BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	/**
@@ -195,7 +261,362 @@ public class BTreeFile implements DbFile {
 			Field f) 
 					throws DbException, TransactionAbortedException {
 		// some code goes here
-        return null;
+		if(pid.pgcateg() == BTreePageId.LEAF) {
+			return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+		}
+		BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
+		return findLeafPage(tid, dirtypages, childFor(page, f), perm, f);
+	}
+
+	/**
+	 * Descend from the root to the left-most leaf page possibly containing the key field f using
+	 * latch crabbing: the latch on a child is taken before the latch on its parent is released, and
+	 * no transactional locks are acquired on the root pointer or the internal pages. The leaf page
+	 * itself is not fetched or locked, so the caller can decide how to lock it.
+	 * 
+	 * Structure modifications change the root pointer and internal pages only under their 
+	 * exclusive latches, and in an order that keeps every key reachable, so the path found is 
+	 * always a valid one.
+	 * 
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @return the id of the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root yet
+	 */
+	BTreePageId findLeafPageId(Field f) throws DbException {
+		BufferPool pool = Database.getBufferPool();
+		LatchTable latches = pool.getLatchTable();
+		BTreePageId parentId = BTreeRootPtrPage.getId(tableid);
+		latches.latchShared(parentId);
+		try {
+			BTreePageId pid = ((BTreeRootPtrPage) pool.getPageWithoutLock(parentId)).getRootId();
+			while(pid != null && pid.pgcateg() != BTreePageId.LEAF) {
+				latches.latchShared(pid);
+				latches.unlatchShared(parentId);
+				parentId = pid;
+				pid = childFor((BTreeInternalPage) pool.getPageWithoutLock(pid), f);
+			}
+			return pid;
+		} finally {
+			latches.unlatchShared(parentId);
+		}
+	}
+
+	/**
+	 * Like {@link #findLeafPageId(Field)}, but a read-only transaction descends through the
+	 * committed images of the pages it gets from the BufferPool instead. No writer ever changes
+	 * those, so the descent takes neither latches nor locks, and it never follows a pointer
+	 * installed by an uncommitted split. The images are of one state of the tree only if no
+	 * commit changed this file during the descent, which the caller has to check, see
+	 * {@link #readFirstLeafPage}.
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 */
+	BTreePageId findLeafPageId(TransactionId tid, Field f) throws DbException, TransactionAbortedException {
+		if(!tid.isReadOnly()) {
+			return findLeafPageId(f);
+		}
+		try {
+			// a file no writer has touched yet has no root pointer page on disk either
+			createRootPtrPage();
+		} catch (IOException e) {
+			throw new DbException("failed to create root pointer page: " + e.getMessage());
+		}
+		BufferPool pool = Database.getBufferPool();
+		BTreePageId pid = ((BTreeRootPtrPage) pool.getPage(tid, BTreeRootPtrPage.getId(tableid),
+				Permissions.READ_ONLY)).getRootId();
+		while(pid != null && pid.pgcateg() != BTreePageId.LEAF) {
+			pid = childFor((BTreeInternalPage) pool.getPage(tid, pid, Permissions.READ_ONLY), f);
+		}
+		return pid;
+	}
+
+	/**
+	 * Read the id of the root page under the root pointer page's shared latch, without
+	 * locking the root pointer page
+	 */
+	private BTreePageId readRootId() throws DbException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		LatchTable latches = Database.getBufferPool().getLatchTable();
+		latches.latchShared(rootPtrId);
+		try {
+			return ((BTreeRootPtrPage) Database.getBufferPool().getPageWithoutLock(rootPtrId)).getRootId();
+		} finally {
+			latches.unlatchShared(rootPtrId);
+		}
+	}
+
+	/**
+	 * Read the id of the first header page under the root pointer page's shared latch, without
+	 * locking the root pointer page
+	 */
+	private BTreePageId readHeaderId() throws DbException {
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		LatchTable latches = Database.getBufferPool().getLatchTable();
+		latches.latchShared(rootPtrId);
+		try {
+			return ((BTreeRootPtrPage) Database.getBufferPool().getPageWithoutLock(rootPtrId)).getHeaderId();
+		} finally {
+			latches.unlatchShared(rootPtrId);
+		}
+	}
+
+	/**
+	 * Point the (locked) root pointer page at a new root, under its exclusive latch
+	 */
+	private void setRootId(BTreeRootPtrPage rootPtr, BTreePageId rootId) throws DbException {
+		LatchTable latches = Database.getBufferPool().getLatchTable();
+		latches.latchExclusive(rootPtr.getId());
+		try {
+			rootPtr.setRootId(rootId);
+		} finally {
+			latches.unlatchExclusive(rootPtr.getId());
+		}
+	}
+
+	/**
+	 * @return the child of an internal page to follow when searching for the left-most
+	 * occurrence of the key field f (or the left-most child if f is null)
+	 */
+	private BTreePageId childFor(BTreeInternalPage page, Field f) throws DbException {
+		Iterator<BTreeEntry> it = page.iterator();
+		BTreeEntry e = null;
+		while(it.hasNext()) {
+			e = it.next();
+			if(f == null || f.compare(Op.LESS_THAN_OR_EQ, e.getKey())) {
+				return e.getLeftChild();
+			}
+		}
+		if(e == null) {
+			throw new DbException("internal page " + page.getId().getPageNumber() + " has no entries");
+		}
+		return e.getRightChild();
+	}
+
+	/**
+	 * Copy the tuples and right sibling pointer of a leaf page under a short-duration READ_ONLY
+	 * lock. The lock is dropped again unless tid already held one on the page: readers of the
+	 * index are protected by next-key locks, so they must not keep inserts out of the whole
+	 * page for the rest of the transaction.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the leaf page to read
+	 * @return a copy of the page contents
+	 * @see KeyRangeHolder
+	 */
+	BTreeLeafSnapshot readLeafPage(TransactionId tid, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		return readLeafPage(tid, pid, null);
+	}
+
+	/**
+	 * Copy a leaf page as {@link #readLeafPage(TransactionId, BTreePageId)} does, for a range
+	 * scan with predicate ipred. Before the page lock is dropped, the scan's next-key locks on
+	 * the page are taken: an S lock on every key of the page in the range, and on the first
+	 * key past the end of the range, which may be on a page further right or be the supremum.
+	 * Otherwise an insert could slip a key in between the copy and the locks.
+	 * 
+	 * @param tid - the transaction id
+	 * @param pid - the leaf page to read
+	 * @param ipred - the predicate of the scan, or null to take no key locks
+	 * @return a copy of the page contents
+	 */
+	BTreeLeafSnapshot readLeafPage(TransactionId tid, BTreePageId pid, IndexPredicate ipred)
+			throws DbException, TransactionAbortedException {
+		return readLeafPage(tid, pid, ipred, false, null);
+	}
+
+	/**
+	 * Find and copy the left-most leaf page possibly containing the key field f for a range
+	 * scan with predicate ipred, see {@link #readLeafPage(TransactionId, BTreePageId, IndexPredicate)}.
+	 * As in insertTuple, the leaf is looked up again once it is locked: the descent only
+	 * latches the internal pages, so it may have followed a pointer installed by a split
+	 * that has since been rolled back, leaving the leaf empty.
+	 * 
+	 * @param tid - the transaction id
+	 * @param f - the field to search for, or null for the left-most leaf page
+	 * @param ipred - the predicate of the scan
+	 * @return a copy of the leaf page, or null if the tree is empty
+	 */
+	BTreeLeafSnapshot readFirstLeafPage(TransactionId tid, Field f, IndexPredicate ipred)
+			throws DbException, TransactionAbortedException {
+		if(tid.isReadOnly()) {
+			// the committed images of a descent are a path through one state of the tree only if
+			// no commit changed this file meanwhile, see BufferPool.commitSeq
+			BufferPool pool = Database.getBufferPool();
+			while(true) {
+				long seq = stableCommitSeq();
+				BTreeLeafSnapshot snapshot;
+				try {
+					BTreePageId leaf = findLeafPageId(tid, f);
+					snapshot = leaf == null ? null
+							: new BTreeLeafSnapshot((BTreeLeafPage) pool.getPage(tid, leaf, Permissions.READ_ONLY), seq);
+				} catch (DbException e) {
+					// a stale pointer may lead to a page a commit has reused or emptied
+					if(pool.commitSeq(tableid) == seq) {
+						throw e;
+					}
+					continue;
+				}
+				if(pool.commitSeq(tableid) == seq) {
+					return snapshot;
+				}
+			}
+		}
+		BTreeLeafSnapshot snapshot = null;
+		while(snapshot == null) {
+			BTreePageId leaf = findLeafPageId(tid, f);
+			if(leaf == null) { // no root yet, so the tree is empty
+				return null;
+			}
+			snapshot = readLeafPage(tid, leaf, ipred, true, f);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Copy the leaf page to the right of current for a scan of a read-only transaction. The copy
+	 * is only made if no commit changed this file since current was copied, so that both are of
+	 * the same state of the tree.
+	 * 
+	 * @param tid - the read-only transaction
+	 * @param current - a copy made by readFirstLeafPage or by this method, with a right sibling
+	 * @return a copy of the right sibling of current, or null if the tree may have changed
+	 * @see BTreeCommittedCursor
+	 */
+	BTreeLeafSnapshot readNextLeafPage(TransactionId tid, BTreeLeafSnapshot current)
+			throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		if(pool.commitSeq(tableid) != current.seq) {
+			return null;
+		}
+		BTreeLeafSnapshot next;
+		try {
+			next = new BTreeLeafSnapshot(
+					(BTreeLeafPage) pool.getPage(tid, current.rightSiblingId, Permissions.READ_ONLY), current.seq);
+		} catch (DbException e) {
+			if(pool.commitSeq(tableid) == current.seq) {
+				throw e;
+			}
+			return null;
+		}
+		return pool.commitSeq(tableid) == current.seq ? next : null;
+	}
+
+	// the commit sequence number of this file, once no commit is changing it
+	private long stableCommitSeq() {
+		BufferPool pool = Database.getBufferPool();
+		long seq;
+		while(((seq = pool.commitSeq(tableid)) & 1) != 0) {
+			Thread.yield();
+		}
+		return seq;
+	}
+
+	/**
+	 * @param check - whether to make sure, once pid is locked, that it is still the left-most
+	 * leaf page possibly containing the key field f
+	 * @return a copy of the page contents, or null if the check failed
+	 */
+	private BTreeLeafSnapshot readLeafPage(TransactionId tid, BTreePageId pid, IndexPredicate ipred,
+			boolean check, Field f) throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		boolean held = pool.holdsLock(tid, pid);
+		BTreeLeafPage page = (BTreeLeafPage) pool.getPage(tid, pid, Permissions.READ_ONLY);
+		if(check && !pid.equals(findLeafPageId(tid, f))) {
+			if(!held) {
+				pool.releasePage(tid, pid);
+			}
+			return null;
+		}
+		BTreeLeafSnapshot snapshot = new BTreeLeafSnapshot(page, -1);
+		try {
+			// a read-only transaction reads committed images and needs no phantom protection
+			if(ipred != null && !tid.isReadOnly()) {
+				lockRange(tid, snapshot, ipred);
+			}
+		}
+		finally {
+			if(!held) {
+				pool.releasePage(tid, pid);
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Take the next-key locks a range scan with predicate ipred needs on the keys of a leaf
+	 * page, while the caller holds a lock on the page.
+	 * 
+	 * @param tid - the transaction id
+	 * @param snapshot - the contents of the leaf page
+	 * @param ipred - the predicate of the scan
+	 * @see BTreeSearchIterator
+	 */
+	private void lockRange(TransactionId tid, BTreeLeafSnapshot snapshot, IndexPredicate ipred)
+			throws DbException, TransactionAbortedException {
+		for(Tuple t : snapshot.tuples) {
+			Field key = t.getField(keyField);
+			if(key.compare(ipred.getOp(), ipred.getField())) {
+				lockKey(tid, key);
+			}
+			else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ
+					|| (ipred.getOp() == Op.EQUALS && key.compare(Op.GREATER_THAN, ipred.getField()))) {
+				// the first key past the end of the range
+				lockKey(tid, key);
+				return;
+			}
+		}
+		// the range goes on past this page: lock the first key to the right of it, so that
+		// nothing can be inserted at the end of this page once its lock is dropped
+		BTreePageId nextp = snapshot.rightSiblingId;
+		while(nextp != null) {
+			BTreeLeafSnapshot next = readLeafPage(tid, nextp);
+			if(!next.tuples.isEmpty()) {
+				lockKey(tid, next.tuples.get(0).getField(keyField));
+				return;
+			}
+			nextp = next.rightSiblingId;
+		}
+		lockKey(tid, null);
+	}
+
+	// S lock key of this index for a range scan; a null key is the supremum
+	private void lockKey(TransactionId tid, Field key) throws TransactionAbortedException {
+		Database.getBufferPool().getKeyRangeHolder().lock(tid,
+				new KeyRangeHolder.RangeKey(tableid, key), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Find the key that follows the key field f in this index, i.e. the smallest key strictly
+	 * greater than f, starting at the (locked) leaf page f is about to be inserted into.
+	 * 
+	 * @param tid - the transaction id
+	 * @param page - the leaf page f belongs on
+	 * @param f - the key being inserted
+	 * @return the next key, or null if f would be the largest key in the index
+	 */
+	private Field nextKey(TransactionId tid, BTreeLeafPage page, Field f)
+			throws DbException, TransactionAbortedException {
+		Iterator<Tuple> it = page.iterator();
+		while(it.hasNext()) {
+			Field key = it.next().getField(keyField);
+			if(key.compare(Op.GREATER_THAN, f)) {
+				return key;
+			}
+		}
+		BTreePageId nextp = page.getRightSiblingId();
+		while(nextp != null) {
+			BTreeLeafSnapshot next = readLeafPage(tid, nextp);
+			for(Tuple t : next.tuples) {
+				Field key = t.getField(keyField);
+				if(key.compare(Op.GREATER_THAN, f)) {
+					return key;
+				}
+			}
+			nextp = next.rightSiblingId;
+		}
+		return null;
 	}
 	
 	/**
@@ -240,15 +661,47 @@ public class BTreeFile implements DbFile {
 	protected BTreeLeafPage splitLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreeLeafPage page, Field field) 
 			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the leaf page by adding a new page on the right of the existing
-		// page and moving half of the tuples to the new page.  Copy the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the sibling pointers of all the affected leaf pages.  Return the page into which a 
-		// tuple with the given key field should be inserted.
-        return null;
-		
+		BTreeLeafPage newPage = (BTreeLeafPage) getEmptyPage(tid, dirtypages, BTreePageId.LEAF);
+		BTreeLeafPage rightSibling = null;
+		if(page.getRightSiblingId() != null) {
+			rightSibling = (BTreeLeafPage) getPage(tid, dirtypages, page.getRightSiblingId(), Permissions.READ_WRITE);
+		}
+
+		// move the upper half of the tuples to the new page. Leaf contents are protected by
+		// the transactional locks we hold on both pages, so no latches are needed here
+		int numToMove = page.getNumTuples() / 2;
+		ArrayList<Tuple> toMove = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.reverseIterator();
+		while(toMove.size() < numToMove && it.hasNext()) {
+			toMove.add(it.next());
+		}
+		for(Tuple t : toMove) {
+			page.deleteTuple(t);
+			newPage.insertTuple(t);
+		}
+		Field midKey = toMove.get(toMove.size() - 1).getField(keyField);
+
+		// link the new page in on the right of the old one
+		newPage.setLeftSiblingId(page.getId());
+		newPage.setRightSiblingId(page.getRightSiblingId());
+		page.setRightSiblingId(newPage.getId());
+		if(rightSibling != null) {
+			rightSibling.setLeftSiblingId(newPage.getId());
+		}
+
+		// copy the middle key up into the parent
+		// getParentWithEmptySlots() picks a half by key if it has to split the parent, which is
+		// ambiguous with duplicate keys; the page's own parent pointer is kept up to date by the split
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), midKey);
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+		insertParentEntry(tid, dirtypages, parent, new BTreeEntry(midKey, page.getId(), newPage.getId()));
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+
+		if(field.compare(Op.GREATER_THAN, midKey)) {
+			return newPage;
+		}
+		return page;
 	}
 	
 	/**
@@ -277,15 +730,79 @@ public class BTreeFile implements DbFile {
 			BTreeInternalPage page, Field field) 
 					throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
-        //
-        // Split the internal page by adding a new page on the right of the existing
-		// page and moving half of the entries to the new page.  Push the middle key up
-		// into the parent page, and recursively split the parent as needed to accommodate
-		// the new entry.  getParentWithEmtpySlots() will be useful here.  Don't forget to update
-		// the parent pointers of all the children moving to the new page.  updateParentPointers()
-		// will be useful here.  Return the page into which an entry with the given key field
-		// should be inserted.
-		return null;
+		BTreeInternalPage newPage = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
+
+		// the upper half of the entries moves to the new page, and the entry just below
+		// them is pushed up into the parent
+		int numToMove = page.getNumEntries() / 2;
+		ArrayList<BTreeEntry> toMove = new ArrayList<BTreeEntry>();
+		Iterator<BTreeEntry> it = page.reverseIterator();
+		while(toMove.size() < numToMove) {
+			toMove.add(it.next());
+		}
+		BTreeEntry mid = it.next();
+
+		// latched descents may be reading this page concurrently, so the entries are copied to
+		// the new page (not reachable yet) first, the parent is pointed at the new page next, and
+		// only then are the entries removed from this page. A key is reachable at every step
+		for(int i = toMove.size() - 1; i >= 0; i--) {
+			BTreeEntry e = toMove.get(i);
+			newPage.insertEntry(new BTreeEntry(e.getKey(), e.getLeftChild(), e.getRightChild()));
+		}
+		getParentWithEmptySlots(tid, dirtypages, page.getParentId(), mid.getKey());
+		BTreeInternalPage parent = (BTreeInternalPage) getPage(tid, dirtypages, page.getParentId(), Permissions.READ_WRITE);
+		insertParentEntry(tid, dirtypages, parent, new BTreeEntry(mid.getKey(), page.getId(), newPage.getId()));
+		LatchTable latches = Database.getBufferPool().getLatchTable();
+		latches.latchExclusive(page.getId());
+		try {
+			for(BTreeEntry e : toMove) {
+				page.deleteKeyAndRightChild(e);
+			}
+			page.deleteKeyAndRightChild(mid);
+		} finally {
+			latches.unlatchExclusive(page.getId());
+		}
+
+		// parent pointers are not followed by descents, so they can be fixed up last
+		page.setParentId(parent.getId());
+		newPage.setParentId(parent.getId());
+		updateParentPointers(tid, dirtypages, newPage);
+
+		if(field.compare(Op.GREATER_THAN, mid.getKey())) {
+			return newPage;
+		}
+		return page;
+	}
+
+	/**
+	 * Insert an entry into a parent page under the page's exclusive latch. If the parent is a new
+	 * root created by getParentWithEmptySlots, the root pointer is swung over to it only now that
+	 * it has an entry, so latched descents never find an empty root.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param parent - the parent page, locked with read-write permission
+	 * @param e - the entry to insert
+	 * @see #getParentWithEmptySlots(TransactionId, HashMap, BTreePageId, Field)
+	 * 
+	 * @throws DbException
+	 * @throws TransactionAbortedException
+	 */
+	private void insertParentEntry(TransactionId tid, HashMap<PageId, Page> dirtypages, 
+			BTreeInternalPage parent, BTreeEntry e) throws DbException, TransactionAbortedException {
+		LatchTable latches = Database.getBufferPool().getLatchTable();
+		latches.latchExclusive(parent.getId());
+		try {
+			parent.insertEntry(e);
+		} finally {
+			latches.unlatchExclusive(parent.getId());
+		}
+
+		BTreePageId parentId = parent.getParentId();
+		if(parentId.pgcateg() == BTreePageId.ROOT_PTR && !parent.getId().equals(readRootId())) {
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, parentId, Permissions.READ_WRITE);
+			setRootId(rootPtr, parent.getId());
+		}
 	}
 	
 	/**
@@ -315,11 +832,11 @@ public class BTreeFile implements DbFile {
 		if(parentId.pgcateg() == BTreePageId.ROOT_PTR) {
 			parent = (BTreeInternalPage) getEmptyPage(tid, dirtypages, BTreePageId.INTERNAL);
 
-			// update the root pointer
+			// lock the root pointer; it is pointed at the new root by insertParentEntry()
+			// once the new root has an entry
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
 					BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			BTreePageId prevRootId = rootPtr.getRootId(); //save prev id before overwriting.
-			rootPtr.setRootId(parent.getId());
+			BTreePageId prevRootId = rootPtr.getRootId();
 
 			// update the previous root to now point to this new root.
 			BTreePage prevRootPage = (BTreePage)getPage(tid, dirtypages, prevRootId, Permissions.READ_WRITE);
@@ -394,7 +911,9 @@ public class BTreeFile implements DbFile {
 	 * Method to encapsulate the process of locking/fetching a page.  First the method checks the local 
 	 * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.  
 	 * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since 
-	 * presumably they will soon be dirtied by this transaction.
+	 * presumably they will soon be dirtied by this transaction. Such pages are marked dirty right away,
+	 * so that an abort in the middle of a split (e.g. chosen as a deadlock victim) rolls back the 
+	 * changes made so far.
 	 * 
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
@@ -417,6 +936,7 @@ public class BTreeFile implements DbFile {
 		else {
 			Page p = Database.getBufferPool().getPage(tid, pid, perm);
 			if(perm == Permissions.READ_WRITE) {
+				p.markDirty(true, tid);
 				dirtypages.put(pid, p);
 			}
 			return p;
@@ -436,24 +956,48 @@ public class BTreeFile implements DbFile {
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Field key = t.getField(keyField);
+		createRootPtrPage();
+
+		// find the leaf with latches only: the root pointer and internal pages are not locked,
+		// so inserts into different leaves do not conflict
+		BTreePageId leafId = findLeafPageId(key);
+		if(leafId == null) { // the root has just been created, so set the root pointer to point to it
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			if(rootPtr.getRootId() == null) {
+				setRootId(rootPtr, new BTreePageId(tableid, numPages(), BTreePageId.LEAF));
+			}
+			leafId = findLeafPageId(key);
+		}
 
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
-
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+		// lock the leaf, then descend again in case another transaction split it while we were
+		// waiting for the lock. Once we hold the lock nobody else can split it, and splits of
+		// internal pages never change which leaf a key belongs on
+		BTreeLeafPage leafPage = null;
+		while(leafPage == null) {
+			BTreeLeafPage locked = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
+			BTreePageId current = findLeafPageId(key);
+			if(current.equals(leafId)) {
+				leafPage = locked;
+			}
+			else {
+				dirtypages.remove(leafId);
+				leafId = current;
+			}
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available. Only this path locks
+		// internal pages
 		if(leafPage.getNumEmptySlots() == 0) {
-			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
+			leafPage = splitLeafPage(tid, dirtypages, leafPage, key);
 		}
 
+		// next-key locking: wait until the gap the new key falls into is not covered by
+		// another transaction's range scan, then hold an X lock on the new key
+		KeyRangeHolder ranges = Database.getBufferPool().getKeyRangeHolder();
+		ranges.checkInsert(tid, new KeyRangeHolder.RangeKey(tableid, nextKey(tid, leafPage, key)));
+		ranges.lock(tid, new KeyRangeHolder.RangeKey(tableid, key), Permissions.READ_WRITE);
+
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
 
@@ -779,7 +1323,13 @@ public class BTreeFile implements DbFile {
 		// delete the entry in the parent.  If
 		// the parent is below minimum occupancy, get some tuples from its siblings
 		// or merge with one of the siblings
-		parent.deleteKeyAndRightChild(parentEntry);
+		LatchTable latches = Database.getBufferPool().getLatchTable();
+		latches.latchExclusive(parent.getId());
+		try {
+			parent.deleteKeyAndRightChild(parentEntry);
+		} finally {
+			latches.unlatchExclusive(parent.getId());
+		}
 		int maxEmptySlots = parent.getMaxEntries() - parent.getMaxEntries()/2; // ceiling
 		if(parent.getNumEmptySlots() == parent.getMaxEntries()) {
 			// This was the last entry in the parent.
@@ -791,7 +1341,7 @@ public class BTreeFile implements DbFile {
 			}
 			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, rootPtrId, Permissions.READ_WRITE);
 			leftPage.setParentId(rootPtrId);
-			rootPtr.setRootId(leftPage.getId());
+			setRootId(rootPtr, leftPage.getId());
 
 			// release the parent page for reuse
 			setEmptyPage(tid, dirtypages, parent.getId().getPageNumber());
@@ -816,6 +1366,10 @@ public class BTreeFile implements DbFile {
 			throws DbException, IOException, TransactionAbortedException {
 		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
 
+		// a deleted key must not disappear from under another transaction's range scan
+		Database.getBufferPool().getKeyRangeHolder().lock(tid,
+				new KeyRangeHolder.RangeKey(tableid, t.getField(keyField)), Permissions.READ_WRITE);
+
 		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
 				BTreePageId.LEAF);
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
@@ -828,10 +1382,12 @@ public class BTreeFile implements DbFile {
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		//return dirtyPagesArr;
-		return null;
+		// only one page can be returned through the DbFile interface, so mark
+		// the rest of the pages touched by a merge dirty here
+		for(Page p : dirtypages.values()) {
+			p.markDirty(true, tid);
+		}
+		return page;
 	}
 
 	/**
@@ -846,21 +1402,28 @@ public class BTreeFile implements DbFile {
 	 * @throws TransactionAbortedException
 	 */
 	BTreeRootPtrPage getRootPtrPage(TransactionId tid, HashMap<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+		createRootPtrPage();
+
+		// get a read lock on the root pointer page
+		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+	}
+
+	/**
+	 * Create the root pointer page and root page if the file is still empty
+	 * 
+	 * @throws IOException
+	 */
+	private void createRootPtrPage() throws IOException {
 		synchronized(this) {
-			if(f.length() == 0) {
+			if(Database.getFileHandles().length(f) == 0) {
 				// create the root pointer page and the root page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
 				byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-				bw.write(emptyRootPtrData);
-				bw.write(emptyLeafData);
-				bw.close();
+				ByteBuffer buf = ByteBuffer.allocate(emptyRootPtrData.length + emptyLeafData.length);
+				buf.put(emptyRootPtrData).put(emptyLeafData).flip();
+				Database.getFileHandles().append(f, buf);
 			}
 		}
-
-		// get a read lock on the root pointer page
-		return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
 	}
 
 	/**
@@ -877,9 +1440,10 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
-		// get a read lock on the root pointer page and use it to locate the first header page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId headerId = rootPtr.getHeaderId();
+		// use the root pointer page to locate the first header page. It is only latched: a
+		// read lock held until commit would keep concurrent splits from growing a new root
+		createRootPtrPage();
+		BTreePageId headerId = readHeaderId();
 		int emptyPageNo = 0;
 
 		if(headerId != null) {
@@ -911,11 +1475,8 @@ public class BTreeFile implements DbFile {
 		if(headerId == null) {		
 			synchronized(this) {
 				// create the new page
-				BufferedOutputStream bw = new BufferedOutputStream(
-						new FileOutputStream(f, true));
 				byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-				bw.write(emptyData);
-				bw.close();
+				Database.getFileHandles().append(f, ByteBuffer.wrap(emptyData));
 				emptyPageNo = numPages();
 			}
 		}
@@ -946,10 +1507,7 @@ public class BTreeFile implements DbFile {
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 		
 		// write empty page to disk
-		RandomAccessFile rf = new RandomAccessFile(f, "rw");
-		rf.seek(BTreeRootPtrPage.getPageSize() + (emptyPageNo-1) * BufferPool.getPageSize());
-		rf.write(BTreePage.createEmptyPageData());
-		rf.close();
+		Database.getFileHandles().write(f, ByteBuffer.wrap(BTreePage.createEmptyPageData()), pageOffset(emptyPageNo));
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
@@ -1079,6 +1637,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	// walks the committed images instead for a read-only transaction
+	BTreeCommittedCursor cursor = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1097,10 +1657,17 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		if(tid.isReadOnly()) {
+			cursor = new BTreeCommittedCursor(f, tid, null);
+			return;
+		}
+		// the left-most leaf stays left-most across splits, so it can be locked after a
+		// latched descent
+		BTreePageId leaf = f.findLeafPageId(tid, null);
+		if(leaf == null) { // no root yet, so the tree is empty
+			return;
+		}
+		curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid, leaf, Permissions.READ_ONLY);
 		it = curp.iterator();
 	}
 
@@ -1112,6 +1679,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 */
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException {
+		if (cursor != null)
+			return cursor.next();
 		if (it != null && !it.hasNext())
 			it = null;
 
@@ -1149,17 +1718,132 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		cursor = null;
+	}
+}
+
+/**
+ * A copy of the tuples on a BTreeLeafPage, together with its right sibling pointer
+ * @see BTreeFile#readLeafPage(TransactionId, BTreePageId)
+ */
+class BTreeLeafSnapshot {
+	final ArrayList<Tuple> tuples;
+	final BTreePageId rightSiblingId;
+	// for a committed image, the commit sequence number of the file it was copied at; else -1
+	final long seq;
+
+	BTreeLeafSnapshot(BTreeLeafPage page, long seq) {
+		this.tuples = new ArrayList<Tuple>();
+		Iterator<Tuple> it = page.iterator();
+		while(it.hasNext()) {
+			tuples.add(it.next());
+		}
+		this.rightSiblingId = page.getRightSiblingId();
+		this.seq = seq;
+	}
+}
+
+/**
+ * Walks the tuples of a B+ tree in key order for a read-only transaction, through the committed
+ * images of the leaf pages. Two leaves are only read one after the other if no commit changed the
+ * file in between, see {@link BTreeFile#readNextLeafPage}. Otherwise the walk descends again to
+ * the last key it returned, and skips the tuples up to it and the tuples with that key it
+ * returned already, so a split or merge that commits during the walk makes it neither miss nor
+ * repeat a tuple that exists before and after.
+ */
+class BTreeCommittedCursor {
+	private final BTreeFile f;
+	private final TransactionId tid;
+	private final Field start;
+	private BTreeLeafSnapshot current;
+	private Iterator<Tuple> it;
+	// the last key returned, and how many tuples with that key were returned
+	private Field lastKey;
+	private int dups;
+	// after a new descent: skip tuples up to skipKey and skipDups tuples with that key
+	private Field skipKey;
+	private int skipDups;
+
+	/**
+	 * @param f - the BTreeFile to walk
+	 * @param tid - the read-only transaction
+	 * @param start - the key to start at, or null for the first key
+	 */
+	BTreeCommittedCursor(BTreeFile f, TransactionId tid, Field start) throws DbException,
+			TransactionAbortedException {
+		this.f = f;
+		this.tid = tid;
+		this.start = start;
+		current = f.readFirstLeafPage(tid, start, null);
+		it = current == null ? null : current.tuples.iterator();
+	}
+
+	/**
+	 * @return the next tuple in key order, or null past the last one
+	 */
+	Tuple next() throws DbException, TransactionAbortedException {
+		while(it != null) {
+			while(it.hasNext()) {
+				Tuple t = it.next();
+				Field key = t.getField(f.keyField());
+				if(skipKey != null) {
+					if(key.compare(Op.LESS_THAN, skipKey)) {
+						continue;
+					}
+					if(key.compare(Op.EQUALS, skipKey) && skipDups > 0) {
+						skipDups--;
+						continue;
+					}
+					skipKey = null;
+				}
+				if(lastKey != null && key.compare(Op.EQUALS, lastKey)) {
+					dups++;
+				}
+				else {
+					lastKey = key;
+					dups = 1;
+				}
+				return t;
+			}
+			if(current.rightSiblingId == null) {
+				it = null;
+				return null;
+			}
+			BTreeLeafSnapshot next = f.readNextLeafPage(tid, current);
+			if(next == null) {
+				// a commit changed the tree since current was copied
+				next = f.readFirstLeafPage(tid, lastKey == null ? start : lastKey, null);
+				skipKey = lastKey;
+				skipDups = dups;
+				if(next == null) {
+					it = null;
+					return null;
+				}
+			}
+			current = next;
+			it = current.tuples.iterator();
+		}
+		return null;
 	}
 }
 
 /**
  * Helper class that implements the DbFileIterator for search tuples on a
- * B+ Tree File
+ * B+ Tree File.
+ * <p>
+ * Rather than holding READ_ONLY locks on every leaf page it visits until the
+ * transaction ends, the iterator takes next-key locks: an S lock on the key of
+ * every tuple it returns and on the first key past the end of the range (or on
+ * the supremum). Leaf pages are only locked while they are being copied and
+ * their keys locked.
+ * @see KeyRangeHolder
  */
 class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
-	BTreeLeafPage curp = null;
+	BTreePageId nextp = null;
+	// walks the committed images instead for a read-only transaction
+	BTreeCommittedCursor cursor = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1182,17 +1866,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
+		Field start = null;
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			start = ipred.getField();
 		}
-		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+		if(tid.isReadOnly()) {
+			cursor = new BTreeCommittedCursor(f, tid, start);
+			return;
 		}
-		it = curp.iterator();
+		BTreeLeafSnapshot snapshot = f.readFirstLeafPage(tid, start, ipred);
+		if(snapshot == null) { // no root yet, so the tree is empty
+			it = new ArrayList<Tuple>().iterator();
+			nextp = null;
+			return;
+		}
+		it = snapshot.tuples.iterator();
+		nextp = snapshot.rightSiblingId;
 	}
 
 	/**
@@ -1204,38 +1894,48 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	@Override
 	protected Tuple readNext() throws TransactionAbortedException, DbException,
 	NoSuchElementException {
-		while (it != null) {
-
-			while (it.hasNext()) {
-				Tuple t = it.next();
-				if (t.getField(f.keyField()).compare(ipred.getOp(), ipred.getField())) {
-					return t;
-				}
-				else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
-					// if the predicate was not satisfied and the operation is less than, we have
-					// hit the end
-					return null;
-				}
-				else if(ipred.getOp() == Op.EQUALS && 
-						t.getField(f.keyField()).compare(Op.GREATER_THAN, ipred.getField())) {
-					// if the tuple is now greater than the field passed in and the operation
-					// is equals, we have reached the end
-					return null;
-				}
+		Tuple t;
+		while ((t = nextTuple()) != null) {
+			Field key = t.getField(f.keyField());
+			if (key.compare(ipred.getOp(), ipred.getField())) {
+				return t;
+			}
+			else if(ipred.getOp() == Op.LESS_THAN || ipred.getOp() == Op.LESS_THAN_OR_EQ) {
+				// if the predicate was not satisfied and the operation is less than, we have
+				// hit the end
+				break;
 			}
+			else if(ipred.getOp() == Op.EQUALS && 
+					key.compare(Op.GREATER_THAN, ipred.getField())) {
+				// if the tuple is now greater than the field passed in and the operation
+				// is equals, we have reached the end
+				break;
+			}
+		}
+		it = null;
+		cursor = null;
+		return null;
+	}
 
-			BTreePageId nextp = curp.getRightSiblingId();
+	// the next tuple in key order, from the cursor or from the copies of the locked leaves
+	private Tuple nextTuple() throws TransactionAbortedException, DbException {
+		if (cursor != null) {
+			return cursor.next();
+		}
+		while (it != null) {
+			if (it.hasNext()) {
+				return it.next();
+			}
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
-				return null;
+				it = null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
-				it = curp.iterator();
+				BTreeLeafSnapshot snapshot = f.readLeafPage(tid, nextp, ipred);
+				it = snapshot.tuples.iterator();
+				nextp = snapshot.rightSiblingId;
 			}
 		}
-
 		return null;
 	}
 
@@ -1253,5 +1953,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		nextp = null;
+		cursor = null;
 	}
 }
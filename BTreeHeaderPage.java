@@ -17,14 +17,15 @@ public class BTreeHeaderPage implements Page {
 	final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
 	final BTreePageId pid;
-	final byte header[];
+	// which pages are used, in SlotBitmap words
+	final long header[];
 	final int numSlots;
 
 	private int nextPage; // next header page or 0
 	private int prevPage; // previous header page or 0
 
 	byte[] oldData;
-	private final Byte oldDataLock=new Byte((byte)0);
+	private final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeHeaderPage from a set of bytes of data read from disk.
@@ -55,21 +56,18 @@ public class BTreeHeaderPage implements Page {
 		}
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		byte[] headerBytes = new byte[getHeaderSize()];
+		dis.readFully(headerBytes);
+		header = SlotBitmap.read(headerBytes, 0, numSlots);
 
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/**
 	 * Initially mark all slots in the header used.
 	 */
 	public void init() {
-		for (int i=0; i<header.length; i++)
-			header[i] = (byte) 0xFF;
+		SlotBitmap.setAll(header, numSlots);
 	}
 
 	/**
@@ -95,7 +93,8 @@ public class BTreeHeaderPage implements Page {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				// no copy is kept while the page is unchanged since the last commit
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeHeaderPage(pid,oldDataRef);
 		} catch (IOException e) {
@@ -109,7 +108,8 @@ public class BTreeHeaderPage implements Page {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			// the current content is the before image from now on
+			oldData = null;
 		}
 	}
 
@@ -151,9 +151,9 @@ public class BTreeHeaderPage implements Page {
 		}
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
+		for (int i=0; i<getHeaderSize(); i++) {
 			try {
-				dos.writeByte(header[i]);
+				dos.writeByte(SlotBitmap.byteAt(header, i));
 			} catch (IOException e) {
 				// this really shouldn't happen
 				e.printStackTrace();
@@ -247,9 +247,17 @@ public class BTreeHeaderPage implements Page {
 
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
-	 * that did the dirtying
+	 * that did the dirtying. A page is dirtied before it is changed, so the
+	 * first time it is dirtied its content is kept as the before image.
 	 */
 	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty && !this.dirty) {
+			synchronized(oldDataLock)
+			{
+				if (oldData == null)
+					oldData = getPageData();
+			}
+		}
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -268,23 +276,15 @@ public class BTreeHeaderPage implements Page {
 	 * Returns true if the page of the BTreeFile associated with slot i is used
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return SlotBitmap.get(header, i);
 	}
 
 	/**
 	 * Abstraction to mark a page of the BTreeFile used or unused
 	 */
 	public void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
 		Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		SlotBitmap.set(header, i, value);
 	}
 
 	/**
@@ -292,15 +292,6 @@ public class BTreeHeaderPage implements Page {
 	 * @return the index of the first empty slot or -1 if none exists
 	 */
 	public int getEmptySlot() {
-		for (int i=0; i<header.length; i++) {
-			if((int) header[i] != 0xFF) {
-				for(int j = 0; j < 8; j++) {
-					if(!isSlotUsed(i*8 + j)) {
-						return i*8 + j;
-					}
-				}
-			}
-		}
-		return -1;
+		return SlotBitmap.nextClear(header, 0, numSlots);
 	}
 }
@@ -107,8 +107,6 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
@@ -143,7 +141,8 @@ public class BTreeInternalPage extends BTreePage {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				// no copy is kept while the page is unchanged since the last commit
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeInternalPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
@@ -157,7 +156,8 @@ public class BTreeInternalPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			// the current content is the before image from now on
+			oldData = null;
 		}
 	}
 
@@ -12,7 +12,9 @@ import java.io.*;
  *
  */
 public class BTreeLeafPage extends BTreePage {
-	private final byte header[];
+	// the slot header, in SlotBitmap words
+	private final long header[];
+	private final int headerSize;
 	private final Tuple tuples[];
 	private final int numSlots;
 	
@@ -89,9 +91,10 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// allocate and read the header slots of this page
-		header = new byte[getHeaderSize()];
-		for (int i=0; i<header.length; i++)
-			header[i] = dis.readByte();
+		headerSize = getHeaderSize();
+		byte[] headerBytes = new byte[headerSize];
+		dis.readFully(headerBytes);
+		header = SlotBitmap.read(headerBytes, 0, numSlots);
 
 		tuples = new Tuple[numSlots];
 		try{
@@ -102,8 +105,6 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 		dis.close();
-
-		setBeforeImage();
 	}
 
 	/** 
@@ -135,7 +136,8 @@ public class BTreeLeafPage extends BTreePage {
 			byte[] oldDataRef = null;
 			synchronized(oldDataLock)
 			{
-				oldDataRef = oldData;
+				// no copy is kept while the page is unchanged since the last commit
+				oldDataRef = oldData != null ? oldData : getPageData();
 			}
 			return new BTreeLeafPage(pid,oldDataRef,keyField);
 		} catch (IOException e) {
@@ -149,7 +151,8 @@ public class BTreeLeafPage extends BTreePage {
 	public void setBeforeImage() {
 		synchronized(oldDataLock)
 		{
-			oldData = getPageData().clone();
+			// the current content is the before image from now on
+			oldData = null;
 		}
 	}
 
@@ -224,9 +227,9 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// create the header of the page
-		for (int i=0; i<header.length; i++) {
+		for (int i=0; i<headerSize; i++) {
 			try {
-				dos.writeByte(header[i]);
+				dos.writeByte(SlotBitmap.byteAt(header, i));
 			} catch (IOException e) {
 				// this really shouldn't happen
 				e.printStackTrace();
@@ -262,7 +265,7 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (headerSize + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -311,13 +314,7 @@ public class BTreeLeafPage extends BTreePage {
 			throw new DbException("type mismatch, in addTuple");
 
 		// find the first empty slot 
-		int emptySlot = -1;
-		for (int i=0; i<numSlots; i++) {
-			if (!isSlotUsed(i)) {
-				emptySlot = i;
-				break;
-			}
-		}
+		int emptySlot = SlotBitmap.nextClear(header, 0, numSlots);
 
 		if (emptySlot == -1)
 			throw new DbException("called addTuple on page with no empty slots.");
@@ -325,13 +322,11 @@ public class BTreeLeafPage extends BTreePage {
 		// find the last key less than or equal to the key being inserted
 		int lessOrEqKey = -1;
 		Field key = t.getField(keyField);
-		for (int i=0; i<numSlots; i++) {
-			if(isSlotUsed(i)) {
-				if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
-					lessOrEqKey = i;
-				else
-					break;	
-			}
+		for (int i = SlotBitmap.nextSet(header, 0); i >= 0; i = SlotBitmap.nextSet(header, i + 1)) {
+			if(tuples[i].getField(keyField).compare(Predicate.Op.LESS_THAN_OR_EQ, key))
+				lessOrEqKey = i;
+			else
+				break;
 		}
 
 		// shift records back or forward to fill empty slot and make room for new record
@@ -445,34 +440,22 @@ public class BTreeLeafPage extends BTreePage {
 	 * Returns the number of empty slots on this page.
 	 */
 	public int getNumEmptySlots() {
-		int cnt = 0;
-		for(int i=0; i<numSlots; i++)
-			if(!isSlotUsed(i))
-				cnt++;
-		return cnt;
+		return numSlots - SlotBitmap.count(header);
 	}
 
 	/**
 	 * Returns true if associated slot on this page is filled.
 	 */
 	public boolean isSlotUsed(int i) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-		return (header[headerbyte] & (1 << headerbit)) != 0;
+		return SlotBitmap.get(header, i);
 	}
 
 	/**
 	 * Abstraction to fill or clear a slot on this page.
 	 */
 	private void markSlotUsed(int i, boolean value) {
-		int headerbit = i % 8;
-		int headerbyte = (i - headerbit) / 8;
-
 		Debug.log(1, "BTreeLeafPage.setSlot: setting slot %d to %b", i, value);
-		if(value)
-			header[headerbyte] |= 1 << headerbit;
-		else
-			header[headerbyte] &= (0xFF ^ (1 << headerbit));
+		SlotBitmap.set(header, i, value);
 	}
 
 	/**
@@ -491,6 +474,20 @@ public class BTreeLeafPage extends BTreePage {
 		return new BTreeLeafPageReverseIterator(this);
 	}
 
+	/**
+	 * @return the first used slot at or after i, or -1
+	 */
+	int nextUsedSlot(int i) {
+		return SlotBitmap.nextSet(header, i);
+	}
+
+	/**
+	 * @return the last used slot at or before i, or -1
+	 */
+	int prevUsedSlot(int i) {
+		return SlotBitmap.prevSet(header, i);
+	}
+
 	/**
 	 * protected method used by the iterator to get the ith tuple out of this page
 	 * @param i - the index of the tuple
@@ -533,15 +530,12 @@ class BTreeLeafPageIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (true) {
-				nextToReturn = p.getTuple(curTuple++);
-				if(nextToReturn != null)
-					return true;
-			}
-		} catch(NoSuchElementException e) {
+		int slot = p.nextUsedSlot(curTuple);
+		if (slot < 0)
 			return false;
-		}
+		nextToReturn = p.getTuple(slot);
+		curTuple = slot + 1;
+		return true;
 	}
 
 	public Tuple next() {
@@ -582,16 +576,12 @@ class BTreeLeafPageReverseIterator implements Iterator<Tuple> {
 		if (nextToReturn != null)
 			return true;
 
-		try {
-			while (curTuple >= 0) {
-				nextToReturn = p.getTuple(curTuple--);
-				if(nextToReturn != null)
-					return true;
-			}
+		int slot = p.prevUsedSlot(curTuple);
+		if (slot < 0)
 			return false;
-		} catch(NoSuchElementException e) {
-			return false;
-		}
+		nextToReturn = p.getTuple(slot);
+		curTuple = slot - 1;
+		return true;
 	}
 
 	public Tuple next() {
@@ -21,8 +21,10 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	// the content as of the last commit, kept from the first markDirty on;
+	// null while the page is unchanged
 	protected byte[] oldData;
-	protected final Byte oldDataLock=new Byte((byte)0);
+	protected final Object oldDataLock=new Object();
 
 	/**
 	 * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -111,9 +113,17 @@ public abstract class BTreePage implements Page {
 
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
-	 * that did the dirtying
+	 * that did the dirtying. A page is dirtied before it is changed, so the
+	 * first time it is dirtied its content is kept as the before image.
 	 */
 	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty && !this.dirty) {
+			synchronized(oldDataLock)
+			{
+				if (oldData == null)
+					oldData = getPageData();
+			}
+		}
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -22,7 +22,10 @@ public class BTreeRootPtrPage implements Page {
 	private int rootCategory;
 	private int header;
 
+	// the content as of the last commit, kept from the first markDirty on;
+	// null while the page is unchanged
 	private byte[] oldData;
+	private final Object oldDataLock=new Object();
 
 	/**
 	 * Constructor.
@@ -43,12 +46,14 @@ public class BTreeRootPtrPage implements Page {
 
 		// read in the header pointer
 		header = dis.readInt();
-		
-		setBeforeImage();
 	}
 
 	public void setBeforeImage() {
-		oldData = getPageData().clone();
+		synchronized(oldDataLock)
+		{
+			// the current content is the before image from now on
+			oldData = null;
+		}
 	}
 
 	/**
@@ -127,6 +132,14 @@ public class BTreeRootPtrPage implements Page {
 	}
 
 	public void markDirty(boolean dirty, TransactionId tid){
+		if (dirty && !this.dirty) {
+			// about to be changed: keep the committed content
+			synchronized(oldDataLock)
+			{
+				if (oldData == null)
+					oldData = getPageData();
+			}
+		}
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -142,7 +155,12 @@ public class BTreeRootPtrPage implements Page {
         -- used by recovery */
 	public BTreeRootPtrPage getBeforeImage(){
 		try {
-			return new BTreeRootPtrPage(pid,oldData);
+			byte[] oldDataRef = null;
+			synchronized(oldDataLock)
+			{
+				oldDataRef = oldData != null ? oldData : getPageData();
+			}
+			return new BTreeRootPtrPage(pid,oldDataRef);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
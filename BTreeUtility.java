@@ -450,6 +450,7 @@ public class BTreeUtility {
 		FileOutputStream fos = new FileOutputStream(f);
 		fos.write(new byte[0]);
 		fos.close();
+		Database.getFileHandles().close(f);
 
 		BTreeFile bf = openBTreeFile(cols, f, keyField);
 
@@ -474,6 +475,7 @@ public class BTreeUtility {
 			bw.write(emptyPageData);
 		}
 		bw.close();
+		Database.getFileHandles().close(f);
 
 		BTreeFile bf = openBTreeFile(cols, f, keyField);
 
@@ -0,0 +1,829 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Benchmarks runs throughput measurements against the storage and concurrency
+ * code. Pick a benchmark with the first argument:
+ * <pre>
+ * java simpledb.Benchmarks btree-insert [maxThreads] [insertsPerThread]
+ * java simpledb.Benchmarks btree-lookup [rows] [lookups]
+ * java simpledb.Benchmarks heap-scan [rows] [passes]
+ * java simpledb.Benchmarks heap-decode [rows] [passes]
+ * java simpledb.Benchmarks page-serialize [rows] [passes]
+ * java simpledb.Benchmarks column-scan [rows] [passes]
+ * java simpledb.Benchmarks dict-scan [rows] [passes]
+ * java simpledb.Benchmarks compressed-scan [rows] [passes]
+ * java simpledb.Benchmarks bulk-load [rows] [maxThreads]
+ * java simpledb.Benchmarks direct-io [rows] [passes]
+ * </pre>
+ */
+public class Benchmarks {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			System.err.println("usage: Benchmarks btree-insert [maxThreads] [insertsPerThread]");
+			System.err.println("       Benchmarks btree-lookup [rows] [lookups]");
+			System.err.println("       Benchmarks heap-scan [rows] [passes]");
+			System.err.println("       Benchmarks heap-decode [rows] [passes]");
+			System.err.println("       Benchmarks page-serialize [rows] [passes]");
+			System.err.println("       Benchmarks column-scan [rows] [passes]");
+			System.err.println("       Benchmarks dict-scan [rows] [passes]");
+			System.err.println("       Benchmarks compressed-scan [rows] [passes]");
+			System.err.println("       Benchmarks bulk-load [rows] [maxThreads]");
+			System.err.println("       Benchmarks direct-io [rows] [passes]");
+			System.err.println("       Benchmarks page-size [rows] [passes]");
+			System.err.println("       Benchmarks catalog-open [tables]");
+			return;
+		}
+		if (args[0].equals("btree-insert")) {
+			int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+			int perThread = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+			for (int threads = 1; threads <= maxThreads; threads *= 2) {
+				btreeInsert(threads, perThread);
+			}
+		} else if (args[0].equals("btree-lookup")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+			int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+			btreeLookup(rows, lookups);
+		} else if (args[0].equals("heap-scan")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			heapScan(rows, passes);
+		} else if (args[0].equals("heap-decode")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			heapDecode(rows, passes);
+		} else if (args[0].equals("page-serialize")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			pageSerialize(rows, passes);
+		} else if (args[0].equals("column-scan")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 500000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			columnScan(rows, passes);
+		} else if (args[0].equals("dict-scan")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			dictScan(rows, passes);
+		} else if (args[0].equals("compressed-scan")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+			compressedScan(rows, passes);
+		} else if (args[0].equals("bulk-load")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+			int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+			bulkLoad(rows, maxThreads);
+		} else if (args[0].equals("direct-io")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+			directIo(rows, passes);
+		} else if (args[0].equals("page-size")) {
+			int rows = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+			int passes = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+			pageSize(rows, passes);
+		} else if (args[0].equals("catalog-open")) {
+			int tables = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+			catalogOpen(tables);
+		} else {
+			System.err.println("Unknown benchmark " + args[0]);
+		}
+	}
+
+	/**
+	 * Multi-threaded B+ tree insert throughput. Each thread runs single-tuple
+	 * insert transactions through {@link BTreeUtility.BTreeInserter} on keys of
+	 * its own key range, retrying aborted transactions, so the threads mostly
+	 * write to different leaves and only meet on page splits.
+	 */
+	static void btreeInsert(int threads, int perThread) throws Exception {
+		Database.reset();
+		Database.resetBufferPool(1000);
+		File f = File.createTempFile("btree-insert", ".dat");
+		f.deleteOnExit();
+		BTreeFile bf = BTreeUtility.createEmptyBTreeFile(f.getPath(), 2, 0);
+		BlockingQueue<ArrayList<Integer>> inserted = new LinkedBlockingQueue<ArrayList<Integer>>();
+		AtomicInteger aborts = new AtomicInteger();
+
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			final int base = i * BTreeUtility.MAX_RAND_VALUE;
+			final long seed = i;
+			workers[i] = new Thread(() -> {
+				Random r = new Random(seed);
+				BTreeUtility.BTreeInserter inserter = null;
+				for (int n = 0; n < perThread; n++) {
+					int[] tupdata = new int[] { base + r.nextInt(BTreeUtility.MAX_RAND_VALUE), n };
+					do {
+						if (inserter == null) {
+							inserter = new BTreeUtility.BTreeInserter(bf, tupdata, inserted);
+							inserter.run();
+						} else {
+							inserter.rerun(bf, tupdata, inserted);
+						}
+						if (!inserter.succeeded())
+							aborts.incrementAndGet();
+					} while (!inserter.succeeded());
+				}
+			});
+		}
+
+		// transactionComplete reports every commit on stdout; keep it out of the results
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		long start = System.nanoTime();
+		try {
+			for (Thread w : workers)
+				w.start();
+			for (Thread w : workers)
+				w.join();
+		} finally {
+			System.setOut(out);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		// make sure the concurrent splits left a well-formed tree behind
+		TransactionId tid = new TransactionId();
+		BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+		int count = 0;
+		DbFileIterator it = bf.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		Database.getBufferPool().transactionComplete(tid);
+
+		int total = threads * perThread;
+		if (count != total || inserted.size() != total)
+			throw new DbException("btree-insert: expected " + total + " tuples, found " + count);
+		System.out.printf("btree-insert threads=%d inserts=%d aborts=%d time=%.2fs throughput=%.0f inserts/s%n",
+				threads, total, aborts.get(), elapsed / 1e9, total / (elapsed / 1e9));
+	}
+
+	/**
+	 * Per-query cost of B+ tree point lookups, each run as its own transaction,
+	 * once as ordinary transactions (logged, locked, log forced on commit) and
+	 * once as read-only transactions.
+	 */
+	static void btreeLookup(int rows, int lookups) throws Exception {
+		Database.reset();
+		BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, rows, null, null, 0);
+		// the encoder leaves a default-sized pool behind; make room for the whole index
+		Database.resetBufferPool(1000);
+		for (boolean readOnly : new boolean[] { false, true }) {
+			Random r = new Random(0);
+			int found = 0;
+			PrintStream out = System.out;
+			System.setOut(new PrintStream(new ByteArrayOutputStream()));
+			long start = System.nanoTime();
+			try {
+				for (int n = 0; n < lookups; n++) {
+					Transaction t = readOnly ? Transaction.startReadOnly() : new Transaction();
+					if (!readOnly)
+						t.start();
+					IndexPredicate ipred = new IndexPredicate(Predicate.Op.EQUALS,
+							new IntField(r.nextInt(BTreeUtility.MAX_RAND_VALUE)));
+					DbFileIterator it = bf.indexIterator(t.getId(), ipred);
+					it.open();
+					while (it.hasNext()) {
+						it.next();
+						found++;
+					}
+					it.close();
+					t.commit();
+				}
+			} finally {
+				System.setOut(out);
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("btree-lookup mode=%s rows=%d lookups=%d matches=%d time=%.2fs latency=%.1fus%n",
+					readOnly ? "read-only" : "locking", rows, lookups, found, elapsed / 1e9,
+					elapsed / 1e3 / lookups);
+		}
+	}
+
+	/**
+	 * Full scans of a heap file through a buffer pool much smaller than the
+	 * table, so that every pass reads every page from the file again, in each
+	 * {@link AccessMode}. The file is read once beforehand so that it sits in the
+	 * operating system's page cache.
+	 */
+	static void heapScan(int rows, int passes) throws Exception {
+		Database.reset();
+		File f = randomHeapFile("heap-scan", rows, 4);
+		for (AccessMode mode : AccessMode.values()) {
+			HeapFile hf = new HeapFile(f, Utility.getTupleDesc(4), mode);
+			Database.getCatalog().addTable(hf);
+			long best = Long.MAX_VALUE;
+			// pass 0 warms up the page cache and the JIT
+			for (int pass = 0; pass <= passes; pass++) {
+				Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+				long start = System.nanoTime();
+				int count = scan(hf);
+				if (pass > 0)
+					best = Math.min(best, System.nanoTime() - start);
+				if (count != rows)
+					throw new DbException("heap-scan: expected " + rows + " tuples, found " + count);
+			}
+			System.out.printf("heap-scan mode=%s rows=%d pages=%d best=%.1fms throughput=%.0f pages/s%n", mode, rows,
+					hf.numPages(), best / 1e6, hf.numPages() / (best / 1e9));
+		}
+	}
+
+	/**
+	 * Cost of turning page images into tuples, without any I/O: every page of a
+	 * heap file is kept in memory as bytes, and each pass builds a HeapPage from
+	 * every image and reads it in one of three ways:
+	 * <ul>
+	 * <li>full: every tuple, filtered afterwards by a Predicate matching 1% of
+	 * them;
+	 * <li>selective: only the tuples passing the same Predicate, through
+	 * {@link HeapPage#iterator(Predicate)};
+	 * <li>narrow: one field of every tuple, through
+	 * {@link HeapPage#getField(int, int)}.
+	 * </ul>
+	 * Reports the best time and the bytes allocated per page.
+	 */
+	static void heapDecode(int rows, int passes) throws Exception {
+		Database.reset();
+		HeapFile hf = new HeapFile(randomHeapFile("heap-decode", rows, 4), Utility.getTupleDesc(4));
+		Database.getCatalog().addTable(hf);
+		int numPages = hf.numPages();
+		byte[][] images = pageImages(hf);
+		Predicate pred = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(BTreeUtility.MAX_RAND_VALUE / 100));
+
+		for (String how : new String[] { "full", "selective", "narrow" }) {
+			long best = Long.MAX_VALUE;
+			long allocated = 0;
+			long result = 0;
+			// pass 0 warms up the JIT
+			for (int pass = 0; pass <= passes; pass++) {
+				long bytes = allocatedBytes();
+				long start = System.nanoTime();
+				result = 0;
+				for (int i = 0; i < numPages; i++) {
+					HeapPage p = new HeapPage(new HeapPageId(hf.getId(), i), images[i]);
+					if (how.equals("full")) {
+						Iterator<Tuple> it = p.iterator();
+						while (it.hasNext()) {
+							if (pred.filter(it.next()))
+								result++;
+						}
+					} else if (how.equals("selective")) {
+						Iterator<Tuple> it = p.iterator(pred);
+						while (it.hasNext()) {
+							it.next();
+							result++;
+						}
+					} else {
+						for (int slot = 0; slot < p.numSlots; slot++) {
+							if (p.isSlotUsed(slot))
+								result += ((IntField) p.getField(slot, 1)).getValue();
+						}
+					}
+				}
+				long elapsed = System.nanoTime() - start;
+				if (pass > 0) {
+					best = Math.min(best, elapsed);
+					allocated = allocatedBytes() - bytes;
+				}
+			}
+			System.out.printf("heap-decode read=%s pages=%d result=%d best=%.1fms per-page=%.2fus alloc=%d bytes/page%n",
+					how, numPages, result, best / 1e6, best / 1e3 / numPages, allocated / numPages);
+		}
+	}
+
+	/**
+	 * Cost of serializing heap pages, on pages just read and on pages with
+	 * every tenth tuple deleted and inserted again, once through
+	 * {@link HeapPage#getPageData()} and once through
+	 * {@link HeapPage#writePageData(java.nio.ByteBuffer)} into one reused
+	 * buffer. Reports the best time and the bytes allocated per page.
+	 */
+	static void pageSerialize(int rows, int passes) throws Exception {
+		Database.reset();
+		HeapFile hf = new HeapFile(randomHeapFile("page-serialize", rows, 4), Utility.getTupleDesc(4));
+		Database.getCatalog().addTable(hf);
+		byte[][] images = pageImages(hf);
+		for (boolean modified : new boolean[] { false, true }) {
+			HeapPage[] pages = new HeapPage[images.length];
+			for (int i = 0; i < images.length; i++) {
+				pages[i] = new HeapPage(new HeapPageId(hf.getId(), i), images[i]);
+				for (int slot = 0; modified && slot < pages[i].numSlots; slot += 10) {
+					if (pages[i].isSlotUsed(slot)) {
+						Tuple t = pages[i].getTuple(slot);
+						pages[i].deleteTuple(t);
+						pages[i].insertTuple(t);
+					}
+				}
+			}
+			java.nio.ByteBuffer buf = java.nio.ByteBuffer.allocate(BufferPool.getPageSize());
+			for (boolean reuse : new boolean[] { false, true }) {
+				long best = Long.MAX_VALUE;
+				long allocated = 0;
+				long checksum = 0;
+				// pass 0 warms up the JIT
+				for (int pass = 0; pass <= passes; pass++) {
+					long bytes = allocatedBytes();
+					long start = System.nanoTime();
+					checksum = 0;
+					for (HeapPage p : pages) {
+						if (reuse) {
+							buf.clear();
+							p.writePageData(buf);
+							checksum += buf.get(0);
+						} else {
+							checksum += p.getPageData()[0];
+						}
+					}
+					long elapsed = System.nanoTime() - start;
+					if (pass > 0) {
+						best = Math.min(best, elapsed);
+						allocated = allocatedBytes() - bytes;
+					}
+				}
+				System.out.printf(
+						"page-serialize pages=%s via=%s count=%d checksum=%d best=%.1fms per-page=%.2fus alloc=%d bytes/page%n",
+						modified ? "modified" : "clean", reuse ? "writePageData" : "getPageData", pages.length,
+						checksum, best / 1e6, best / 1e3 / pages.length, allocated / pages.length);
+			}
+		}
+	}
+
+	/**
+	 * Scans of a table of 8 int columns stored as a HeapFile and as a
+	 * ColumnFile: the sum of two columns over all rows, and the same sum over
+	 * the 1% of rows passing a predicate on column 0, which holds the row
+	 * number. The other columns hold random values of growing ranges. Every
+	 * pass starts with an empty buffer pool.
+	 */
+	static void columnScan(int rows, int passes) throws Exception {
+		Database.reset();
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		Random r = new Random(0);
+		for (int i = 0; i < rows; i++) {
+			ArrayList<Integer> tuple = new ArrayList<Integer>();
+			tuple.add(i);
+			for (int c = 1; c < 8; c++)
+				tuple.add(r.nextInt(1 << (c * 4 - 3)));
+			tuples.add(tuple);
+		}
+		File heap = File.createTempFile("column-scan", ".dat");
+		heap.deleteOnExit();
+		HeapFileEncoder.convert(tuples, heap, BufferPool.getPageSize(), 8);
+		tuples = null;
+		HeapFile hf = new HeapFile(heap, Utility.getTupleDesc(8));
+		Database.getCatalog().addTable(hf);
+		File columns = File.createTempFile("column-scan", ".col");
+		columns.deleteOnExit();
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		ColumnFile cf;
+		try {
+			cf = ColumnFile.convert(hf, columns);
+		} finally {
+			System.setOut(out);
+		}
+		Database.getCatalog().addTable(cf);
+		System.out.printf("column-scan rows=%d heap-pages=%d column-pages=%d%n", rows, hf.numPages(), cf.numPages());
+
+		Predicate selective = new Predicate(0, Predicate.Op.LESS_THAN, new IntField(rows / 100));
+		for (Predicate p : new Predicate[] { null, selective }) {
+			for (DbFile f : new DbFile[] { hf, cf }) {
+				long best = Long.MAX_VALUE;
+				long sum = 0;
+				// pass 0 warms up the JIT
+				for (int pass = 0; pass <= passes; pass++) {
+					Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+					long start = System.nanoTime();
+					TransactionId tid = new TransactionId();
+					DbFileIterator it;
+					int a, b;
+					if (f == cf) {
+						it = cf.iterator(tid, new int[] { 2, 3 }, p);
+						a = 0;
+						b = 1;
+					} else {
+						it = f.iterator(tid);
+						a = 2;
+						b = 3;
+					}
+					sum = 0;
+					it.open();
+					while (it.hasNext()) {
+						Tuple t = it.next();
+						if (f != cf && p != null && !p.filter(t))
+							continue;
+						sum += ((IntField) t.getField(a)).getValue() + ((IntField) t.getField(b)).getValue();
+					}
+					it.close();
+					if (pass > 0)
+						best = Math.min(best, System.nanoTime() - start);
+					System.setOut(new PrintStream(new ByteArrayOutputStream()));
+					try {
+						Database.getBufferPool().transactionComplete(tid);
+					} finally {
+						System.setOut(out);
+					}
+				}
+				System.out.printf("column-scan file=%s filter=%s sum=%d best=%.1fms%n",
+						f == cf ? "column" : "heap", p == null ? "none" : "1%", sum, best / 1e6);
+			}
+		}
+	}
+
+	/**
+	 * An equality filter and a count grouped by a string column with 8
+	 * distinct values, over a table of (int, string) stored with the string
+	 * as it is and with the string in a dictionary. Every pass starts with an
+	 * empty buffer pool.
+	 */
+	static void dictScan(int rows, int passes) throws Exception {
+		Database.reset();
+		String[] values = { "open", "closed", "pending", "shipped", "cancelled", "returned", "lost", "held" };
+		File csv = File.createTempFile("dict-scan", ".txt");
+		csv.deleteOnExit();
+		Random r = new Random(0);
+		try (PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(csv)))) {
+			for (int i = 0; i < rows; i++)
+				w.println(i + "," + values[r.nextInt(values.length)]);
+		}
+		Type[] types = { Type.INT_TYPE, Type.STRING_TYPE };
+		String[] names = { "id", "status" };
+		File dictFile = File.createTempFile("dict-scan", ".dict");
+		dictFile.delete();
+		dictFile.deleteOnExit();
+		StringDictionary[] dicts = { null, new StringDictionary(dictFile) };
+		HeapFile[] files = new HeapFile[2];
+		for (int k = 0; k < 2; k++) {
+			File dat = File.createTempFile("dict-scan", ".dat");
+			dat.deleteOnExit();
+			HeapFileEncoder.convert(csv, dat, BufferPool.getPageSize(), 2, types, ',', k == 0 ? null : dicts);
+			files[k] = new HeapFile(dat, k == 0 ? new TupleDesc(types, names) : new TupleDesc(types, names, dicts));
+			Database.getCatalog().addTable(files[k], "dict_scan" + k);
+		}
+		System.out.printf("dict-scan rows=%d plain-pages=%d dict-pages=%d%n", rows, files[0].numPages(),
+				files[1].numPages());
+
+		PrintStream out = System.out;
+		for (String query : new String[] { "filter", "group" }) {
+			for (int k = 0; k < 2; k++) {
+				long best = Long.MAX_VALUE;
+				int result = 0;
+				// pass 0 warms up the JIT
+				for (int pass = 0; pass <= passes; pass++) {
+					Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+					long start = System.nanoTime();
+					TransactionId tid = new TransactionId();
+					OpIterator scan = new SeqScan(tid, files[k].getId(), "");
+					OpIterator op = query.equals("filter")
+							? new Filter(new Predicate(1, Predicate.Op.EQUALS, new StringField("pending", Type.STRING_LEN)), scan)
+							: new Aggregate(scan, 0, 1, Aggregator.Op.COUNT);
+					result = 0;
+					op.open();
+					while (op.hasNext()) {
+						op.next();
+						result++;
+					}
+					op.close();
+					if (pass > 0)
+						best = Math.min(best, System.nanoTime() - start);
+					System.setOut(new PrintStream(new ByteArrayOutputStream()));
+					try {
+						Database.getBufferPool().transactionComplete(tid);
+					} finally {
+						System.setOut(out);
+					}
+				}
+				System.out.printf("dict-scan query=%s file=%s rows=%d best=%.1fms%n", query, k == 0 ? "plain" : "dict",
+						result, best / 1e6);
+			}
+		}
+	}
+
+	/**
+	 * Full scans of a table of (int, int, string) with short strings, stored
+	 * as a HeapFile and as a CompressedHeapFile, with an empty buffer pool
+	 * but the file in the OS cache, so the times are the CPU cost of each.
+	 * The extra CPU time of the compressed scan over the bytes it saves gives
+	 * the disk bandwidth below which the compressed scan is faster.
+	 */
+	static void compressedScan(int rows, int passes) throws Exception {
+		Database.reset();
+		File csv = File.createTempFile("compressed-scan", ".txt");
+		csv.deleteOnExit();
+		Random r = new Random(0);
+		try (PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(csv)))) {
+			for (int i = 0; i < rows; i++)
+				w.println(i + "," + r.nextInt(1000) + ",item-" + r.nextInt(100000));
+		}
+		Type[] types = { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE };
+		TupleDesc td = new TupleDesc(types, new String[] { "id", "qty", "name" });
+		File dat = File.createTempFile("compressed-scan", ".dat");
+		dat.deleteOnExit();
+		HeapFileEncoder.convert(csv, dat, BufferPool.getPageSize(), 3, types, ',');
+		HeapFile plain = new HeapFile(dat, td);
+		File cdat = File.createTempFile("compressed-scan", ".cdat");
+		cdat.deleteOnExit();
+		long start = System.nanoTime();
+		CompressedHeapFile compressed = CompressedHeapFile.convert(plain, cdat);
+		long convertNanos = System.nanoTime() - start;
+		compressed.getIndexFile().deleteOnExit();
+		new File(cdat.getPath() + ".fsm").deleteOnExit();
+		Database.getCatalog().addTable(plain, "compressed_scan0");
+		Database.getCatalog().addTable(compressed, "compressed_scan1");
+		long plainBytes = dat.length();
+		long compressedBytes = compressed.compressedBytes();
+		System.out.printf("compressed-scan rows=%d pages=%d plain=%.1fMB compressed=%.1fMB ratio=%.2f compress=%.1fMB/s%n",
+				rows, plain.numPages(), plainBytes / 1e6, compressedBytes / 1e6, (double) plainBytes / compressedBytes,
+				plainBytes / 1e6 / (convertNanos / 1e9));
+
+		PrintStream out = System.out;
+		long[] best = new long[2];
+		HeapFile[] files = { plain, compressed };
+		for (int k = 0; k < 2; k++) {
+			best[k] = Long.MAX_VALUE;
+			long sum = 0;
+			// pass 0 warms up the JIT
+			for (int pass = 0; pass <= passes; pass++) {
+				Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+				start = System.nanoTime();
+				TransactionId tid = new TransactionId();
+				DbFileIterator it = files[k].iterator(tid);
+				sum = 0;
+				it.open();
+				while (it.hasNext())
+					sum += ((IntField) it.next().getField(1)).getValue();
+				it.close();
+				if (pass > 0)
+					best[k] = Math.min(best[k], System.nanoTime() - start);
+				System.setOut(new PrintStream(new ByteArrayOutputStream()));
+				try {
+					Database.getBufferPool().transactionComplete(tid);
+				} finally {
+					System.setOut(out);
+				}
+			}
+			System.out.printf("compressed-scan file=%s sum=%d best=%.1fms%n", k == 0 ? "plain" : "compressed", sum,
+					best[k] / 1e6);
+		}
+		long extraNanos = best[1] - best[0];
+		if (extraNanos > 0)
+			System.out.printf("compressed-scan break-even disk bandwidth=%.0fMB/s%n",
+					(plainBytes - compressedBytes) / 1e6 / (extraNanos / 1e9));
+		else
+			System.out.println("compressed-scan break-even disk bandwidth=any");
+	}
+
+	/**
+	 * Loading a text file of (int, int, string) rows into a heap file with
+	 * HeapFileEncoder and with BulkLoader on 1, 2, 4... threads, in MB of
+	 * text per second. The text file is in the OS cache after the first load.
+	 */
+	static void bulkLoad(int rows, int maxThreads) throws Exception {
+		Database.reset();
+		File csv = File.createTempFile("bulk-load", ".txt");
+		csv.deleteOnExit();
+		Random r = new Random(0);
+		try (PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(csv)))) {
+			for (int i = 0; i < rows; i++)
+				w.println(i + "," + r.nextInt(1000) + ",item-" + r.nextInt(100000));
+		}
+		Type[] types = { Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE };
+		File dat = File.createTempFile("bulk-load", ".dat");
+		dat.deleteOnExit();
+		new File(dat.getPath() + ".fsm").deleteOnExit();
+
+		long start = System.nanoTime();
+		HeapFileEncoder.convert(csv, dat, BufferPool.getPageSize(), 3, types, ',');
+		long nanos = System.nanoTime() - start;
+		System.out.printf("bulk-load rows=%d input=%.1fMB encoder=%.1fMB/s%n", rows, csv.length() / 1e6,
+				csv.length() / 1e6 / (nanos / 1e9));
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			BulkLoader.Result res = BulkLoader.load(csv, dat, new TupleDesc(types), ',', threads, false);
+			System.out.printf("bulk-load threads=%d pages=%d loader=%.1fMB/s%n", threads, res.getPages(),
+					res.getMBPerSecond());
+		}
+	}
+
+	/**
+	 * Full scans of a heap file through a buffer pool much smaller than the
+	 * table, in STANDARD and in DIRECT mode. Each mode scans its own copy of
+	 * the table, written with direct I/O so that none of it is in the
+	 * operating system's page cache to begin with. Reports the first (cold)
+	 * pass, the best of the others, and how much the page cache grew over all
+	 * passes, from the Cached line of /proc/meminfo; anything else running on
+	 * the machine adds to that.
+	 */
+	static void directIo(int rows, int passes) throws Exception {
+		Database.reset();
+		HeapFile source = new HeapFile(randomHeapFile("direct-io", rows, 4), Utility.getTupleDesc(4));
+		Database.getCatalog().addTable(source);
+		// warm up the JIT on the source, which is in the page cache anyway
+		scan(source);
+		byte[] page = new byte[BufferPool.getPageSize()];
+		for (AccessMode mode : new AccessMode[] { AccessMode.STANDARD, AccessMode.DIRECT }) {
+			File f = File.createTempFile("direct-io", ".dat");
+			f.deleteOnExit();
+			new File(f.getPath() + ".zm").deleteOnExit();
+			HeapFile hf = new HeapFile(f, Utility.getTupleDesc(4), AccessMode.DIRECT);
+			for (int i = 0; i < source.numPages(); i++) {
+				source.readPageBytes(i, page);
+				hf.writePageRun(i, ByteBuffer.wrap(page));
+			}
+			Database.getCatalog().addTable(hf);
+			// build the zone map a scan needs without pulling the table into the
+			// page cache
+			hf.zoneMap();
+			hf.setAccessMode(mode);
+			long cachedBefore = pageCacheBytes();
+			long cold = 0;
+			long best = Long.MAX_VALUE;
+			for (int pass = 0; pass <= passes; pass++) {
+				Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+				long start = System.nanoTime();
+				int count = scan(hf);
+				long nanos = System.nanoTime() - start;
+				if (pass == 0)
+					cold = nanos;
+				else
+					best = Math.min(best, nanos);
+				if (count != rows)
+					throw new DbException("direct-io: expected " + rows + " tuples, found " + count);
+			}
+			long cachedAfter = pageCacheBytes();
+			String cache = cachedBefore < 0 || cachedAfter < 0 ? "n/a"
+					: String.format("%+.1fMB", (cachedAfter - cachedBefore) / 1e6);
+			System.out.printf(
+					"direct-io mode=%s rows=%d table=%.1fMB pool=%.1fMB cold=%.1fms warm=%.1fms throughput=%.0f pages/s page-cache=%s%n",
+					mode, rows, f.length() / 1e6, (double) BufferPool.DEFAULT_PAGES * BufferPool.getPageSize() / 1e6,
+					cold / 1e6, best / 1e6, hf.numPages() / (best / 1e9), cache);
+			Database.getFileHandles().close(f);
+			f.delete();
+		}
+	}
+
+	/**
+	 * Full scans of the same table stored with pages of 4KB, 16KB and 64KB, in
+	 * DIRECT mode so that every pass reads the table from disk, through a
+	 * buffer pool of the same number of bytes each time. Reports the best pass
+	 * and its throughput in MB of table per second.
+	 */
+	static void pageSize(int rows, int passes) throws Exception {
+		Database.reset();
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeUtility.generateRandomTuples(4, rows, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+		for (int size : new int[] { 4096, 16384, 65536 }) {
+			File f = File.createTempFile("page-size", ".dat");
+			f.deleteOnExit();
+			new File(f.getPath() + ".zm").deleteOnExit();
+			HeapFileEncoder.convert(tuples, f, size, 4);
+			HeapFile hf = new HeapFile(f, Utility.getTupleDesc(4), AccessMode.DIRECT, size);
+			Database.getCatalog().addTable(hf);
+			long best = Long.MAX_VALUE;
+			for (int pass = 0; pass <= passes; pass++) {
+				Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+				long start = System.nanoTime();
+				int count = scan(hf);
+				if (pass > 0)
+					best = Math.min(best, System.nanoTime() - start);
+				if (count != rows)
+					throw new DbException("page-size: expected " + rows + " tuples, found " + count);
+			}
+			System.out.printf("page-size size=%d rows=%d pages=%d best=%.1fms throughput=%.1fMB/s%n", size, rows,
+					hf.numPages(), best / 1e6, f.length() / 1e6 / (best / 1e9));
+			Database.getFileHandles().close(f);
+			f.delete();
+		}
+	}
+
+	/**
+	 * Startup with many tables: the same tables of 4 int columns read from a
+	 * text schema with {@link Catalog#loadSchema}, which opens every table, and
+	 * from a system catalog with {@link Catalog#open}, which opens them on
+	 * first use. Also reports the time to look up every table by name. The
+	 * tables are empty, as neither way reads them at startup.
+	 */
+	static void catalogOpen(int tables) throws Exception {
+		File dir = Files.createTempDirectory("catalog-open").toFile();
+		File text = new File(dir, "schema.txt");
+		File binary = new File(dir, "db.catalog");
+		Database.reset();
+		Database.getCatalog().open(binary);
+		TupleDesc td = Utility.getTupleDesc(4, "field");
+		try (PrintWriter w = new PrintWriter(new BufferedWriter(new FileWriter(text)))) {
+			for (int i = 0; i < tables; i++) {
+				w.println("table" + i + " (field0 int pk, field1 int, field2 int, field3 int)");
+				Database.getCatalog().createTable("table" + i, td, "field0");
+			}
+		}
+		for (int pass = 0; pass < 3; pass++) {
+			Database.reset();
+			PrintStream out = System.out;
+			System.setOut(new PrintStream(new ByteArrayOutputStream()));
+			long start = System.nanoTime();
+			try {
+				Database.getCatalog().loadSchema(text.getPath());
+			} finally {
+				System.setOut(out);
+			}
+			long textNanos = System.nanoTime() - start;
+			Database.reset();
+			start = System.nanoTime();
+			Database.getCatalog().open(binary);
+			long binaryNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < tables; i++)
+				Database.getCatalog().getTableId("table" + i);
+			long lookupNanos = System.nanoTime() - start;
+			System.out.printf("catalog-open tables=%d text=%.1fms system-catalog=%.1fms (%.0fKB) lookups=%.1fms%n",
+					tables, textNanos / 1e6, binaryNanos / 1e6, binary.length() / 1e3, lookupNanos / 1e6);
+		}
+		for (File f : dir.listFiles())
+			f.delete();
+		dir.delete();
+	}
+
+	/**
+	 * @return the bytes of file data the operating system caches, or -1 where
+	 *         /proc/meminfo is not available
+	 */
+	private static long pageCacheBytes() {
+		try (BufferedReader r = new BufferedReader(new FileReader("/proc/meminfo"))) {
+			String line;
+			while ((line = r.readLine()) != null) {
+				if (line.startsWith("Cached:"))
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not Linux
+		}
+		return -1;
+	}
+
+	/**
+	 * Write rows random tuples of the given number of int columns to a new
+	 * temporary heap file.
+	 */
+	private static File randomHeapFile(String prefix, int rows, int columns) throws IOException {
+		File f = File.createTempFile(prefix, ".dat");
+		f.deleteOnExit();
+		ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+		BTreeUtility.generateRandomTuples(columns, rows, BTreeUtility.MAX_RAND_VALUE, null, tuples);
+		HeapFileEncoder.convert(tuples, f, BufferPool.getPageSize(), columns);
+		return f;
+	}
+
+	/**
+	 * @return the bytes of every page of hf, read from disk
+	 */
+	private static byte[][] pageImages(HeapFile hf) {
+		byte[][] images = new byte[hf.numPages()][];
+		for (int i = 0; i < images.length; i++) {
+			images[i] = hf.readPage(new HeapPageId(hf.getId(), i)).getPageData();
+		}
+		return images;
+	}
+
+	/**
+	 * @return the bytes allocated by the calling thread so far
+	 */
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) java.lang.management.ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Scan all of f in a transaction of its own.
+	 *
+	 * @return the number of tuples seen
+	 */
+	private static int scan(DbFile f) throws Exception {
+		TransactionId tid = new TransactionId();
+		int count = 0;
+		DbFileIterator it = f.iterator(tid);
+		it.open();
+		while (it.hasNext()) {
+			it.next();
+			count++;
+		}
+		it.close();
+		// transactionComplete reports every commit on stdout; keep it out of the results
+		PrintStream out = System.out;
+		System.setOut(new PrintStream(new ByteArrayOutputStream()));
+		try {
+			Database.getBufferPool().transactionComplete(tid);
+		} finally {
+			System.setOut(out);
+		}
+		return count;
+	}
+}
@@ -2,9 +2,15 @@ package simpledb;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from disk.
@@ -31,21 +37,55 @@ public class BufferPool {
 	public static final int DEFAULT_PAGES = 50;
 
 	/**
-	 * the number of pages stored in the pool
+	 * how long a blocked lock request sleeps before trying again. Requests queue
+	 * up behind older waiters, so this is also how long a released lock may sit
+	 * idle before the next waiter picks it up.
+	 */
+	private static final long LOCK_RETRY_MILLIS = 10;
+
+	/**
+	 * the number of pages stored in the pool, counted in frames of
+	 * {@link #getPageSize()} bytes; a table with larger pages takes several
+	 * frames per page
 	 */
 	private final int numPages;
+	/**
+	 * the number of frames taken by the cached pages, guarded by the pool's
+	 * monitor
+	 */
+	private int usedFrames;
 	/**
 	 * "the bufferpool"
 	 */
 	private final ConcurrentHashMap<PageId, Page> pages;
 	/**
-	 * for eviction policy
+	 * for eviction policy: cached pages, least recently used first
 	 */
-	private final ArrayList<PageId> recentlyUsed;
+	private final LinkedHashSet<PageId> recentlyUsed;
 	/**
 	 * in charge of which transactions get to lock
 	 */
 	private final KeyHolder keyHolder;
+	/**
+	 * contention statistics of the page locks
+	 */
+	private final LockProfiler lockProfiler;
+	/**
+	 * in charge of next-key locks on B+ tree keys
+	 */
+	private final KeyRangeHolder keyRangeHolder;
+	/**
+	 * short-term page latches, independent of transactional locks
+	 */
+	private final LatchTable latchTable;
+	/**
+	 * last committed image of cached pages, handed to read-only transactions
+	 */
+	private final ConcurrentHashMap<PageId, Page> committed;
+	/**
+	 * table id -> its commit sequence number, see {@link #commitSeq}
+	 */
+	private final ConcurrentHashMap<Integer, AtomicLong> commitSeqs;
 
 	/**
 	 * Creates a BufferPool that caches up to numPages pages.
@@ -56,8 +96,13 @@ public class BufferPool {
 		// some code goes here
 		this.pages = new ConcurrentHashMap<>();
 		this.numPages = numPages;
-		this.keyHolder = new KeyHolder();
-		this.recentlyUsed = new ArrayList<>();
+		this.lockProfiler = new LockProfiler();
+		this.keyHolder = new KeyHolder(lockProfiler);
+		this.keyRangeHolder = new KeyRangeHolder(keyHolder);
+		this.latchTable = new LatchTable();
+		this.committed = new ConcurrentHashMap<>();
+		this.commitSeqs = new ConcurrentHashMap<>();
+		this.recentlyUsed = new LinkedHashSet<>();
 	}
 
 	/**
@@ -81,42 +126,261 @@ public class BufferPool {
 	public Page getPage(TransactionId tid, PageId pid, Permissions perm)
 			throws TransactionAbortedException, DbException {
 		// some code goes here
+		if (tid.isReadOnly()) {
+			if (perm == X)
+				throw new DbException("read-only transaction " + tid + " cannot write page " + pid);
+			return getCommittedPage(pid);
+		}
+		lock(tid, pid, perm);
+		
+		// lock granted, fetch the page for the transaction
+		return fetchPage(pid);
+	}
+
+	/**
+	 * Retrieve the specified pages like {@link #getPage} does one by one, but
+	 * read those missing from the buffer pool with as few requests as
+	 * possible, see {@link DbFile#readPages}; e.g. for a scan reading ahead.
+	 * Locks are acquired in the order of pids.
+	 * <p>
+	 * READ_WRITE pages are the copies the pool holds when the call returns, so
+	 * the caller may change them; pids must fit in the pool together. READ_ONLY
+	 * pages may be evicted again by later pids of the same call: they are then
+	 * images of the locked pages that the pool no longer holds, and must not be
+	 * modified.
+	 *
+	 * @return the pages, in the order of pids
+	 * @throws DbException if perm is READ_WRITE and the pages do not fit in the
+	 *                     buffer pool together
+	 */
+	public List<Page> getPages(TransactionId tid, List<PageId> pids, Permissions perm)
+			throws TransactionAbortedException, DbException {
+		if (tid.isReadOnly()) {
+			if (perm == X)
+				throw new DbException("read-only transaction " + tid + " cannot write pages " + pids);
+		} else {
+			if (perm == X && frames(pids) > numPages)
+				throw new DbException(pids.size() + " pages do not fit in a buffer pool of " + numPages + " pages");
+			for (PageId pid : pids)
+				lock(tid, pid, perm);
+		}
+		loadPages(pids);
+		if (perm == X)
+			return fetchHeld(pids);
+		ArrayList<Page> result = new ArrayList<Page>(pids.size());
+		for (PageId pid : pids)
+			result.add(tid.isReadOnly() ? getCommittedPage(pid) : fetchPage(pid));
+		return result;
+	}
+
+	// fetch pids, making sure none of them was evicted to make room for a later one
+	private synchronized List<Page> fetchHeld(List<PageId> pids) throws DbException {
+		ArrayList<Page> result = new ArrayList<Page>(pids.size());
+		for (PageId pid : pids)
+			result.add(fetchPage(pid));
+		for (int i = 0; i < pids.size(); i++) {
+			if (pages.get(pids.get(i)) != result.get(i))
+				throw new DbException("No more pages: " + pids.size() + " pages do not fit in the buffer pool");
+		}
+		return result;
+	}
+
+	// wait for a lock on pid, or abort tid if it is in a deadlock
+	private void lock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
 		boolean locked = (perm == S) ? keyHolder.SLock(tid, pid) : keyHolder.XLock(tid, pid);
+		long waitStart = 0;
+		LockProfiler.LockWaitEvent wait = null;
+		if (!locked) {
+			waitStart = System.nanoTime();
+			wait = lockProfiler.waitStarted();
+		}
 		while (!locked) {
 			try {
-				Thread.sleep(1000);
+				Thread.sleep(LOCK_RETRY_MILLIS);
 			} catch (InterruptedException e) {}
 			// try to lock again
 			locked = (perm == S) ? keyHolder.SLock(tid, pid) : keyHolder.XLock(tid, pid);
 			// deadlock check
 			if (keyHolder.handleDeadlock(tid, pid)) {
+				lockProfiler.deadlockVictim(tid, pid, perm, System.nanoTime() - waitStart, wait);
 				throw new TransactionAbortedException();
 			}
 		}
-		
-		// lock granted, fetch the page for the transaction
+		lockProfiler.lockGranted(tid, pid, perm, wait == null ? 0 : System.nanoTime() - waitStart, wait);
+	}
+
+	/**
+	 * Retrieve the specified page without acquiring a transactional lock on it.
+	 * The caller is responsible for the physical consistency of what it reads,
+	 * e.g. by holding a latch from {@link #getLatchTable()} on the page.
+	 *
+	 * @param pid the ID of the requested page
+	 */
+	public Page getPageWithoutLock(PageId pid) throws DbException {
+		return fetchPage(pid);
+	}
+
+	/**
+	 * The commit sequence number of a table: incremented when a commit starts
+	 * to change the committed images of the table's pages and again when it is
+	 * done, so it is odd in between. A read-only transaction that reads several
+	 * committed images of a table sees them as of one state of the table if the
+	 * number is even and the same before and after the reads.
+	 */
+	long commitSeq(int tableId) {
+		AtomicLong seq = commitSeqs.get(tableId);
+		return seq == null ? 0 : seq.get();
+	}
+
+	/**
+	 * Retrieve the version of a page written by the last transaction that
+	 * committed a change to it, without locking. The image is shared by all
+	 * read-only transactions and must not be modified.
+	 */
+	private Page getCommittedPage(PageId pid) throws DbException {
+		Page image = committed.get(pid);
+		if (image != null)
+			return image;
+		Page p = fetchPage(pid);
+		// a commit replaces the before image and drops the cached copy under this
+		// monitor, so a stale image can never be put back
+		synchronized (committed) {
+			image = committed.get(pid);
+			if (image == null) {
+				image = p.getBeforeImage();
+				// only cache images of the copy the pool still holds
+				if (pages.get(pid) == p)
+					committed.put(pid, image);
+			}
+		}
+		return image;
+	}
+
+	private Page fetchPage(PageId pid) throws DbException {
 		Page p = pages.get(pid);
 		// not in the buffer
 		if (p == null) {
-			if (pages.size() == numPages) {
-				this.evictPage();
-			}
+			p = loadPage(pid);
+		}
+		synchronized (recentlyUsed) {
+			// move to the most recently used end
+			recentlyUsed.remove(pid);
+			recentlyUsed.add(pid);
+		}
+		return p;
+	}
+
+	/**
+	 * read a page into the buffer; checks again under the pool's monitor so that
+	 * two threads missing on the same page end up sharing one copy of it
+	 */
+	private synchronized Page loadPage(PageId pid) throws DbException {
+		Page p = pages.get(pid);
+		if (p == null) {
 			// find the page
 			Catalog catalog = Database.getCatalog();
 			int tableID = pid.getTableId();
 			p = catalog.getDatabaseFile(tableID).readPage(pid);
+			int need = frames(p.getPageDataSize());
+			while (usedFrames > 0 && usedFrames + need > numPages) {
+				this.evictPage();
+			}
 			pages.put(pid, p);
+			usedFrames += need;
 		}
-		recentlyUsed.add(pid);
 		return p;
+	}
+
+	/**
+	 * read the pages of pids missing from the buffer with one
+	 * {@link DbFile#readPages} call per table; at most half the buffer is
+	 * filled this way, the rest is left to {@link #fetchPage}
+	 */
+	private synchronized void loadPages(List<PageId> pids) throws DbException {
+		LinkedHashMap<Integer, ArrayList<PageId>> misses = new LinkedHashMap<Integer, ArrayList<PageId>>();
+		HashSet<PageId> seen = new HashSet<PageId>();
+		int count = 0;
+		for (PageId pid : pids) {
+			if (count >= Math.max(numPages / 2, 1))
+				break;
+			if (pages.containsKey(pid) || !seen.add(pid))
+				continue;
+			misses.computeIfAbsent(pid.getTableId(), k -> new ArrayList<PageId>()).add(pid);
+			count += frames(Database.getCatalog().getDatabaseFile(pid.getTableId()).getPageSize());
+		}
+		for (Map.Entry<Integer, ArrayList<PageId>> e : misses.entrySet()) {
+			List<Page> read = Database.getCatalog().getDatabaseFile(e.getKey()).readPages(e.getValue());
+			for (Page p : read) {
+				int need = frames(p.getPageDataSize());
+				while (usedFrames > 0 && usedFrames + need > numPages) {
+					this.evictPage();
+				}
+				pages.put(p.getId(), p);
+				usedFrames += need;
+				synchronized (recentlyUsed) {
+					recentlyUsed.add(p.getId());
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the lock table for next-key locks on B+ tree keys
+	 */
+	public KeyRangeHolder getKeyRangeHolder() {
+		return keyRangeHolder;
+	}
+
+	/**
+	 * @return the contention statistics of the page locks
+	 */
+	public LockProfiler getLockProfiler() {
+		return lockProfiler;
+	}
 
+	/**
+	 * @return the table of short-term page latches
+	 */
+	public LatchTable getLatchTable() {
+		return latchTable;
 	}
 
 	public static int getPageSize() {
 		return pageSize;
 	}
 
+	/**
+	 * @return the number of frames not taken by dirty pages, i.e. the most
+	 *         frames of pages a caller can have in the pool at once
+	 */
+	synchronized int freeFrames() {
+		int dirty = 0;
+		for (Page p : pages.values()) {
+			if (p.isDirty() != null)
+				dirty += frames(p.getPageDataSize());
+		}
+		return numPages - dirty;
+	}
+
+	/**
+	 * @return the number of frames the distinct pages of pids take in the pool
+	 */
+	private static int frames(List<PageId> pids) {
+		int n = 0;
+		for (PageId pid : new HashSet<PageId>(pids))
+			n += frames(Database.getCatalog().getDatabaseFile(pid.getTableId()).getPageSize());
+		return n;
+	}
+
+	/**
+	 * @return the number of frames a page of the given size takes in the pool
+	 */
+	private static int frames(int bytes) {
+		return Math.max(1, (bytes + pageSize - 1) / pageSize);
+	}
+
 	// THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+	// Tables created with their own page size keep it; only the default changes.
 	public static void setPageSize(int pageSize) {
 		BufferPool.pageSize = pageSize;
 	}
@@ -169,30 +433,55 @@ public class BufferPool {
 	 */
 	public synchronized void transactionComplete(TransactionId tid, boolean commit) throws IOException {
 		// some code goes here
-		keyHolder.releaseAllLocksBy(tid);
+		if (tid.isReadOnly())
+			return;
 		if (commit) {
 			System.out.println("Transaction " + tid + " COMPLETED");
-			for (Map.Entry<PageId, Page> e : pages.entrySet()) {
-				Page p = e.getValue();
-				PageId pid = e.getKey();
-				if (holdsLock(tid, pid))
-					releasePage(tid, pid);
-				if (p.isDirty() != null && p.isDirty().equals(tid)) {
-					flushPage(pid);
+			HashSet<AtomicLong> changed = new HashSet<AtomicLong>();
+			for (Page p : pages.values()) {
+				if (p.isDirty() != null && p.isDirty().equals(tid))
+					changed.add(commitSeqs.computeIfAbsent(p.getId().getTableId(), t -> new AtomicLong()));
+			}
+			// odd while the committed images of the tables change; commits do not overlap, as
+			// this method is synchronized
+			for (AtomicLong seq : changed)
+				seq.incrementAndGet();
+			try {
+				for (Map.Entry<PageId, Page> e : pages.entrySet()) {
+					Page p = e.getValue();
+					PageId pid = e.getKey();
+					if (p.isDirty() != null && p.isDirty().equals(tid)) {
+						flushPage(pid);
+						synchronized (committed) {
+							p.setBeforeImage();
+							committed.remove(pid);
+						}
+					}
+					if (holdsLock(tid, pid))
+						releasePage(tid, pid);
 				}
+			} finally {
+				for (AtomicLong seq : changed)
+					seq.incrementAndGet();
 			}
 		} else {
 			for (Entry<PageId, Page> e : pages.entrySet()) {
 				Page p = e.getValue();
 				PageId pid = e.getKey();
-				if (holdsLock(tid, pid))
-					releasePage(tid, pid);
 				if (p.isDirty() != null && p.isDirty().equals(tid)) {
 					DbFile f = Database.getCatalog().getDatabaseFile(pid.getTableId());
-					e.setValue(f.readPage(pid));
+					Page restored = f.readPage(pid);
+					e.setValue(restored);
+					if (f instanceof HeapFile && restored instanceof HeapPage)
+						((HeapFile) f).restored((HeapPage) restored);
 				}
+				if (holdsLock(tid, pid))
+					releasePage(tid, pid);
 			}
 		}
+		// only now that the pages are written or restored may other transactions see them
+		keyHolder.releaseAllLocksBy(tid);
+		keyRangeHolder.releaseAllLocksBy(tid);
 	}
 
 	/**
@@ -212,13 +501,34 @@ public class BufferPool {
 			throws DbException, IOException, TransactionAbortedException {
 		// some code goes here
 		// not necessary for proj1
-		HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+		if (tid.isReadOnly())
+			throw new DbException("read-only transaction " + tid + " cannot insert tuples");
+		DbFile table = Database.getCatalog().getDatabaseFile(tableId);
 		ArrayList<Page> ins = table.insertTuple(tid, t);
 		for (Page p : ins) {
 			p.markDirty(true, tid);
 		}
 	}
 
+	/**
+	 * Add a batch of tuples to the specified table on behalf of transaction
+	 * tid, as {@link #insertTuple} does for one, but with one call into the
+	 * table, which can fill its pages in bulk.
+	 *
+	 * @param tid     the transaction adding the tuples
+	 * @param tableId the table to add the tuples to
+	 * @param tuples  the tuples to add
+	 */
+	public void insertTuples(TransactionId tid, int tableId, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		if (tid.isReadOnly())
+			throw new DbException("read-only transaction " + tid + " cannot insert tuples");
+		DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+		for (Page p : table.insertTuples(tid, tuples)) {
+			p.markDirty(true, tid);
+		}
+	}
+
 	/**
 	 * Remove the specified tuple from the buffer pool. Will acquire a write lock on
 	 * the page the tuple is removed from. May block if the lock cannot be acquired.
@@ -234,9 +544,16 @@ public class BufferPool {
 	public void deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
 		// some code goes here
 		// not necessary for proj1
+		if (tid.isReadOnly())
+			throw new DbException("read-only transaction " + tid + " cannot delete tuples");
 		int tableId = t.getRecordId().getPageId().getTableId();
-		HeapFile table = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
-		Page del = table.deleteTuple(tid, t);
+		DbFile table = Database.getCatalog().getDatabaseFile(tableId);
+		Page del;
+		try {
+			del = table.deleteTuple(tid, t);
+		} catch (IOException e) {
+			throw new DbException("failed to delete tuple: " + e.getMessage());
+		}
 		del.markDirty(true, tid);
 	}
 
@@ -263,8 +580,13 @@ public class BufferPool {
 	public synchronized void discardPage(PageId pid) {
 		// some code goes here
 		// not necessary for lab1
-		this.pages.remove(pid);
-		this.recentlyUsed.remove(pid);
+		Page p = this.pages.remove(pid);
+		if (p != null)
+			usedFrames -= frames(p.getPageDataSize());
+		this.committed.remove(pid);
+		synchronized (recentlyUsed) {
+			this.recentlyUsed.remove(pid);
+		}
 	}
 
 	/**
@@ -276,10 +598,10 @@ public class BufferPool {
 		// some code goes here
 		// not necessary for lab1
 		try {
-			HeapFile hf = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+			DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
 			Page page = this.pages.get(pid);
 			if (page != null) {
-				hf.writePage(page);
+				file.writePage(page);
 				page.markDirty(false, null);
 			}
 		} catch (IOException e) {
@@ -300,34 +622,24 @@ public class BufferPool {
 	 */
 	private synchronized void evictPage() throws DbException {
 		// some code goes here
-		// check if all pages are dirty
-		int dirtyCount = 0;
-		for (PageId key : pages.keySet()) {
-			if (pages.get(key).isDirty() != null) {
-				dirtyCount++;
-			}
-		}
-		if (dirtyCount == numPages) throw new DbException("No more pages");
-			
-		//not the case, then find the recently used clean page
-		for (PageId pid : pages.keySet()) {
-			if (recentlyUsed.contains(pid)) {
-				PageId toEvictId = pid;
+		// find the least recently used clean page
+		synchronized (recentlyUsed) {
+			Iterator<PageId> it = recentlyUsed.iterator();
+			while (it.hasNext()) {
+				PageId toEvictId = it.next();
 				Page toEvict = pages.get(toEvictId);
-				if (toEvict.isDirty() == null) {
-					try {
-						flushPage(toEvictId);
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
+				if (toEvict != null && toEvict.isDirty() == null) {
+					// a clean page matches the disk, nothing to write back
 					pages.remove(toEvictId);
-					recentlyUsed.remove(toEvictId);
-					break;
+					committed.remove(toEvictId);
+					it.remove();
+					usedFrames -= frames(toEvict.getPageDataSize());
+					return;
 				}
-
 			}
 		}
-
+		// every page is dirty, or was loaded but not handed out yet
+		throw new DbException("No more pages");
 	}
 
 }
@@ -0,0 +1,494 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * BulkLoader converts a delimited text file into a heap file, like
+ * {@link HeapFileEncoder#convert(File, File, int, int, Type[], char)} but with
+ * several threads, for large inputs.
+ * <p>
+ * The input is split into chunks at line ends and memory-mapped. A first
+ * parallel pass counts the rows of each chunk, which fixes the page and slot
+ * of every row. A second pass parses each chunk straight from the mapping
+ * into page images at their final place, and writes runs of
+ * {@link #WRITE_BATCH} pages with one request each. Pages shared by two
+ * chunks are merged at the end, so the file is the same as the one
+ * HeapFileEncoder writes: rows in input order, every page but the last full.
+ * <p>
+ * Empty lines are skipped. Strings are trimmed and truncated to
+ * {@link Type#STRING_LEN} bytes; fields with a dictionary in the TupleDesc are
+ * stored as its codes; with several threads, new strings may get their codes
+ * in another order than the input's. A malformed line fails the load with an IOException
+ * giving its byte offset.
+ */
+public class BulkLoader {
+
+	/** The most bytes of input a chunk has, apart from its last line. */
+	static final int CHUNK_SIZE = 32 << 20;
+	/** The fewest bytes of input a chunk has, apart from the last chunk. */
+	static final int MIN_CHUNK_SIZE = 1 << 20;
+	/** The number of pages a worker writes with one request. */
+	static final int WRITE_BATCH = 256;
+
+	/** What a load did, and optionally the bounds of its int columns. */
+	public static class Result {
+		private final HeapFile file;
+		private final long rows;
+		private final int pages;
+		private final long inputBytes;
+		private final long nanos;
+		private final int[] min;
+		private final int[] max;
+
+		Result(HeapFile file, long rows, int pages, long inputBytes, long nanos, int[] min, int[] max) {
+			this.file = file;
+			this.rows = rows;
+			this.pages = pages;
+			this.inputBytes = inputBytes;
+			this.nanos = nanos;
+			this.min = min;
+			this.max = max;
+		}
+
+		/** @return the loaded table, not yet in the catalog */
+		public HeapFile getHeapFile() {
+			return file;
+		}
+
+		public long getRows() {
+			return rows;
+		}
+
+		public int getPages() {
+			return pages;
+		}
+
+		public long getInputBytes() {
+			return inputBytes;
+		}
+
+		public long getNanos() {
+			return nanos;
+		}
+
+		/** @return the input bytes loaded per second, in MB */
+		public double getMBPerSecond() {
+			return inputBytes / 1e6 / (nanos / 1e9);
+		}
+
+		/**
+		 * @return the smallest value of int column col
+		 * @throws IllegalStateException if statistics were not collected, or
+		 *                               the table is empty
+		 */
+		public int getMin(int col) {
+			checkStats(col);
+			return min[col];
+		}
+
+		/**
+		 * @return the largest value of int column col
+		 * @throws IllegalStateException if statistics were not collected, or
+		 *                               the table is empty
+		 */
+		public int getMax(int col) {
+			checkStats(col);
+			return max[col];
+		}
+
+		private void checkStats(int col) {
+			if (min == null || rows == 0 || file.getTupleDesc().getFieldType(col) != Type.INT_TYPE)
+				throw new IllegalStateException("no statistics for column " + col);
+		}
+
+		public String toString() {
+			return String.format("%d rows, %d pages, %.1f MB in %.2f s (%.1f MB/s)", rows, pages, inputBytes / 1e6,
+					nanos / 1e9, getMBPerSecond());
+		}
+	}
+
+	private BulkLoader() {
+	}
+
+	/**
+	 * Load inFile into outFile with one thread per processor, without
+	 * statistics.
+	 *
+	 * @see #load(File, File, TupleDesc, char, int, boolean)
+	 */
+	public static Result load(File inFile, File outFile, TupleDesc td, char fieldSeparator) throws IOException {
+		return load(inFile, outFile, td, fieldSeparator, Runtime.getRuntime().availableProcessors(), false);
+	}
+
+	/**
+	 * Load a delimited text file into a new heap file, replacing outFile.
+	 *
+	 * @param inFile         the text file, one row per line
+	 * @param outFile        the heap file to write
+	 * @param td             the schema of the rows
+	 * @param fieldSeparator the character between the fields of a row
+	 * @param threads        the number of threads to parse with
+	 * @param stats          whether to collect the bounds of the int columns
+	 * @throws IOException if a file cannot be read or written, or a line is
+	 *                     malformed
+	 */
+	public static Result load(File inFile, File outFile, TupleDesc td, char fieldSeparator, int threads,
+			boolean stats) throws IOException {
+		return load(inFile, outFile, td, fieldSeparator, threads, stats, BufferPool.getPageSize());
+	}
+
+	/**
+	 * Load inFile into a heap file with pages of pageSize bytes, to be opened
+	 * with {@link HeapFile#HeapFile(File, TupleDesc, AccessMode, int)}.
+	 *
+	 * @see #load(File, File, TupleDesc, char, int, boolean)
+	 */
+	public static Result load(File inFile, File outFile, TupleDesc td, char fieldSeparator, int threads,
+			boolean stats, int pageSize) throws IOException {
+		long start = System.nanoTime();
+		int tupleSize = td.getSize();
+		int perPage = (pageSize * 8) / (tupleSize * 8 + 1);
+		int headerBytes = (perPage + 7) / 8;
+		if (perPage < 1)
+			throw new IOException("tuples of " + tupleSize + " bytes do not fit on a page");
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+		try (FileChannel in = FileChannel.open(inFile.toPath(), StandardOpenOption.READ)) {
+			long size = in.size();
+			long[] bounds = chunkBounds(in, size, threads);
+			int numChunks = bounds.length - 1;
+			MappedByteBuffer[] maps = new MappedByteBuffer[numChunks];
+			for (int k = 0; k < numChunks; k++)
+				maps[k] = in.map(FileChannel.MapMode.READ_ONLY, bounds[k], bounds[k + 1] - bounds[k]);
+
+			// pass 1: rows per chunk
+			ArrayList<Future<Long>> counts = new ArrayList<Future<Long>>();
+			for (int k = 0; k < numChunks; k++) {
+				MappedByteBuffer map = maps[k];
+				counts.add(pool.submit(() -> countRows(map)));
+			}
+			long[] firstRow = new long[numChunks + 1];
+			for (int k = 0; k < numChunks; k++)
+				firstRow[k + 1] = firstRow[k] + get(counts.get(k));
+			long totalRows = firstRow[numChunks];
+			int numPages = (int) Math.max((totalRows + perPage - 1) / perPage, 1);
+
+			// the file is rewritten from scratch; so are its sidecars
+			FileHandleManager files = Database.getFileHandles();
+			files.close(outFile);
+			new FileOutputStream(outFile).close();
+			HeapFile hf = pageSize == BufferPool.getPageSize() ? new HeapFile(outFile, td)
+					: new HeapFile(outFile, td, AccessMode.STANDARD, pageSize);
+			hf.getFreeSpaceMapFile().delete();
+			hf.getZoneMapFile().delete();
+
+			// pass 2: parse and write
+			ConcurrentHashMap<Integer, byte[]> shared = new ConcurrentHashMap<Integer, byte[]>();
+			ArrayList<Future<int[][]>> parsed = new ArrayList<Future<int[][]>>();
+			for (int k = 0; k < numChunks; k++) {
+				Worker w = new Worker(outFile, td, fieldSeparator, maps[k], bounds[k], firstRow[k], firstRow[k + 1],
+						totalRows, pageSize, perPage, headerBytes, shared, stats);
+				parsed.add(pool.submit(w));
+			}
+			int[] min = null, max = null;
+			if (stats) {
+				min = new int[td.numFields()];
+				max = new int[td.numFields()];
+				Arrays.fill(min, Integer.MAX_VALUE);
+				Arrays.fill(max, Integer.MIN_VALUE);
+			}
+			for (Future<int[][]> f : parsed) {
+				int[][] bounds2 = get(f);
+				if (stats) {
+					for (int j = 0; j < min.length; j++) {
+						min[j] = Math.min(min[j], bounds2[0][j]);
+						max[j] = Math.max(max[j], bounds2[1][j]);
+					}
+				}
+			}
+			// pages whose rows come from more than one chunk; the chunks wrote
+			// disjoint slots and zeroes elsewhere
+			for (Map.Entry<Integer, byte[]> e : shared.entrySet())
+				files.write(outFile, ByteBuffer.wrap(e.getValue()), (long) e.getKey() * pageSize);
+			if (totalRows == 0)
+				files.write(outFile, ByteBuffer.wrap(new byte[pageSize]), 0);
+			return new Result(hf, totalRows, numPages, size, System.nanoTime() - start, min, max);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private static <T> T get(Future<T> f) throws IOException {
+		try {
+			return f.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("bulk load interrupted");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+	}
+
+	// offsets where chunks start, each just after a line end, and the end of
+	// the file
+	private static long[] chunkBounds(FileChannel in, long size, int threads) throws IOException {
+		long target = Math.max(MIN_CHUNK_SIZE, Math.min(CHUNK_SIZE, size / (Math.max(threads, 1) * 4L) + 1));
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		bounds.add(0L);
+		ByteBuffer buf = ByteBuffer.allocate(4096);
+		long pos = target;
+		while (pos < size) {
+			// find the next line end at or after pos
+			long next = -1;
+			while (next < 0 && pos < size) {
+				buf.clear();
+				int n = in.read(buf, pos);
+				if (n <= 0)
+					break;
+				for (int i = 0; i < n; i++) {
+					if (buf.get(i) == '\n') {
+						next = pos + i + 1;
+						break;
+					}
+				}
+				if (next < 0)
+					pos += n;
+			}
+			if (next < 0 || next >= size)
+				break;
+			bounds.add(next);
+			pos = next + target;
+		}
+		bounds.add(size);
+		long[] result = new long[bounds.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	// a row is a line with any byte but '\r'
+	private static long countRows(ByteBuffer map) {
+		long rows = 0;
+		boolean nonEmpty = false;
+		int end = map.limit();
+		for (int i = 0; i < end; i++) {
+			byte b = map.get(i);
+			if (b == '\n') {
+				if (nonEmpty)
+					rows++;
+				nonEmpty = false;
+			} else if (b != '\r') {
+				nonEmpty = true;
+			}
+		}
+		return nonEmpty ? rows + 1 : rows;
+	}
+
+	/**
+	 * Parses one chunk into the pages its rows go to, writing the pages that
+	 * only hold its rows and merging the others into shared.
+	 */
+	private static class Worker implements Callable<int[][]> {
+		private final File outFile;
+		private final TupleDesc td;
+		private final byte sep;
+		private final ByteBuffer map;
+		private final long chunkStart;
+		private final long firstRow;
+		private final long endRow;
+		private final long totalRows;
+		private final int perPage;
+		private final int headerBytes;
+		private final int tupleSize;
+		private final int pageSize;
+		private final ConcurrentHashMap<Integer, byte[]> shared;
+		private final int[] offsets;
+		private final int[] min;
+		private final int[] max;
+
+		// pages collected for the next write; batch[0] is page batchFirst
+		private final byte[] batch;
+		private int batchFirst = -1;
+		private int batchCount;
+
+		Worker(File outFile, TupleDesc td, char sep, ByteBuffer map, long chunkStart, long firstRow, long endRow,
+				long totalRows, int pageSize, int perPage, int headerBytes, ConcurrentHashMap<Integer, byte[]> shared,
+				boolean stats) {
+			this.outFile = outFile;
+			this.td = td;
+			this.sep = (byte) sep;
+			this.map = map;
+			this.chunkStart = chunkStart;
+			this.firstRow = firstRow;
+			this.endRow = endRow;
+			this.totalRows = totalRows;
+			this.perPage = perPage;
+			this.headerBytes = headerBytes;
+			this.tupleSize = td.getSize();
+			this.pageSize = pageSize;
+			this.shared = shared;
+			this.offsets = new int[td.numFields()];
+			for (int j = 0; j < offsets.length; j++)
+				offsets[j] = td.getFieldOffset(j);
+			this.min = new int[td.numFields()];
+			this.max = new int[td.numFields()];
+			Arrays.fill(min, Integer.MAX_VALUE);
+			Arrays.fill(max, Integer.MIN_VALUE);
+			this.batch = new byte[WRITE_BATCH * pageSize];
+		}
+
+		// whether all rows of page pgNo are in this chunk
+		private boolean ownsPage(int pgNo) {
+			long first = (long) pgNo * perPage;
+			long end = Math.min(first + perPage, totalRows);
+			return first >= firstRow && end <= endRow;
+		}
+
+		public int[][] call() throws IOException {
+			int end = map.limit();
+			long row = firstRow;
+			int page = -1;
+			// where the current page starts in batch
+			int base = 0;
+			int i = 0;
+			while (i < end) {
+				int lineEnd = i;
+				boolean nonEmpty = false;
+				while (lineEnd < end && map.get(lineEnd) != '\n') {
+					if (map.get(lineEnd) != '\r')
+						nonEmpty = true;
+					lineEnd++;
+				}
+				if (nonEmpty) {
+					int pgNo = (int) (row / perPage);
+					if (pgNo != page) {
+						if (page >= 0)
+							finishPage(page, base);
+						page = pgNo;
+						if (batchCount == WRITE_BATCH || (batchCount > 0 && batchFirst + batchCount != pgNo))
+							flushBatch();
+						base = batchCount * pageSize;
+					}
+					int slot = (int) (row % perPage);
+					batch[base + slot / 8] |= (byte) (1 << (slot % 8));
+					parseRow(i, lineEnd, base + headerBytes + slot * tupleSize);
+					row++;
+				}
+				i = lineEnd + 1;
+			}
+			if (page >= 0)
+				finishPage(page, base);
+			flushBatch();
+			return new int[][] { min, max };
+		}
+
+		// the page at base in batch is complete
+		private void finishPage(int pgNo, int base) {
+			if (ownsPage(pgNo)) {
+				if (batchCount == 0)
+					batchFirst = pgNo;
+				batchCount++;
+				return;
+			}
+			byte[] image = Arrays.copyOfRange(batch, base, base + pageSize);
+			Arrays.fill(batch, base, base + pageSize, (byte) 0);
+			shared.merge(pgNo, image, (a, b) -> {
+				for (int k = 0; k < a.length; k++)
+					a[k] |= b[k];
+				return a;
+			});
+		}
+
+		private void flushBatch() throws IOException {
+			if (batchCount == 0)
+				return;
+			int len = batchCount * pageSize;
+			Database.getFileHandles().write(outFile, ByteBuffer.wrap(batch, 0, len), (long) batchFirst * pageSize);
+			Arrays.fill(batch, 0, len, (byte) 0);
+			batchCount = 0;
+		}
+
+		private void parseRow(int start, int lineEnd, int out) throws IOException {
+			int pos = start;
+			for (int j = 0; j < offsets.length; j++) {
+				int fieldEnd = pos;
+				while (fieldEnd < lineEnd && map.get(fieldEnd) != sep)
+					fieldEnd++;
+				if (j < offsets.length - 1 ? fieldEnd >= lineEnd : fieldEnd < lineEnd)
+					throw malformed(start, "expected " + offsets.length + " fields");
+				int from = pos, to = fieldEnd;
+				while (from < to && isBlank(map.get(from)))
+					from++;
+				while (to > from && isBlank(map.get(to - 1)))
+					to--;
+				int at = out + offsets[j];
+				StringDictionary dict = td.getDictionary(j);
+				if (dict != null) {
+					byte[] bytes = new byte[Math.min(to - from, Type.STRING_LEN)];
+					map.get(from, bytes);
+					putInt(at, dict.encode(new String(bytes, StandardCharsets.ISO_8859_1)).getCode());
+				} else if (td.getFieldType(j) == Type.INT_TYPE) {
+					int v = parseInt(from, to, start);
+					putInt(at, v);
+					if (v < min[j])
+						min[j] = v;
+					if (v > max[j])
+						max[j] = v;
+				} else {
+					int len = Math.min(to - from, Type.STRING_LEN);
+					putInt(at, len);
+					map.get(from, batch, at + 4, len);
+				}
+				pos = fieldEnd + 1;
+			}
+		}
+
+		// what String.trim removes
+		private static boolean isBlank(byte b) {
+			return (b & 0xff) <= ' ';
+		}
+
+		private int parseInt(int from, int to, int lineStart) throws IOException {
+			boolean negative = false;
+			int i = from;
+			if (i < to && (map.get(i) == '-' || map.get(i) == '+')) {
+				negative = map.get(i) == '-';
+				i++;
+			}
+			if (i == to)
+				throw malformed(lineStart, "empty int field");
+			long v = 0;
+			for (; i < to; i++) {
+				int d = map.get(i) - '0';
+				if (d < 0 || d > 9)
+					throw malformed(lineStart, "bad int field");
+				v = v * 10 + d;
+				if (v > (long) Integer.MAX_VALUE + 1)
+					throw malformed(lineStart, "int field out of range");
+			}
+			v = negative ? -v : v;
+			if (v > Integer.MAX_VALUE)
+				throw malformed(lineStart, "int field out of range");
+			return (int) v;
+		}
+
+		private void putInt(int at, int v) {
+			batch[at] = (byte) (v >>> 24);
+			batch[at + 1] = (byte) (v >>> 16);
+			batch[at + 2] = (byte) (v >>> 8);
+			batch[at + 3] = (byte) v;
+		}
+
+		private IOException malformed(int lineStart, String why) {
+			return new IOException(why + " in the line at byte " + (chunkStart + lineStart));
+		}
+	}
+}
@@ -9,9 +9,13 @@ import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The Catalog keeps track of all available tables in the database and their
- * associated schemas. For now, this is a stub catalog that must be populated
- * with tables by a user program before it can be used -- eventually, this
- * should be converted to a catalog that reads a catalog table from disk.
+ * associated schemas. Tables are added by a user program with
+ * {@link #addTable}, from a text file with {@link #loadSchema}, or from a
+ * {@link SystemCatalog} file with {@link #open}. Only the system catalog is
+ * kept on disk, changed by {@link #createTable} and {@link #dropTable}.
+ * <p>
+ * The tables of a system catalog are opened on first use, so opening a
+ * catalog of many tables reads the catalog file and nothing else.
  * 
  * @Threadsafe
  */
@@ -22,9 +26,10 @@ public class Catalog {
 	public static class CataItem {
 
 		/**
-		 * file stores the table
+		 * file stores the table; null for a table of the system catalog that
+		 * was not used yet
 		 */
-		public DbFile file;
+		public volatile DbFile file;
 
 		/**
 		 * The primary field of the table
@@ -36,15 +41,37 @@ public class Catalog {
 		 */
 		public String name;
 
+		// how to open the table, for a table of the system catalog
+		SystemCatalog.Entry entry;
+		// the directory of its files, for a table of the system catalog
+		String baseFolder;
+
 		public CataItem(String name, DbFile file, String pkeyField) {
 			this.name = name;
 			this.file = file;
 			this.pkeyField = pkeyField;
 		}
 
+		CataItem(SystemCatalog.Entry entry, String baseFolder) {
+			this(entry.name, null, entry.pkeyField);
+			this.entry = entry;
+			this.baseFolder = baseFolder;
+		}
+
 	}
 
 	ConcurrentHashMap<Integer, CataItem> tables;
+	// ids of the tables, by name
+	ConcurrentHashMap<String, Integer> names;
+	// partitions of the partitioned tables, by id; not tables of their own
+	ConcurrentHashMap<Integer, DbFile> partitions;
+	// partitions of the tables of the system catalog not opened yet, to the
+	// id of their table
+	ConcurrentHashMap<Integer, Integer> unopened;
+	// the file of the system catalog, null for a catalog in memory only
+	private SystemCatalog system;
+	// the id of the next table of the system catalog
+	private int nextId = 1;
 
 	/**
 	 * Constructor. Creates a new, empty catalog.
@@ -52,6 +79,9 @@ public class Catalog {
 	public Catalog() {
 		// some code goes here
 		this.tables = new ConcurrentHashMap<>();
+		this.names = new ConcurrentHashMap<>();
+		this.partitions = new ConcurrentHashMap<>();
+		this.unopened = new ConcurrentHashMap<>();
 	}
 
 	/**
@@ -69,14 +99,49 @@ public class Catalog {
 	public void addTable(DbFile file, String name, String pkeyField) {
 		// some code goes here
 		if (name == null) throw new IllegalArgumentException("null name");
-		for (Map.Entry<Integer, CataItem> table : tables.entrySet()) {
-			if (name.equals(table.getValue().name)) {
-				tables.remove(table.getKey());
-				break;
+		put(new CataItem(name, file, pkeyField), file.getId());
+	}
+
+	// add a table under id, replacing the table of the same name or id
+	private synchronized void put(CataItem c, int id) {
+		Integer old = names.get(c.name);
+		if (old != null)
+			forget(tables.remove(old));
+		CataItem replaced = tables.put(id, c);
+		if (replaced != null) {
+			names.remove(replaced.name, id);
+			forget(replaced);
+		}
+		names.put(c.name, id);
+		if (c.file != null)
+			addPartitions(c.file);
+		else
+			for (int i = 0; i < c.entry.numPartitions(); i++)
+				unopened.put(id + 1 + i, id);
+	}
+
+	private void addPartitions(DbFile file) {
+		if (file instanceof PartitionedFile) {
+			PartitionedFile pf = (PartitionedFile) file;
+			for (int i = 0; i < pf.numPartitions(); i++) {
+				partitions.put(pf.getPartition(i).getId(), pf.getPartition(i));
+				unopened.remove(pf.getPartition(i).getId());
 			}
 		}
+	}
 
-		tables.put(file.getId(), new CataItem(name, file, pkeyField));
+	private void forget(CataItem c) {
+		if (c == null)
+			return;
+		DbFile file = c.file;
+		if (file instanceof PartitionedFile) {
+			PartitionedFile pf = (PartitionedFile) file;
+			for (int i = 0; i < pf.numPartitions(); i++)
+				partitions.remove(pf.getPartition(i).getId());
+		} else if (file == null) {
+			for (int i = 0; i < c.entry.numPartitions(); i++)
+				unopened.remove(c.entry.id + 1 + i);
+		}
 	}
 
 	public void addTable(DbFile file, String name) {
@@ -104,14 +169,10 @@ public class Catalog {
 		// some code goes here
 		if (name == null)
 			throw new NoSuchElementException("Null input");
-		for (Map.Entry<Integer, CataItem> table : tables.entrySet()) {
-			int id = table.getKey();
-			String n = table.getValue().name;
-
-			if (name.equals(n))
-				return id;
-		}
-		throw new NoSuchElementException("No such table");
+		Integer id = names.get(name);
+		if (id == null)
+			throw new NoSuchElementException("No such table");
+		return id;
 	}
 
 	/**
@@ -123,15 +184,12 @@ public class Catalog {
 	 */
 	public TupleDesc getTupleDesc(int tableid) throws NoSuchElementException {
 		// some code goes here
-		CataItem c = tables.get(tableid);
-		if (c == null)
-			throw new NoSuchElementException("No such table");
-		return c.file.getTupleDesc();
+		return getDatabaseFile(tableid).getTupleDesc();
 	}
 
 	/**
 	 * Returns the DbFile that can be used to read the contents of the specified
-	 * table.
+	 * table, or of the specified partition of a {@link PartitionedFile}.
 	 * 
 	 * @param tableid The id of the table, as specified by the DbFile.getId()
 	 *                function passed to addTable
@@ -139,9 +197,38 @@ public class Catalog {
 	public DbFile getDatabaseFile(int tableid) throws NoSuchElementException {
 		// some code goes here
 		CataItem c = tables.get(tableid);
-		if (c == null)
-			throw new NoSuchElementException("No such table");
-		return c.file;
+		if (c == null) {
+			DbFile partition = partitions.get(tableid);
+			if (partition == null) {
+				Integer table = unopened.get(tableid);
+				if (table != null) {
+					getDatabaseFile(table);
+					partition = partitions.get(tableid);
+				}
+			}
+			if (partition == null)
+				throw new NoSuchElementException("No such table");
+			return partition;
+		}
+		DbFile file = c.file;
+		return file != null ? file : open(c);
+	}
+
+	// open a table of the system catalog on first use
+	private DbFile open(CataItem c) {
+		synchronized (c) {
+			if (c.file == null) {
+				SystemCatalog.Entry e = c.entry;
+				try {
+					DbFile file = openTable(c.baseFolder, e.name, e.fields, e.types, e.dict, e.options, e.id);
+					addPartitions(file);
+					c.file = file;
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+			return c.file;
+		}
 	}
 
 	public String getPrimaryKey(int tableid) {
@@ -159,69 +246,323 @@ public class Catalog {
 
 	public String getTableName(int id) {
 		// some code goes here
-		return tables.get(id).name;
+		CataItem c = tables.get(id);
+		if (c == null)
+			throw new NoSuchElementException("No such table");
+		return c.name;
 	}
 
-	/** Delete all tables from the catalog */
-	public void clear() {
+	/**
+	 * Delete all tables from the catalog, and close the file of the system
+	 * catalog, leaving it as it is.
+	 */
+	public synchronized void clear() {
 		// some code goes here
 		tables.clear();
+		names.clear();
+		partitions.clear();
+		unopened.clear();
+		system = null;
+		nextId = 1;
+	}
+
+	/**
+	 * Add the tables of a system catalog file to the catalog, and keep the
+	 * tables created and dropped from now on in it. The file is created by the
+	 * first {@link #createTable} if it does not exist. The tables are opened
+	 * on first use.
+	 * <p>
+	 * Unlike the ids of files opened otherwise, the ids of the tables of a
+	 * system catalog are assigned by it and do not depend on the path of the
+	 * database, so pages logged under them can be recovered after the
+	 * database has moved.
+	 *
+	 * @throws IOException if the file cannot be read or is corrupt
+	 */
+	public synchronized void open(File catalogFile) throws IOException {
+		SystemCatalog sc = new SystemCatalog(catalogFile);
+		List<SystemCatalog.Entry> entries = sc.read();
+		system = sc;
+		String baseFolder = sc.getDirectory().getPath();
+		for (SystemCatalog.Entry e : entries) {
+			nextId = Math.max(nextId, e.nextId());
+			put(new CataItem(e, baseFolder), e.id);
+		}
+	}
+
+	/**
+	 * Add a table to the system catalog opened with {@link #open}, replacing
+	 * the table of the same name, and write the catalog file. The table is
+	 * stored in <tt>name.dat</tt> next to the catalog file, or for a
+	 * partitioned table in <tt>name.pi.dat</tt>, which are created empty if
+	 * they do not exist.
+	 *
+	 * @param td        the schema; string fields with a dictionary are stored
+	 *                  as codes of the dictionary in <tt>name.field.dict</tt>,
+	 *                  as with a <tt>dict</tt> field in {@link #loadSchema}
+	 * @param pkeyField the name of the primary key field, or ""
+	 * @param options   the table options of {@link #loadSchema}
+	 * @return the file of the new table
+	 * @throws IllegalStateException    if no system catalog is open
+	 * @throws IllegalArgumentException if the options are not valid, or a name
+	 *                                  or option is longer than
+	 *                                  {@link Type#STRING_LEN}
+	 */
+	public synchronized DbFile createTable(String name, TupleDesc td, String pkeyField, String... options)
+			throws IOException {
+		if (system == null)
+			throw new IllegalStateException("no system catalog is open");
+		String[] fields = new String[td.numFields()];
+		Type[] types = new Type[td.numFields()];
+		boolean[] dict = new boolean[td.numFields()];
+		for (int i = 0; i < fields.length; i++) {
+			fields[i] = td.getFieldName(i);
+			if (fields[i] == null)
+				throw new IllegalArgumentException("field " + i + " has no name");
+			types[i] = td.getFieldType(i);
+			dict[i] = td.getDictionary(i) != null;
+		}
+		List<String> opts = new ArrayList<String>(Arrays.asList(options));
+		int n = SystemCatalog.numPartitions(opts);
+		SystemCatalog.Entry e = new SystemCatalog.Entry(nextFreeId(n), name, pkeyField, fields, types, dict, opts);
+		String baseFolder = system.getDirectory().getPath();
+		DbFile file = openTable(baseFolder, name, fields, types, dict, opts, e.id);
+		system.add(e);
+		nextId = e.nextId();
+		for (int i = 0; i < Math.max(n, 1); i++)
+			new File(baseFolder + "/" + name + (n == 0 ? "" : ".p" + i) + ".dat").createNewFile();
+		CataItem c = new CataItem(e, baseFolder);
+		c.file = file;
+		put(c, e.id);
+		return file;
+	}
+
+	// the first id from which a table and its n partitions take no id in use
+	private int nextFreeId(int n) {
+		int id = nextId;
+		for (int i = 0; i <= n; i++) {
+			if (tables.containsKey(id + i) || partitions.containsKey(id + i) || unopened.containsKey(id + i)) {
+				id += i + 1;
+				i = -1;
+			}
+		}
+		return id;
+	}
+
+	/**
+	 * Remove a table from the system catalog and write the catalog file. The
+	 * files of the table are left as they are.
+	 *
+	 * @throws NoSuchElementException if the system catalog has no such table
+	 */
+	public synchronized void dropTable(String name) throws IOException {
+		SystemCatalog.Entry e = system == null ? null : system.remove(name);
+		if (e == null)
+			throw new NoSuchElementException("No such table");
+		Integer id = names.get(name);
+		if (id != null && tables.get(id).entry == e) {
+			names.remove(name);
+			forget(tables.remove(id));
+		}
 	}
 
 	/**
 	 * Reads the schema from a file and creates the appropriate tables in the
 	 * database.
+	 * <p>
+	 * Each line describes one table as
+	 * <tt>name (field type [pk] [dict], ...)</tt>, optionally followed by
+	 * options. A string field marked <tt>dict</tt> is stored as codes of a
+	 * {@link StringDictionary} kept in <tt>name.field.dict</tt>, which only
+	 * heap files support. The options are:
+	 * <ul>
+	 * <li><tt>mapped</tt> reads the table through a memory mapping, see
+	 * {@link AccessMode#MAPPED}
+	 * <li><tt>direct</tt> reads and writes the table bypassing the operating
+	 * system's page cache, see {@link AccessMode#DIRECT}
+	 * <li><tt>slotted</tt> stores the table as variable-length records in a
+	 * {@link SlottedFile}, e.g. as written by
+	 * {@link HeapFileEncoder#convertSlotted}
+	 * <li><tt>columnar</tt> opens the table as a read-only {@link ColumnFile},
+	 * e.g. as written by {@link ColumnFile#convert}
+	 * <li><tt>compressed</tt> stores the pages compressed in a
+	 * {@link CompressedHeapFile}, e.g. as written by
+	 * {@link CompressedHeapFile#convert}
+	 * <li><tt>pagesize=n</tt> gives the pages of a heap or compressed table n
+	 * bytes rather than {@link BufferPool#getPageSize()}, e.g. 65536 for a
+	 * table that is mostly scanned; the file must have been written so
+	 * <li><tt>hash:field:n</tt> splits the table into n partitions by the hash
+	 * of a field, and <tt>range:field:b1,b2,...</tt> into partitions by ranges
+	 * of an int field, see {@link PartitionedFile}; partition i is stored in
+	 * <tt>name.pi.dat</tt>, in the way the other options say
+	 * </ul>
 	 * 
 	 * @param catalogFile
+	 * @throws IOException              if the file or a table's dictionary
+	 *                                  cannot be read
+	 * @throws IllegalArgumentException if a line is not a valid table, with
+	 *                                  the line and the reason; the tables
+	 *                                  before it have been added
 	 */
-	public void loadSchema(String catalogFile) {
-		String line = "";
+	public void loadSchema(String catalogFile) throws IOException {
 		String baseFolder = new File(new File(catalogFile).getAbsolutePath()).getParent();
-		try {
-			BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
-
+		try (BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)))) {
+			String line;
 			while ((line = br.readLine()) != null) {
-				// assume line is of the format name (field type, field type, ...)
-				String name = line.substring(0, line.indexOf("(")).trim();
-				// System.out.println("TABLE NAME: " + name);
-				String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
-				String[] els = fields.split(",");
-				ArrayList<String> names = new ArrayList<String>();
-				ArrayList<Type> types = new ArrayList<Type>();
-				String primaryKey = "";
-				for (String e : els) {
-					String[] els2 = e.trim().split(" ");
-					names.add(els2[0].trim());
-					if (els2[1].trim().toLowerCase().equals("int"))
-						types.add(Type.INT_TYPE);
-					else if (els2[1].trim().toLowerCase().equals("string"))
-						types.add(Type.STRING_TYPE);
-					else {
-						System.out.println("Unknown type " + els2[1]);
-						System.exit(0);
-					}
-					if (els2.length == 3) {
-						if (els2[2].trim().equals("pk"))
-							primaryKey = els2[0].trim();
-						else {
-							System.out.println("Unknown annotation " + els2[2]);
-							System.exit(0);
-						}
-					}
+				try {
+					loadTable(baseFolder, line);
+				} catch (IndexOutOfBoundsException | IllegalArgumentException | NoSuchElementException e) {
+					throw new IllegalArgumentException("Invalid catalog entry : " + line
+							+ (e.getMessage() == null ? "" : " (" + e.getMessage() + ")"), e);
 				}
-				Type[] typeAr = types.toArray(new Type[0]);
-				String[] namesAr = names.toArray(new String[0]);
-				TupleDesc t = new TupleDesc(typeAr, namesAr);
-				HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
-				addTable(tabHf, name, primaryKey);
-				System.out.println("Added table : " + name + " with schema " + t);
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
-			System.exit(0);
-		} catch (IndexOutOfBoundsException e) {
-			System.out.println("Invalid catalog entry : " + line);
-			System.exit(0);
 		}
 	}
+
+	// add the table a line of a text schema describes
+	private void loadTable(String baseFolder, String line) throws IOException {
+		// assume line is of the format name (field type, field type, ...)
+		String name = line.substring(0, line.indexOf("(")).trim();
+		// System.out.println("TABLE NAME: " + name);
+		String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+		String[] els = fields.split(",");
+		ArrayList<String> names = new ArrayList<String>();
+		ArrayList<Type> types = new ArrayList<Type>();
+		ArrayList<String> dictFields = new ArrayList<String>();
+		String primaryKey = "";
+		for (String e : els) {
+			String[] els2 = e.trim().split(" ");
+			names.add(els2[0].trim());
+			if (els2[1].trim().toLowerCase().equals("int"))
+				types.add(Type.INT_TYPE);
+			else if (els2[1].trim().toLowerCase().equals("string"))
+				types.add(Type.STRING_TYPE);
+			else
+				throw new IllegalArgumentException("Unknown type " + els2[1]);
+			for (int a = 2; a < els2.length; a++) {
+				if (els2[a].trim().equals("pk"))
+					primaryKey = els2[0].trim();
+				else if (els2[a].trim().equals("dict") && types.get(types.size() - 1) == Type.STRING_TYPE)
+					dictFields.add(els2[0].trim());
+				else
+					throw new IllegalArgumentException("Unknown annotation " + els2[a]);
+			}
+		}
+		ArrayList<String> options = new ArrayList<String>();
+		for (String option : line.substring(line.indexOf(")") + 1).trim().split("\\s+")) {
+			if (!option.isEmpty())
+				options.add(option);
+		}
+		String[] namesAr = names.toArray(new String[0]);
+		boolean[] dict = new boolean[namesAr.length];
+		for (int i = 0; i < namesAr.length; i++)
+			dict[i] = dictFields.contains(namesAr[i]);
+		DbFile tabHf = openTable(baseFolder, name, namesAr, types.toArray(new Type[0]), dict, options, 0);
+		TupleDesc t = tabHf.getTupleDesc();
+		addTable(tabHf, name, primaryKey);
+		System.out.println("Added table : " + name + " with schema " + t);
+	}
+
+	/**
+	 * Open the files of a table of schema fields and types stored as options
+	 * say, in the syntax of {@link #loadSchema}.
+	 *
+	 * @param dict which string fields are stored as dictionary codes
+	 * @param id   the id to give the table, with id+1+i for partition i, or 0
+	 *             to keep the ids of the files
+	 * @throws IllegalArgumentException if the options are not valid for the
+	 *                                  table
+	 */
+	private static DbFile openTable(String baseFolder, String name, String[] fields, Type[] types, boolean[] dict,
+			List<String> options, int id) throws IOException {
+		AccessMode mode = AccessMode.STANDARD;
+		boolean slotted = false;
+		boolean columnar = false;
+		boolean compressed = false;
+		int pageSize = 0;
+		String partitioning = null;
+		for (String option : options) {
+			if (option.equalsIgnoreCase("mapped"))
+				mode = AccessMode.MAPPED;
+			else if (option.equalsIgnoreCase("direct"))
+				mode = AccessMode.DIRECT;
+			else if (option.equalsIgnoreCase("slotted"))
+				slotted = true;
+			else if (option.equalsIgnoreCase("columnar"))
+				columnar = true;
+			else if (option.equalsIgnoreCase("compressed"))
+				compressed = true;
+			else if (option.toLowerCase().startsWith("pagesize="))
+				pageSize = Integer.parseInt(option.substring("pagesize=".length()));
+			else if (option.startsWith("hash:") || option.startsWith("range:"))
+				partitioning = option;
+			else
+				throw new IllegalArgumentException("Unknown table option " + option);
+		}
+		TupleDesc t;
+		StringDictionary[] dicts = new StringDictionary[fields.length];
+		boolean anyDict = false;
+		for (int i = 0; i < fields.length; i++) {
+			if (dict[i]) {
+				dicts[i] = new StringDictionary(new File(baseFolder + "/" + name + "." + fields[i] + ".dict"));
+				anyDict = true;
+			}
+		}
+		if (!anyDict) {
+			t = new TupleDesc(types, fields);
+		} else {
+			if (slotted || columnar)
+				throw new IllegalArgumentException("Dictionary fields need a heap file: " + name);
+			t = new TupleDesc(types, fields, dicts);
+		}
+		if (pageSize != 0 && (slotted || columnar))
+			throw new IllegalArgumentException("Only heap files have their own page size: " + name);
+		if (partitioning == null)
+			return openFile(new File(baseFolder + "/" + name + ".dat"), t, mode, columnar, slotted, compressed, pageSize,
+					id);
+		String[] spec = partitioning.split(":");
+		int field = t.fieldNameToIndex(spec[1]);
+		String[] bounds = spec[2].split(",");
+		int n = spec[0].equals("hash") ? Integer.parseInt(spec[2]) : bounds.length + 1;
+		DbFile[] parts = new DbFile[n];
+		for (int i = 0; i < n; i++)
+			parts[i] = openFile(new File(baseFolder + "/" + name + ".p" + i + ".dat"), t, mode, columnar, slotted,
+					compressed, pageSize, id == 0 ? 0 : id + 1 + i);
+		PartitionedFile pf;
+		if (spec[0].equals("hash")) {
+			pf = PartitionedFile.byHash(t, field, parts);
+		} else {
+			int[] b = new int[bounds.length];
+			for (int i = 0; i < b.length; i++)
+				b[i] = Integer.parseInt(bounds[i].trim());
+			pf = PartitionedFile.byRange(t, field, b, parts);
+		}
+		if (id != 0)
+			pf.setId(id);
+		return pf;
+	}
+
+	// the file a table, or a partition of one, is stored in
+	private static DbFile openFile(File f, TupleDesc t, AccessMode mode, boolean columnar, boolean slotted,
+			boolean compressed, int pageSize, int id) {
+		if (columnar) {
+			ColumnFile cf = new ColumnFile(f, t, mode);
+			if (id != 0)
+				cf.setId(id);
+			return cf;
+		} else if (slotted) {
+			SlottedFile sf = new SlottedFile(f, t, mode);
+			if (id != 0)
+				sf.setId(id);
+			return sf;
+		}
+		HeapFile hf;
+		if (compressed)
+			hf = pageSize == 0 ? new CompressedHeapFile(f, t, mode) : new CompressedHeapFile(f, t, mode, pageSize);
+		else
+			hf = pageSize == 0 ? new HeapFile(f, t, mode) : new HeapFile(f, t, mode, pageSize);
+		if (id != 0)
+			hf.setId(id);
+		return hf;
+	}
 }
@@ -0,0 +1,426 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * ColumnFile is a read-only {@link DbFile} that stores each column of a table
+ * on its own, in segments of consecutive rows (see {@link ColumnSegmentPage}),
+ * so that a scan of a few columns reads only their pages, and a scan with a
+ * predicate on an int column skips the segments whose minimum and maximum
+ * show that no row can pass.
+ * <p>
+ * Page 0 of the file holds a magic number, the number of columns, rows and
+ * segments, and the page number where the segment directory starts. The
+ * directory follows the segment pages and lists for each segment its column,
+ * page, first row, number of rows, and for int columns its minimum and
+ * maximum. Files are written by {@link #convert}; tuples can be neither
+ * inserted nor deleted.
+ */
+public class ColumnFile implements DbFile {
+
+	private static final int MAGIC = 0x53444243;
+	private static final int DIRECTORY_ENTRY_SIZE = 24;
+
+	/** Where one segment is and what it holds. */
+	static class Segment {
+		final int column;
+		final int pageNo;
+		final int firstRow;
+		final int rowCount;
+		final int min;
+		final int max;
+
+		Segment(int column, int pageNo, int firstRow, int rowCount, int min, int max) {
+			this.column = column;
+			this.pageNo = pageNo;
+			this.firstRow = firstRow;
+			this.rowCount = rowCount;
+			this.min = min;
+			this.max = max;
+		}
+
+		int endRow() {
+			return firstRow + rowCount;
+		}
+	}
+
+	private final File f;
+	private final TupleDesc td;
+	private volatile int id;
+	private volatile AccessMode accessMode;
+	// read on first use
+	private int numRows;
+	private Segment[][] segments;
+
+	/**
+	 * Open a column file of the given schema.
+	 */
+	public ColumnFile(File f, TupleDesc td) {
+		this(f, td, AccessMode.STANDARD);
+	}
+
+	/**
+	 * Open a column file of the given schema, reading its pages the way mode
+	 * says.
+	 */
+	public ColumnFile(File f, TupleDesc td, AccessMode mode) {
+		this.f = f;
+		this.td = td;
+		this.id = f.getAbsoluteFile().hashCode();
+		this.accessMode = mode;
+	}
+
+	public AccessMode getAccessMode() {
+		return accessMode;
+	}
+
+	public void setAccessMode(AccessMode mode) {
+		this.accessMode = mode;
+	}
+
+	public File getFile() {
+		return f;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @see HeapFile#setId
+	 */
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	/**
+	 * @return the number of rows in the table
+	 */
+	public int getNumRows() throws DbException {
+		directory();
+		return numRows;
+	}
+
+	/**
+	 * @return the number of segments column col is stored in
+	 */
+	public int getNumSegments(int col) throws DbException {
+		return directory()[col].length;
+	}
+
+	public int numPages() {
+		try {
+			return (int) (Database.getFileHandles().length(f) / BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// segments by column, in row order
+	private synchronized Segment[][] directory() throws DbException {
+		if (segments != null)
+			return segments;
+		try {
+			FileHandleManager files = Database.getFileHandles();
+			ByteBuffer header = ByteBuffer.allocate(20);
+			if (files.read(f, header, 0) < 20 || header.getInt(0) != MAGIC)
+				throw new DbException("not a column file: " + f);
+			int numColumns = header.getInt(4);
+			if (numColumns != td.numFields())
+				throw new DbException("column file " + f + " has " + numColumns + " columns, schema has "
+						+ td.numFields());
+			int rows = header.getInt(8);
+			int numSegments = header.getInt(12);
+			int dirStart = header.getInt(16);
+			ByteBuffer dir = ByteBuffer.allocate(numSegments * DIRECTORY_ENTRY_SIZE);
+			files.read(f, dir, (long) dirStart * BufferPool.getPageSize());
+			dir.flip();
+			ArrayList<ArrayList<Segment>> byColumn = new ArrayList<ArrayList<Segment>>();
+			for (int c = 0; c < numColumns; c++)
+				byColumn.add(new ArrayList<Segment>());
+			for (int i = 0; i < numSegments; i++) {
+				Segment s = new Segment(dir.getInt(), dir.getInt(), dir.getInt(), dir.getInt(), dir.getInt(),
+						dir.getInt());
+				byColumn.get(s.column).add(s);
+			}
+			Segment[][] segs = new Segment[numColumns][];
+			for (int c = 0; c < numColumns; c++)
+				segs[c] = byColumn.get(c).toArray(new Segment[0]);
+			numRows = rows;
+			segments = segs;
+			return segments;
+		} catch (IOException e) {
+			throw new DbException("failed to read column file directory: " + e.getMessage());
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public Page readPage(PageId pid) {
+		if (pid.getTableId() != getId()) {
+			throw new IllegalArgumentException("Page not found in table!");
+		}
+		int pageNum = pid.getPageNumber();
+		if (pageNum < 1 || pageNum >= numPages()) {
+			throw new IllegalArgumentException("Page number is out of range!");
+		}
+		byte[] pageData = new byte[BufferPool.getPageSize()];
+		try {
+			Database.getFileHandles().read(f, ByteBuffer.wrap(pageData), (long) BufferPool.getPageSize() * pageNum,
+					accessMode);
+			return new ColumnSegmentPage(new HeapPageId(getId(), pageNum), pageData);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public void writePage(Page page) throws IOException {
+		throw new IOException("column files are read-only");
+	}
+
+	// see DbFile.java for javadocs
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t) throws DbException {
+		throw new DbException("column files are read-only; rebuild the file with ColumnFile.convert");
+	}
+
+	// see DbFile.java for javadocs
+	public Page deleteTuple(TransactionId tid, Tuple t) throws DbException {
+		throw new DbException("column files are read-only; rebuild the file with ColumnFile.convert");
+	}
+
+	// see DbFile.java for javadocs
+	public DbFileIterator iterator(TransactionId tid) {
+		int[] all = new int[td.numFields()];
+		for (int i = 0; i < all.length; i++)
+			all[i] = i;
+		return iterator(tid, all, null);
+	}
+
+	// see DbFile.java for javadocs
+	public DbFileIterator iterator(TransactionId tid, Predicate p) {
+		int[] all = new int[td.numFields()];
+		for (int i = 0; i < all.length; i++)
+			all[i] = i;
+		return iterator(tid, all, p);
+	}
+
+	/**
+	 * @return the schema of the tuples returned by
+	 *         {@link #iterator(TransactionId, int[], Predicate)} for the given
+	 *         columns
+	 */
+	public TupleDesc getTupleDesc(int[] columns) {
+		Type[] types = new Type[columns.length];
+		String[] names = new String[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			types[i] = td.getFieldType(columns[i]);
+			names[i] = td.getFieldName(columns[i]);
+		}
+		return new TupleDesc(types, names);
+	}
+
+	/**
+	 * Iterate over the given columns of the rows passing a predicate, reading
+	 * only the pages of those columns and of the predicate's column. Segments
+	 * of an int predicate column whose bounds show that no row can pass are
+	 * skipped without being read, along with the matching rows of the other
+	 * columns.
+	 *
+	 * @param columns the columns to return, in the order to return them
+	 * @param p       a predicate on a column of this file, or null
+	 * @return an iterator over tuples of {@link #getTupleDesc(int[])}
+	 */
+	public DbFileIterator iterator(TransactionId tid, int[] columns, Predicate p) {
+		TupleDesc out = getTupleDesc(columns);
+		return new AbstractDbFileIterator() {
+			private int row = -1;
+			private ColumnCursor[] cursors;
+			private ColumnCursor filter;
+
+			@Override
+			public void open() throws DbException, TransactionAbortedException {
+				directory();
+				cursors = new ColumnCursor[columns.length];
+				for (int i = 0; i < columns.length; i++)
+					cursors[i] = new ColumnCursor(tid, columns[i]);
+				filter = p == null ? null : new ColumnCursor(tid, p.getField());
+				row = 0;
+			}
+
+			@Override
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				if (row < 0)
+					return null;
+				while (row < numRows) {
+					if (filter != null) {
+						Segment s = filter.seek(row);
+						if (!p.mayMatch(s.min, s.max)) {
+							row = s.endRow();
+							continue;
+						}
+						if (!filter.get(row).compare(p.getOp(), p.getOperand())) {
+							row++;
+							continue;
+						}
+					}
+					Tuple t = new Tuple(out);
+					for (int i = 0; i < cursors.length; i++)
+						t.setField(i, cursors[i].get(row));
+					row++;
+					return t;
+				}
+				return null;
+			}
+
+			@Override
+			public void rewind() throws DbException, TransactionAbortedException {
+				close();
+				open();
+			}
+
+			@Override
+			public void close() {
+				super.close();
+				row = -1;
+				cursors = null;
+				filter = null;
+			}
+		};
+	}
+
+	/**
+	 * Reads the values of one column in increasing row order, decoding each
+	 * segment once and only when a row in it is asked for.
+	 */
+	private class ColumnCursor {
+		private final TransactionId tid;
+		private final int column;
+		private final Segment[] segs;
+		private int current = 0;
+		// values of segs[current], once decoded
+		private int[] ints;
+		private String[] strings;
+
+		ColumnCursor(TransactionId tid, int column) throws DbException {
+			this.tid = tid;
+			this.column = column;
+			this.segs = directory()[column];
+		}
+
+		/**
+		 * @return the segment holding row, which must not be before the row
+		 *         last asked for
+		 */
+		Segment seek(int row) {
+			int i = current;
+			while (segs[i].endRow() <= row)
+				i++;
+			if (i != current) {
+				current = i;
+				ints = null;
+				strings = null;
+			}
+			return segs[current];
+		}
+
+		Field get(int row) throws DbException, TransactionAbortedException {
+			Segment s = seek(row);
+			if (ints == null && strings == null) {
+				ColumnSegmentPage page = (ColumnSegmentPage) Database.getBufferPool().getPage(tid,
+						new HeapPageId(getId(), s.pageNo), Permissions.READ_ONLY);
+				if (td.getFieldType(column) == Type.INT_TYPE)
+					ints = page.decodeInts();
+				else
+					strings = page.decodeStrings();
+			}
+			if (ints != null)
+				return new IntField(ints[row - s.firstRow]);
+			return new StringField(strings[row - s.firstRow], Type.STRING_LEN);
+		}
+	}
+
+	/**
+	 * Write the rows of a table to a new column file, and return it. The
+	 * table is read in a transaction of its own; the new file is not added to
+	 * the catalog.
+	 *
+	 * @param source  the table to convert, e.g. a HeapFile
+	 * @param outFile the file to write
+	 */
+	public static ColumnFile convert(DbFile source, File outFile)
+			throws IOException, DbException, TransactionAbortedException {
+		TupleDesc td = source.getTupleDesc();
+		int pageSize = BufferPool.getPageSize();
+		ArrayList<Segment> written = new ArrayList<Segment>();
+		int rows = 0;
+		try (RandomAccessFile raf = new RandomAccessFile(outFile, "rw")) {
+			raf.setLength(0);
+			// page 0 is filled in at the end
+			raf.write(new byte[pageSize]);
+			int[] nextPage = { 1 };
+			ColumnSegmentPage.Builder[] builders = new ColumnSegmentPage.Builder[td.numFields()];
+			int[] firstRow = new int[td.numFields()];
+			for (int c = 0; c < builders.length; c++)
+				builders[c] = new ColumnSegmentPage.Builder(td.getFieldType(c), pageSize);
+
+			Transaction t = new Transaction();
+			t.start();
+			DbFileIterator it = source.iterator(t.getId());
+			try {
+				it.open();
+				while (it.hasNext()) {
+					Tuple tup = it.next();
+					for (int c = 0; c < builders.length; c++) {
+						if (!builders[c].add(tup.getField(c))) {
+							written.add(flush(raf, builders[c], c, firstRow[c], nextPage, pageSize));
+							firstRow[c] = rows;
+							builders[c] = new ColumnSegmentPage.Builder(td.getFieldType(c), pageSize);
+							builders[c].add(tup.getField(c));
+						}
+					}
+					rows++;
+				}
+				it.close();
+			} finally {
+				t.commit();
+			}
+			for (int c = 0; c < builders.length; c++) {
+				if (builders[c].size() > 0)
+					written.add(flush(raf, builders[c], c, firstRow[c], nextPage, pageSize));
+			}
+
+			ByteBuffer dir = ByteBuffer.allocate(written.size() * DIRECTORY_ENTRY_SIZE);
+			for (Segment s : written)
+				dir.putInt(s.column).putInt(s.pageNo).putInt(s.firstRow).putInt(s.rowCount).putInt(s.min)
+						.putInt(s.max);
+			raf.seek((long) nextPage[0] * pageSize);
+			raf.write(dir.array());
+			// keep the file a whole number of pages
+			int tail = (int) (raf.length() % pageSize);
+			if (tail != 0)
+				raf.write(new byte[pageSize - tail]);
+
+			ByteBuffer header = ByteBuffer.allocate(20);
+			header.putInt(MAGIC).putInt(td.numFields()).putInt(rows).putInt(written.size()).putInt(nextPage[0]);
+			raf.seek(0);
+			raf.write(header.array());
+		}
+		// the file was rewritten without going through the open handles
+		Database.getFileHandles().close(outFile);
+		return new ColumnFile(outFile, td);
+	}
+
+	private static Segment flush(RandomAccessFile raf, ColumnSegmentPage.Builder b, int column, int firstRow,
+			int[] nextPage, int pageSize) throws IOException {
+		int pageNo = nextPage[0]++;
+		raf.seek((long) pageNo * pageSize);
+		raf.write(b.build(column, firstRow, pageSize));
+		return new Segment(column, pageNo, firstRow, b.size(), b.min(), b.max());
+	}
+}
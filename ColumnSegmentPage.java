@@ -0,0 +1,375 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * ColumnSegmentPage holds one segment of a {@link ColumnFile}: the values of
+ * one column for a run of consecutive rows, in the most compact of these
+ * encodings:
+ * <ul>
+ * <li>{@link #PLAIN}: ints as 4 bytes each, strings as an unsigned short
+ * length followed by their bytes;
+ * <li>{@link #RLE} (ints): the number of runs, then a value and a repeat
+ * count per run;
+ * <li>{@link #BITPACK} (ints): the minimum and a bit width, then each value
+ * minus the minimum in that many bits;
+ * <li>{@link #DICT} (strings): the distinct strings of the segment, then the
+ * index of each value in them, bit-packed.
+ * </ul>
+ * The page starts with the column number, the first row, the number of rows
+ * and the encoding. Segment pages are written once by
+ * {@link ColumnFile#convert} and never change.
+ */
+public class ColumnSegmentPage implements Page {
+
+	public static final byte PLAIN = 0;
+	public static final byte RLE = 1;
+	public static final byte BITPACK = 2;
+	public static final byte DICT = 3;
+
+	static final int HEADER_SIZE = 13;
+
+	private final HeapPageId pid;
+	private final byte[] data;
+	private final int column;
+	private final int firstRow;
+	private final int rowCount;
+	private final byte encoding;
+
+	/**
+	 * Create a ColumnSegmentPage from a set of bytes of data read from disk.
+	 */
+	public ColumnSegmentPage(HeapPageId id, byte[] data) throws IOException {
+		this.pid = id;
+		this.data = data;
+		ByteBuffer buf = ByteBuffer.wrap(data);
+		this.column = buf.getInt();
+		this.firstRow = buf.getInt();
+		this.rowCount = buf.getInt();
+		this.encoding = buf.get();
+		if (rowCount < 0 || encoding < PLAIN || encoding > DICT)
+			throw new IOException("corrupt column segment page " + id.getPageNumber());
+	}
+
+	public HeapPageId getId() {
+		return pid;
+	}
+
+	public int getColumn() {
+		return column;
+	}
+
+	public int getFirstRow() {
+		return firstRow;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	public byte getEncoding() {
+		return encoding;
+	}
+
+	/**
+	 * @return the values of an int segment
+	 */
+	public int[] decodeInts() {
+		ByteBuffer buf = ByteBuffer.wrap(data, HEADER_SIZE, data.length - HEADER_SIZE);
+		int[] values = new int[rowCount];
+		switch (encoding) {
+		case PLAIN:
+			for (int i = 0; i < rowCount; i++)
+				values[i] = buf.getInt();
+			break;
+		case RLE:
+			int runs = buf.getInt();
+			for (int r = 0, i = 0; r < runs; r++) {
+				int v = buf.getInt();
+				int n = buf.getInt();
+				for (int end = i + n; i < end; i++)
+					values[i] = v;
+			}
+			break;
+		case BITPACK:
+			int min = buf.getInt();
+			int width = buf.get();
+			BitReader in = new BitReader(buf);
+			for (int i = 0; i < rowCount; i++)
+				values[i] = (int) (min + in.read(width));
+			break;
+		default:
+			throw new IllegalStateException("not an int segment");
+		}
+		return values;
+	}
+
+	/**
+	 * @return the values of a string segment
+	 */
+	public String[] decodeStrings() {
+		ByteBuffer buf = ByteBuffer.wrap(data, HEADER_SIZE, data.length - HEADER_SIZE);
+		String[] values = new String[rowCount];
+		switch (encoding) {
+		case PLAIN:
+			for (int i = 0; i < rowCount; i++)
+				values[i] = readString(buf);
+			break;
+		case DICT:
+			String[] dict = new String[buf.getInt()];
+			for (int d = 0; d < dict.length; d++)
+				dict[d] = readString(buf);
+			int width = buf.get();
+			BitReader in = new BitReader(buf);
+			for (int i = 0; i < rowCount; i++)
+				values[i] = dict[(int) in.read(width)];
+			break;
+		default:
+			throw new IllegalStateException("not a string segment");
+		}
+		return values;
+	}
+
+	private String readString(ByteBuffer buf) {
+		int len = buf.getChar();
+		String s = new String(data, buf.position(), len);
+		buf.position(buf.position() + len);
+		return s;
+	}
+
+	public byte[] getPageData() {
+		return data.clone();
+	}
+
+	/** Segment pages never change, so a page is its own before image. */
+	public ColumnSegmentPage getBeforeImage() {
+		return this;
+	}
+
+	public void setBeforeImage() {
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		if (dirty)
+			throw new UnsupportedOperationException("column segments are read-only");
+	}
+
+	public TransactionId isDirty() {
+		return null;
+	}
+
+	// number of bits needed to store every value from 0 to x
+	static int bitsFor(long x) {
+		return 64 - Long.numberOfLeadingZeros(x);
+	}
+
+	/** Reads values bit-packed by {@link BitWriter}, lowest bits first. */
+	private static class BitReader {
+		private final ByteBuffer buf;
+		private long acc;
+		private int bits;
+
+		BitReader(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		long read(int width) {
+			while (bits < width) {
+				acc |= (long) (buf.get() & 0xff) << bits;
+				bits += 8;
+			}
+			long v = width == 64 ? acc : acc & ((1L << width) - 1);
+			acc >>>= width;
+			bits -= width;
+			return v;
+		}
+	}
+
+	/** Packs values of a fixed bit width, lowest bits first. */
+	private static class BitWriter {
+		private final ByteBuffer buf;
+		private long acc;
+		private int bits;
+
+		BitWriter(ByteBuffer buf) {
+			this.buf = buf;
+		}
+
+		void write(long v, int width) {
+			acc |= v << bits;
+			bits += width;
+			while (bits >= 8) {
+				buf.put((byte) acc);
+				acc >>>= 8;
+				bits -= 8;
+			}
+		}
+
+		void flush() {
+			if (bits > 0)
+				buf.put((byte) acc);
+			acc = 0;
+			bits = 0;
+		}
+	}
+
+	/**
+	 * Collects the values of one column for a segment, keeping track of the
+	 * size of each encoding, so that values can be added until the next one
+	 * would no longer fit on a page in any of them.
+	 */
+	static class Builder {
+		private final Type type;
+		private final int capacity;
+		private int n;
+		// ints
+		private final ArrayList<Integer> ints = new ArrayList<Integer>();
+		private int min, max;
+		private int runs;
+		// strings
+		private final ArrayList<String> strings = new ArrayList<String>();
+		private int plainBytes;
+		private final HashMap<String, Integer> dict = new HashMap<String, Integer>();
+		private final ArrayList<String> dictOrder = new ArrayList<String>();
+		private int dictBytes;
+
+		/**
+		 * @param type     the type of the column
+		 * @param pageSize the size of the pages segments are written to
+		 */
+		Builder(Type type, int pageSize) {
+			this.type = type;
+			this.capacity = pageSize - HEADER_SIZE;
+		}
+
+		int size() {
+			return n;
+		}
+
+		int min() {
+			return min;
+		}
+
+		int max() {
+			return max;
+		}
+
+		private static int packedBytes(int count, int width) {
+			return (int) (((long) count * width + 7) / 8);
+		}
+
+		private int intSize(int count, int runs, int min, int max) {
+			int plain = 4 * count;
+			int rle = 4 + 8 * runs;
+			int packed = 5 + packedBytes(count, bitsFor((long) max - min));
+			return Math.min(plain, Math.min(rle, packed));
+		}
+
+		private int stringSize(int count, int plainBytes, int distinct, int dictBytes) {
+			int packed = 4 + dictBytes + 1 + packedBytes(count, bitsFor(Math.max(distinct - 1, 0)));
+			return Math.min(plainBytes, packed);
+		}
+
+		/**
+		 * Add the value of the next row, unless the segment would not fit on
+		 * a page any more.
+		 *
+		 * @return false if the segment is full and f was not added
+		 */
+		boolean add(Field f) {
+			if (type == Type.INT_TYPE) {
+				int v = ((IntField) f).getValue();
+				int newMin = n == 0 ? v : Math.min(min, v);
+				int newMax = n == 0 ? v : Math.max(max, v);
+				int newRuns = n == 0 || ints.get(n - 1) != v ? runs + 1 : runs;
+				if (intSize(n + 1, newRuns, newMin, newMax) > capacity)
+					return false;
+				ints.add(v);
+				min = newMin;
+				max = newMax;
+				runs = newRuns;
+			} else {
+				String s = ((StringField) f).getValue();
+				int len = 2 + s.length();
+				boolean known = dict.containsKey(s);
+				int distinct = dict.size() + (known ? 0 : 1);
+				int newDictBytes = dictBytes + (known ? 0 : len);
+				if (stringSize(n + 1, plainBytes + len, distinct, newDictBytes) > capacity)
+					return false;
+				strings.add(s);
+				plainBytes += len;
+				if (!known) {
+					dict.put(s, dictOrder.size());
+					dictOrder.add(s);
+					dictBytes = newDictBytes;
+				}
+			}
+			n++;
+			return true;
+		}
+
+		/**
+		 * @return the bytes of the page holding the values added so far
+		 */
+		byte[] build(int column, int firstRow, int pageSize) {
+			byte[] page = new byte[pageSize];
+			ByteBuffer buf = ByteBuffer.wrap(page);
+			buf.putInt(column).putInt(firstRow).putInt(n);
+			int encodingPos = buf.position();
+			buf.put(PLAIN);
+			if (type == Type.INT_TYPE) {
+				int width = bitsFor((long) max - min);
+				int plain = 4 * n, rle = 4 + 8 * runs, packed = 5 + packedBytes(n, width);
+				if (rle <= plain && rle <= packed) {
+					page[encodingPos] = RLE;
+					buf.putInt(runs);
+					for (int i = 0; i < n;) {
+						int v = ints.get(i);
+						int j = i;
+						while (j < n && ints.get(j) == v)
+							j++;
+						buf.putInt(v).putInt(j - i);
+						i = j;
+					}
+				} else if (packed < plain) {
+					page[encodingPos] = BITPACK;
+					buf.putInt(min).put((byte) width);
+					BitWriter out = new BitWriter(buf);
+					for (int v : ints)
+						out.write((long) v - min, width);
+					out.flush();
+				} else {
+					for (int v : ints)
+						buf.putInt(v);
+				}
+			} else {
+				if (stringSize(n, plainBytes, dict.size(), dictBytes) < plainBytes) {
+					page[encodingPos] = DICT;
+					buf.putInt(dictOrder.size());
+					for (String s : dictOrder)
+						putString(buf, s);
+					int width = bitsFor(Math.max(dictOrder.size() - 1, 0));
+					buf.put((byte) width);
+					BitWriter out = new BitWriter(buf);
+					for (String s : strings)
+						out.write(dict.get(s), width);
+					out.flush();
+				} else {
+					for (String s : strings)
+						putString(buf, s);
+				}
+			}
+			return page;
+		}
+
+		private static void putString(ByteBuffer buf, String s) {
+			buf.putChar((char) s.length());
+			// like DataOutputStream.writeBytes, keep the low byte of each char
+			for (int i = 0; i < s.length(); i++)
+				buf.put((byte) s.charAt(i));
+		}
+	}
+}
@@ -0,0 +1,321 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * CompressedHeapFile is a {@link HeapFile} whose pages are compressed with
+ * {@link PageCodec} on their way to disk and decompressed when read, so the
+ * BufferPool and everything above it see ordinary HeapPages. It suits large
+ * tables that are mostly scanned: empty slots and padded strings compress
+ * well, and fewer bytes are read per page.
+ * <p>
+ * Compressed pages are stored in the file in extents of whole
+ * {@link #GRANULE}s. A sidecar file holds the page-offset index: for each page
+ * the offset of its extent, the length of its compressed image, and the size
+ * of the extent. A length of a whole page means the page is stored
+ * uncompressed.
+ * <p>
+ * A page is never overwritten in place. Each image goes to a free extent, one
+ * left behind by an earlier write or else at the end of the file, and only
+ * then is the index entry switched to it and the old extent freed, so a crash
+ * leaves the entry pointing at a whole image, old or new. Free extents are
+ * found again as the gaps between the extents of the index when it is loaded.
+ */
+public class CompressedHeapFile extends HeapFile {
+
+	/** Extents are multiples of this many bytes. */
+	public static final int GRANULE = 128;
+	private static final int INDEX_ENTRY_SIZE = 16;
+
+	private final File indexFile;
+	// page-offset index, loaded on first use
+	private long[] offsets;
+	private int[] lengths;
+	private int[] extents;
+	private int numPages = -1;
+	// where the next new extent goes
+	private long end;
+	// offset -> size of the free extents before end, neighbours merged
+	private final TreeMap<Long, Integer> free = new TreeMap<Long, Integer>();
+	// readers of a page image against writers that may overwrite it in place
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Constructs a compressed heap file backed by the specified file.
+	 */
+	public CompressedHeapFile(File f, TupleDesc td) {
+		this(f, td, AccessMode.STANDARD);
+	}
+
+	/**
+	 * Constructs a compressed heap file backed by the specified file, reading
+	 * its pages the way mode says.
+	 */
+	public CompressedHeapFile(File f, TupleDesc td, AccessMode mode) {
+		super(f, td, mode);
+		this.indexFile = new File(f.getPath() + ".idx");
+	}
+
+	/**
+	 * Constructs a compressed heap file whose pages are pageSize bytes before
+	 * compression.
+	 *
+	 * @see HeapFile#HeapFile(File, TupleDesc, AccessMode, int)
+	 */
+	public CompressedHeapFile(File f, TupleDesc td, AccessMode mode, int pageSize) {
+		super(f, td, mode, pageSize);
+		this.indexFile = new File(f.getPath() + ".idx");
+	}
+
+	/**
+	 * @return the sidecar file the page-offset index is kept in
+	 */
+	public File getIndexFile() {
+		return indexFile;
+	}
+
+	// caller holds lock
+	private void loadIndex() throws IOException {
+		if (numPages >= 0)
+			return;
+		FileHandleManager files = Database.getFileHandles();
+		int n = (int) (files.length(indexFile) / INDEX_ENTRY_SIZE);
+		ByteBuffer buf = ByteBuffer.allocate(n * INDEX_ENTRY_SIZE);
+		files.read(indexFile, buf, 0);
+		buf.flip();
+		offsets = new long[Math.max(n, 16)];
+		lengths = new int[offsets.length];
+		extents = new int[offsets.length];
+		end = 0;
+		for (int i = 0; i < n; i++) {
+			offsets[i] = buf.getLong();
+			lengths[i] = buf.getInt();
+			extents[i] = buf.getInt();
+		}
+		numPages = n;
+		findFree();
+	}
+
+	// caller holds lock; recompute end and the free extents from the index
+	private void findFree() {
+		free.clear();
+		Integer[] order = new Integer[numPages];
+		for (int i = 0; i < numPages; i++)
+			order[i] = i;
+		Arrays.sort(order, (a, b) -> Long.compare(offsets[a], offsets[b]));
+		end = 0;
+		for (int i : order) {
+			if (offsets[i] > end)
+				release(end, (int) (offsets[i] - end));
+			end = Math.max(end, offsets[i] + extents[i]);
+		}
+	}
+
+	// caller holds lock; an extent of size bytes, the first free one that fits
+	private long allocate(int size) {
+		for (Map.Entry<Long, Integer> e : free.entrySet()) {
+			long offset = e.getKey();
+			int extent = e.getValue();
+			if (extent < size)
+				continue;
+			free.remove(offset);
+			if (extent > size)
+				free.put(offset + size, extent - size);
+			return offset;
+		}
+		long offset = end;
+		end += size;
+		return offset;
+	}
+
+	// caller holds lock
+	private void release(long offset, int size) {
+		Map.Entry<Long, Integer> before = free.floorEntry(offset);
+		if (before != null && before.getKey() + before.getValue() == offset) {
+			offset = before.getKey();
+			size += free.remove(offset);
+		}
+		Integer after = free.remove(offset + size);
+		if (after != null)
+			size += after;
+		if (offset + size == end)
+			end = offset;
+		else
+			free.put(offset, size);
+	}
+
+	@Override
+	public int numPages() {
+		lock.readLock().lock();
+		try {
+			if (numPages >= 0)
+				return numPages;
+		} finally {
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try {
+			loadIndex();
+			return numPages;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of bytes the pages take in the file, without the
+	 *         index
+	 */
+	public long compressedBytes() throws IOException {
+		return Database.getFileHandles().length(getFile());
+	}
+
+	@Override
+	protected void readPageBytes(int pgNo, byte[] dst) throws IOException {
+		if (pgNo >= numPages()) {
+			Arrays.fill(dst, (byte) 0);
+			return;
+		}
+		lock.readLock().lock();
+		try {
+			int len = lengths[pgNo];
+			byte[] stored = len == dst.length ? dst : new byte[len];
+			ByteBuffer buf = ByteBuffer.wrap(stored);
+			Database.getFileHandles().read(getFile(), buf, offsets[pgNo], getAccessMode());
+			if (buf.hasRemaining())
+				throw new IOException("compressed page " + pgNo + " is truncated");
+			if (stored != dst) {
+				try {
+					if (PageCodec.decompress(stored, 0, len, dst) != dst.length)
+						throw new IOException("compressed page " + pgNo + " has the wrong size");
+				} catch (IllegalArgumentException e) {
+					throw new IOException("page " + pgNo + ": " + e.getMessage());
+				}
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	// compressed pages differ in length, so they are read one by one
+	@Override
+	protected void readPageRun(int first, byte[][] pages) throws IOException {
+		for (int k = 0; k < pages.length; k++)
+			readPageBytes(first + k, pages[k]);
+	}
+
+	// each page is compressed on its own
+	@Override
+	protected void writePageRun(int first, ByteBuffer src) throws IOException {
+		int pageSize = getPageSize();
+		for (int k = 0; src.hasRemaining(); k++) {
+			ByteBuffer page = src.slice();
+			page.limit(Math.min(pageSize, page.remaining()));
+			writePageBytes(first + k, page);
+			src.position(src.position() + page.limit());
+		}
+	}
+
+	@Override
+	protected void writePageBytes(int pgNo, ByteBuffer src) throws IOException {
+		byte[] page = new byte[src.remaining()];
+		src.get(page);
+		byte[] compressed = new byte[PageCodec.maxCompressedLength(page.length)];
+		int len = PageCodec.compress(page, page.length, compressed);
+		if (len >= page.length) {
+			compressed = page;
+			len = page.length;
+		}
+		lock.writeLock().lock();
+		try {
+			loadIndex();
+			if (pgNo > numPages)
+				throw new IOException("page " + pgNo + " written before page " + numPages);
+			if (pgNo == numPages && numPages == offsets.length) {
+				offsets = Arrays.copyOf(offsets, numPages * 2);
+				lengths = Arrays.copyOf(lengths, numPages * 2);
+				extents = Arrays.copyOf(extents, numPages * 2);
+			}
+			int extent = (len + GRANULE - 1) / GRANULE * GRANULE;
+			long offset = allocate(extent);
+			FileHandleManager files = Database.getFileHandles();
+			try {
+				files.write(getFile(), ByteBuffer.wrap(compressed, 0, len), offset);
+				// the page is in place before the index points at it
+				ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+				entry.putLong(offset).putInt(len).putInt(extent).flip();
+				files.write(indexFile, entry, (long) pgNo * INDEX_ENTRY_SIZE);
+			} catch (IOException e) {
+				// the index may or may not point at the new extent; work it out
+				// again from the file
+				numPages = -1;
+				throw e;
+			}
+			// only now may the old image be overwritten
+			if (pgNo < numPages)
+				release(offsets[pgNo], extents[pgNo]);
+			offsets[pgNo] = offset;
+			lengths[pgNo] = len;
+			extents[pgNo] = extent;
+			if (pgNo == numPages)
+				numPages++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	// the extents of the pages cut off are freed as far as they end the file
+	@Override
+	protected void truncatePages(int n) throws IOException {
+		lock.writeLock().lock();
+		try {
+			loadIndex();
+			if (n >= numPages)
+				return;
+			FileHandleManager files = Database.getFileHandles();
+			// the index stops pointing at the pages before their extents go
+			files.truncate(indexFile, (long) n * INDEX_ENTRY_SIZE);
+			numPages = n;
+			findFree();
+			files.truncate(getFile(), end);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Write the pages of a heap file to a new compressed heap file, and return
+	 * it. The pages are copied as they are on disk, so the source should have
+	 * no dirty pages in the buffer pool; the new file is not added to the
+	 * catalog.
+	 *
+	 * @param source  the table to compress
+	 * @param outFile the file to write; its index goes next to it
+	 */
+	public static CompressedHeapFile convert(HeapFile source, File outFile) throws IOException {
+		CompressedHeapFile out = new CompressedHeapFile(outFile, source.getTupleDesc(), source.getAccessMode(),
+				source.getPageSize());
+		FileHandleManager files = Database.getFileHandles();
+		files.close(outFile);
+		files.close(out.indexFile);
+		new FileOutputStream(outFile).close();
+		new FileOutputStream(out.indexFile).close();
+		// the pages are written around writePage, so sidecars of an older file
+		// would be stale
+		out.getFreeSpaceMapFile().delete();
+		out.getZoneMapFile().delete();
+		byte[] page = new byte[source.getPageSize()];
+		for (int i = 0; i < source.numPages(); i++) {
+			source.readPageBytes(i, page);
+			out.writePageBytes(i, ByteBuffer.wrap(page));
+		}
+		return out;
+	}
+}
@@ -20,9 +20,11 @@ public class Database {
 
     private final static String LOGFILENAME = "log";
     private final LogFile _logfile;
+    private final FileHandleManager _filehandles;
 
     private Database() {
         _catalog = new Catalog();
+        _filehandles = new FileHandleManager();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
         LogFile tmp = null;
         try {
@@ -45,6 +47,11 @@ public class Database {
         return _instance.get()._bufferpool;
     }
 
+    /** Return the open file handles of the static Database instance */
+    public static FileHandleManager getFileHandles() {
+        return _instance.get()._filehandles;
+    }
+
     /** Return the catalog of the static Database instance */
     public static Catalog getCatalog() {
         return _instance.get()._catalog;
@@ -75,7 +82,7 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        _instance.getAndSet(new Database())._filehandles.closeAll();
     }
 
 }
\ No newline at end of file
@@ -19,6 +19,21 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Read the specified pages from disk, e.g. the pages a scan is about to
+     * visit. Files that can read runs of adjacent pages with one request
+     * override this; by default the pages are read one by one.
+     *
+     * @return the pages, in the order of pids
+     * @throws IllegalArgumentException if a page does not exist in this file.
+     */
+    public default List<Page> readPages(List<PageId> pids) {
+        ArrayList<Page> pages = new ArrayList<Page>(pids.size());
+        for (PageId pid : pids)
+            pages.add(readPage(pid));
+        return pages;
+    }
+
     /**
      * Push the specified page to disk.
      *
@@ -43,6 +58,25 @@ public interface DbFile {
     public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
         throws DbException, IOException, TransactionAbortedException;
 
+    /**
+     * Inserts a batch of tuples to the file on behalf of transaction, as
+     * {@link #insertTuple} does for one. Files that can fill pages in bulk
+     * override this; by default the tuples are inserted one by one.
+     *
+     * @param tid The transaction performing the update
+     * @param tuples The tuples to add, in order
+     * @return The pages that were modified, each once
+     * @throws DbException if a tuple cannot be added
+     * @throws IOException if the needed file can't be read/written
+     */
+    public default ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+        throws DbException, IOException, TransactionAbortedException {
+        LinkedHashSet<Page> modified = new LinkedHashSet<Page>();
+        for (Tuple t : tuples)
+            modified.addAll(insertTuple(tid, t));
+        return new ArrayList<Page>(modified);
+    }
+
     /**
      * Removes the specified tuple from the file on behalf of the specified
      * transaction.
@@ -68,6 +102,41 @@ public interface DbFile {
      */
     public DbFileIterator iterator(TransactionId tid);
 
+    /**
+     * Returns an iterator over the tuples of this DbFile that pass p, or over
+     * all of them if p is null. Files that can skip tuples without reading
+     * them override this; by default every tuple is read and tested.
+     */
+    public default DbFileIterator iterator(TransactionId tid, Predicate p) {
+        DbFileIterator all = iterator(tid);
+        if (p == null)
+            return all;
+        return new AbstractDbFileIterator() {
+            public void open() throws DbException, TransactionAbortedException {
+                all.open();
+            }
+
+            public void rewind() throws DbException, TransactionAbortedException {
+                close();
+                all.rewind();
+            }
+
+            public void close() {
+                super.close();
+                all.close();
+            }
+
+            protected Tuple readNext() throws DbException, TransactionAbortedException {
+                while (all.hasNext()) {
+                    Tuple t = all.next();
+                    if (p.filter(t))
+                        return t;
+                }
+                return null;
+            }
+        };
+    }
+
     /**
      * Returns a unique ID used to identify this DbFile in the Catalog. This id
      * can be used to look up the table via {@link Catalog#getDatabaseFile} and
@@ -88,4 +157,13 @@ public interface DbFile {
      * @return TupleDesc of this DbFile.
      */
     public TupleDesc getTupleDesc();
+
+    /**
+     * Returns the size of the pages of this file. Files whose pages are
+     * larger than the default, e.g. to scan with fewer reads, override this.
+     * @see BufferPool#getPageSize()
+     */
+    public default int getPageSize() {
+        return BufferPool.getPageSize();
+    }
 }
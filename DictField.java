@@ -0,0 +1,66 @@
+package simpledb;
+
+/**
+ * A StringField whose value is in a {@link StringDictionary}, together with
+ * its code there. Fields of the same dictionary are compared for equality by
+ * their codes; anything else compares the strings, as for a StringField.
+ * <p>
+ * A DictField is serialized as its string, so it can be stored in any string
+ * column; a HeapFile writes just the code to a column that has the same
+ * dictionary. Each dictionary keeps one DictField per code, so decoding a
+ * field allocates nothing.
+ */
+public class DictField extends StringField {
+
+	private static final long serialVersionUID = 1L;
+
+	private final transient StringDictionary dict;
+	private final int code;
+
+	DictField(StringDictionary dict, int code, String s) {
+		super(s, Type.STRING_LEN);
+		this.dict = dict;
+		this.code = code;
+	}
+
+	/**
+	 * @return the dictionary this field is in
+	 */
+	public StringDictionary getDictionary() {
+		return dict;
+	}
+
+	/**
+	 * @return the code of this field in its dictionary, or -1 if the string
+	 *         is not in it
+	 */
+	public int getCode() {
+		return code;
+	}
+
+	// whether field is of the same dictionary, so that comparing the codes is
+	// enough; two strings that are not in it are compared as strings
+	private boolean sameDictionary(Field field) {
+		return dict != null && field instanceof DictField && ((DictField) field).dict == dict
+				&& (code >= 0 || ((DictField) field).code >= 0);
+	}
+
+	public boolean equals(Object field) {
+		if (sameDictionary((Field) field))
+			return ((DictField) field).code == code;
+		return super.equals(field);
+	}
+
+	// hashCode stays the one of the string, which the dictionary's String
+	// caches, so that DictFields and StringFields of the same value mix
+
+	public boolean compare(Predicate.Op op, Field val) {
+		if (sameDictionary(val)) {
+			if (op == Predicate.Op.EQUALS)
+				return ((DictField) val).code == code;
+			if (op == Predicate.Op.NOT_EQUALS)
+				return ((DictField) val).code != code;
+		}
+		return super.compare(op, val);
+	}
+}
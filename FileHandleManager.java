@@ -0,0 +1,425 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * FileHandleManager keeps one open {@link FileChannel} per database file, so
+ * that page I/O does not open and close the file for every page. All reads and
+ * writes are positional, so concurrent readers of one file never contend for a
+ * shared file pointer. The length of each file is tracked in memory and grows
+ * with the writes made through the manager.
+ * <p>
+ * Files read in {@link AccessMode#MAPPED} mode are also mapped read-only into
+ * memory. The mapping covers the file as long as it was when mapped and is
+ * replaced by a longer one when a read goes past its end; files too large for a
+ * single mapping are read through the channel.
+ * <p>
+ * Files accessed in {@link AccessMode#DIRECT} mode get a second channel,
+ * opened with O_DIRECT, that bypasses the operating system's page cache. Such
+ * I/O must cover whole file-system blocks from and into aligned memory: reads
+ * fetch the blocks covering the range asked for into an aligned buffer and copy
+ * the range out, and writes of whole blocks go through an aligned buffer; other
+ * writes go through the page cache as usual. Where the file system does not
+ * support O_DIRECT, DIRECT is the same as STANDARD.
+ * <p>
+ * A file changed behind the manager's back (e.g. rewritten by an encoder) must
+ * be {@link #close(File) closed} afterwards so that its length is read again.
+ */
+public class FileHandleManager {
+
+	private static class Handle {
+		final FileChannel channel;
+		final AtomicLong length;
+		// read-only mapping of the file, for MAPPED reads
+		volatile MappedByteBuffer map;
+		// scatter reads go through the channel's position, which they share
+		final Object positionLock = new Object();
+		// the file opened for direct I/O, for DIRECT access; null until tried,
+		// and also if the file system does not support it
+		volatile FileChannel direct;
+		volatile boolean directTried;
+		int blockSize;
+
+		Handle(FileChannel channel) throws IOException {
+			this.channel = channel;
+			this.length = new AtomicLong(channel.size());
+		}
+	}
+
+	// absolute file -> its open channel
+	private final ConcurrentHashMap<File, Handle> handles;
+	// aligned memory for direct I/O, per thread
+	private static final ThreadLocal<ByteBuffer> directBuffer = new ThreadLocal<ByteBuffer>();
+
+	public FileHandleManager() {
+		this.handles = new ConcurrentHashMap<>();
+	}
+
+	private Handle handle(File f) throws IOException {
+		File key = f.getAbsoluteFile();
+		Handle h = handles.get(key);
+		if (h != null)
+			return h;
+		synchronized (this) {
+			h = handles.get(key);
+			if (h == null) {
+				h = new Handle(FileChannel.open(key.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE));
+				handles.put(key, h);
+			}
+			return h;
+		}
+	}
+
+	// a channel is closed for every thread when one of its users is interrupted
+	// during I/O; drop it so that the next caller opens a new one
+	private void dropClosed(File f, Handle h) {
+		handles.remove(f.getAbsoluteFile(), h);
+	}
+
+	/**
+	 * Read from f at position until dst is full or the end of the file is
+	 * reached.
+	 *
+	 * @return the number of bytes read, or -1 if position is at or past the end
+	 *         of the file
+	 */
+	public int read(File f, ByteBuffer dst, long position) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			Handle h = handle(f);
+			int start = dst.position();
+			try {
+				while (dst.hasRemaining()) {
+					int n = h.channel.read(dst, position + dst.position() - start);
+					if (n < 0)
+						break;
+				}
+				int read = dst.position() - start;
+				return read == 0 && position >= h.length.get() ? -1 : read;
+			} catch (ClosedChannelException e) {
+				dropClosed(f, h);
+				dst.position(start);
+				if (attempt > 0 || Thread.currentThread().isInterrupted())
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Read from f at position until dst is full or the end of the file is
+	 * reached, the way the given access mode says.
+	 *
+	 * @return the number of bytes read, or -1 if position is at or past the end
+	 *         of the file
+	 */
+	public int read(File f, ByteBuffer dst, long position, AccessMode mode) throws IOException {
+		if (mode == AccessMode.DIRECT) {
+			long n = readDirect(f, new ByteBuffer[] { dst }, position, dst.remaining());
+			if (n != Long.MIN_VALUE)
+				return (int) n;
+		}
+		if (mode == AccessMode.MAPPED) {
+			MappedByteBuffer map = mapping(f, position + dst.remaining());
+			if (map != null) {
+				int n = (int) Math.min(dst.remaining(), map.capacity() - position);
+				if (n <= 0)
+					return -1;
+				dst.put(map.slice((int) position, n));
+				return n;
+			}
+		}
+		return read(f, dst, position);
+	}
+
+	/**
+	 * Read from f at position into dsts, one after the other, until they are
+	 * all full or the end of the file is reached, with as few system calls as
+	 * possible (a scatter read), the way the given access mode says.
+	 *
+	 * @return the number of bytes read, or -1 if position is at or past the end
+	 *         of the file
+	 */
+	public long read(File f, ByteBuffer[] dsts, long position, AccessMode mode) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer dst : dsts)
+			remaining += dst.remaining();
+		if (mode == AccessMode.DIRECT) {
+			long n = readDirect(f, dsts, position, remaining);
+			if (n != Long.MIN_VALUE)
+				return n;
+		}
+		if (mode == AccessMode.MAPPED) {
+			MappedByteBuffer map = mapping(f, position + remaining);
+			if (map != null) {
+				long pos = position;
+				for (ByteBuffer dst : dsts) {
+					int n = (int) Math.min(dst.remaining(), map.capacity() - pos);
+					if (n <= 0)
+						break;
+					dst.put(map.slice((int) pos, n));
+					pos += n;
+				}
+				return pos == position && remaining > 0 ? -1 : pos - position;
+			}
+		}
+		for (int attempt = 0;; attempt++) {
+			Handle h = handle(f);
+			int[] starts = new int[dsts.length];
+			for (int i = 0; i < dsts.length; i++)
+				starts[i] = dsts[i].position();
+			try {
+				long read = 0;
+				synchronized (h.positionLock) {
+					h.channel.position(position);
+					while (read < remaining) {
+						long n = h.channel.read(dsts);
+						if (n < 0)
+							break;
+						read += n;
+					}
+				}
+				return read == 0 && remaining > 0 && position >= h.length.get() ? -1 : read;
+			} catch (ClosedChannelException e) {
+				dropClosed(f, h);
+				for (int i = 0; i < dsts.length; i++)
+					dsts[i].position(starts[i]);
+				if (attempt > 0 || Thread.currentThread().isInterrupted())
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * @return the channel of f for direct I/O, opening it on first use, or null
+	 *         if the file system does not support direct I/O
+	 */
+	private FileChannel direct(Handle h, File f) {
+		if (h.directTried)
+			return h.direct;
+		synchronized (h) {
+			if (!h.directTried) {
+				try {
+					Path p = f.getAbsoluteFile().toPath();
+					h.blockSize = (int) Files.getFileStore(p).getBlockSize();
+					h.direct = FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE,
+							ExtendedOpenOption.DIRECT);
+				} catch (IOException | UnsupportedOperationException e) {
+					h.direct = null;
+				}
+				h.directTried = true;
+			}
+			return h.direct;
+		}
+	}
+
+	// like dropClosed, for the direct channel
+	private void dropDirect(Handle h, FileChannel ch) {
+		synchronized (h) {
+			if (h.direct == ch) {
+				h.direct = null;
+				h.directTried = false;
+			}
+		}
+	}
+
+	/**
+	 * @return this thread's aligned buffer, cleared, with size bytes remaining;
+	 *         size must be a multiple of align
+	 */
+	private static ByteBuffer alignedBuffer(int size, int align) {
+		ByteBuffer b = directBuffer.get();
+		if (b == null || b.capacity() < size || b.alignmentOffset(0, align) != 0) {
+			b = ByteBuffer.allocateDirect(size + align).alignedSlice(align);
+			directBuffer.set(b);
+		}
+		b.clear().limit(size);
+		return b;
+	}
+
+	/**
+	 * Read len bytes of f from position on into dsts, one after the other,
+	 * through the direct channel.
+	 *
+	 * @return the number of bytes read, -1 if position is at or past the end
+	 *         of the file, or Long.MIN_VALUE if f cannot be read that way
+	 */
+	private long readDirect(File f, ByteBuffer[] dsts, long position, long len) throws IOException {
+		Handle h = handle(f);
+		FileChannel ch = direct(h, f);
+		int align = h.blockSize;
+		if (ch == null || len > Integer.MAX_VALUE - 2 * align)
+			return Long.MIN_VALUE;
+		long start = position / align * align;
+		long end = (position + len + align - 1) / align * align;
+		ByteBuffer buf = alignedBuffer((int) (end - start), align);
+		try {
+			while (buf.hasRemaining()) {
+				int n = ch.read(buf, start + buf.position());
+				// the file ends part way through a block
+				if (n <= 0 || buf.position() % align != 0)
+					break;
+			}
+		} catch (ClosedChannelException e) {
+			dropDirect(h, ch);
+			return Long.MIN_VALUE;
+		}
+		buf.flip();
+		int off = (int) (position - start);
+		long read = 0;
+		for (ByteBuffer dst : dsts) {
+			int n = Math.min(dst.remaining(), buf.limit() - off);
+			if (n <= 0)
+				break;
+			dst.put(buf.slice(off, n));
+			off += n;
+			read += n;
+		}
+		return read == 0 && len > 0 && position >= h.length.get() ? -1 : read;
+	}
+
+	/**
+	 * @return a mapping of f covering at least its first end bytes, or as much
+	 *         of them as the file has; null if f is too large to map
+	 */
+	private MappedByteBuffer mapping(File f, long end) throws IOException {
+		Handle h = handle(f);
+		MappedByteBuffer map = h.map;
+		long length = h.length.get();
+		if (map != null && (map.capacity() >= end || map.capacity() == length))
+			return map;
+		if (length > Integer.MAX_VALUE)
+			return null;
+		synchronized (h) {
+			map = h.map;
+			if (map == null || map.capacity() < Math.min(end, length)) {
+				map = h.channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+				h.map = map;
+			}
+			return map;
+		}
+	}
+
+	/**
+	 * Write all of src to f at position, growing the file if needed.
+	 */
+	public void write(File f, ByteBuffer src, long position) throws IOException {
+		for (int attempt = 0;; attempt++) {
+			Handle h = handle(f);
+			int start = src.position();
+			try {
+				while (src.hasRemaining()) {
+					h.channel.write(src, position + src.position() - start);
+				}
+				long end = position + src.position() - start;
+				h.length.accumulateAndGet(end, Math::max);
+				return;
+			} catch (ClosedChannelException e) {
+				dropClosed(f, h);
+				src.position(start);
+				if (attempt > 0 || Thread.currentThread().isInterrupted())
+					throw e;
+			}
+		}
+	}
+
+	/**
+	 * Write all of src to f at position, growing the file if needed, the way
+	 * the given access mode says.
+	 */
+	public void write(File f, ByteBuffer src, long position, AccessMode mode) throws IOException {
+		if (mode == AccessMode.DIRECT) {
+			Handle h = handle(f);
+			FileChannel ch = direct(h, f);
+			int len = src.remaining();
+			if (ch != null && position % h.blockSize == 0 && len % h.blockSize == 0) {
+				ByteBuffer buf = alignedBuffer(len, h.blockSize);
+				buf.put(src.duplicate()).flip();
+				try {
+					while (buf.hasRemaining())
+						ch.write(buf, position + buf.position());
+					src.position(src.limit());
+					h.length.accumulateAndGet(position + len, Math::max);
+					return;
+				} catch (ClosedChannelException e) {
+					dropDirect(h, ch);
+				}
+			}
+		}
+		write(f, src, position);
+	}
+
+	/**
+	 * Write all of src at the end of f. Concurrent appends each get their own
+	 * range of the file.
+	 *
+	 * @return the position src was written at
+	 */
+	public long append(File f, ByteBuffer src) throws IOException {
+		long position = handle(f).length.getAndAdd(src.remaining());
+		write(f, src, position);
+		return position;
+	}
+
+	/**
+	 * Cut f down to its first size bytes. The mapping of f, if any, is dropped,
+	 * and the next MAPPED read maps the shorter file.
+	 */
+	public void truncate(File f, long size) throws IOException {
+		Handle h = handle(f);
+		synchronized (h) {
+			h.channel.truncate(size);
+			h.length.set(size);
+			h.map = null;
+		}
+	}
+
+	/**
+	 * @return the length of f in bytes, without asking the file system
+	 */
+	public long length(File f) throws IOException {
+		return handle(f).length.get();
+	}
+
+	/**
+	 * Force the writes made to f so far to disk.
+	 */
+	public void force(File f) throws IOException {
+		handle(f).channel.force(false);
+	}
+
+	/**
+	 * Close the handle of f; the next access opens it again.
+	 */
+	public void close(File f) {
+		Handle h = handles.remove(f.getAbsoluteFile());
+		if (h != null) {
+			try {
+				h.channel.close();
+				if (h.direct != null)
+					h.direct.close();
+			} catch (IOException e) {
+				// nothing to do about it
+			}
+		}
+	}
+
+	/**
+	 * Close all handles.
+	 */
+	public void closeAll() {
+		for (File f : handles.keySet())
+			close(f);
+	}
+}
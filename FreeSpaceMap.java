@@ -0,0 +1,188 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap keeps one bit per page of a {@link HeapFile} telling whether the
+ * page has an empty slot, so that an insert can go straight to a page with room
+ * instead of reading every page of the table.
+ * <p>
+ * The map is only a hint: an insert checks the page it picks and moves on if
+ * the page turns out to be full. It is stored in a sidecar file next to the
+ * table (a 4-byte count of the pages it covers, then the bitmap) and written
+ * whenever the table writes a page, in an order that never leaves a page with
+ * room marked as full on disk:
+ * <ul>
+ * <li>a page written with room is marked free before the page goes to disk;
+ * <li>a page written full is marked full after the page is on disk.
+ * </ul>
+ * After a crash the sidecar may therefore only claim room on pages that are
+ * full, which costs an insert a wasted look. A missing or unreadable sidecar, or
+ * one covering more pages than the table has, is rebuilt by scanning the table.
+ * Pages past the end of the sidecar count as free.
+ */
+public class FreeSpaceMap {
+
+	private static final int HEADER_SIZE = 4;
+
+	private final File file;
+	// pages believed to have room, including changes not committed yet
+	private final BitSet free;
+	// the bits as they are in the sidecar file
+	private final BitSet persisted;
+	// number of pages the sidecar covers
+	private int covered;
+
+	private FreeSpaceMap(File file) {
+		this.file = file;
+		this.free = new BitSet();
+		this.persisted = new BitSet();
+		this.covered = 0;
+	}
+
+	/**
+	 * Load the free-space map of a heap file from its sidecar, or rebuild it
+	 * from the pages on disk if the sidecar is missing or does not match.
+	 *
+	 * @param sidecar the file the map is kept in
+	 * @param hf      the heap file the map describes
+	 */
+	static FreeSpaceMap open(File sidecar, HeapFile hf) throws IOException {
+		FreeSpaceMap m = new FreeSpaceMap(sidecar);
+		if (!m.load(hf.numPages()))
+			m.rebuild(hf);
+		return m;
+	}
+
+	private boolean load(int numPages) {
+		if (!file.exists())
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int pages = in.readInt();
+			if (pages < 0 || pages > numPages)
+				return false;
+			byte[] bits = new byte[(pages + 7) / 8];
+			in.readFully(bits);
+			BitSet b = BitSet.valueOf(bits);
+			persisted.or(b);
+			free.or(b);
+			// unknown pages are worth a look
+			free.set(pages, numPages);
+			covered = pages;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Recompute the map from the pages of hf on disk and rewrite the sidecar.
+	 */
+	synchronized void rebuild(HeapFile hf) throws IOException {
+		free.clear();
+		persisted.clear();
+		covered = hf.numPages();
+		for (int i = 0; i < covered; i++) {
+			HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+			if (p.getNumEmptySlots() > 0) {
+				free.set(i);
+				persisted.set(i);
+			}
+		}
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(covered);
+			byte[] bits = persisted.toByteArray();
+			out.write(bits);
+			out.write(new byte[(covered + 7) / 8 - bits.length]);
+		}
+		Database.getFileHandles().close(file);
+	}
+
+	/**
+	 * @return the first page at or after from that may have room, or -1
+	 */
+	public synchronized int nextFree(int from) {
+		return free.nextSetBit(from);
+	}
+
+	/** Note that a page got an empty slot, e.g. by a delete. */
+	public synchronized void markFree(int pgNo) {
+		free.set(pgNo);
+	}
+
+	/** Note that a page has no empty slot left. */
+	public synchronized void markFull(int pgNo) {
+		free.clear(pgNo);
+	}
+
+	/**
+	 * Called right before page pgNo is written to the table.
+	 *
+	 * @param hasRoom whether the page being written has an empty slot
+	 */
+	synchronized void beforeWrite(int pgNo, boolean hasRoom) throws IOException {
+		if (hasRoom)
+			persist(pgNo, true);
+	}
+
+	/**
+	 * Called right after page pgNo was written to the table.
+	 *
+	 * @param hasRoom whether the page written has an empty slot
+	 */
+	synchronized void afterWrite(int pgNo, boolean hasRoom) throws IOException {
+		if (!hasRoom)
+			persist(pgNo, false);
+		if (hasRoom)
+			free.set(pgNo);
+		else
+			free.clear(pgNo);
+	}
+
+	/**
+	 * Note that the table is being cut down to its first n pages. Called before
+	 * the table is truncated, so that the sidecar never covers pages the table
+	 * does not have.
+	 */
+	synchronized void truncate(int n) throws IOException {
+		free.clear(n, Integer.MAX_VALUE);
+		persisted.clear(n, Integer.MAX_VALUE);
+		if (n < covered) {
+			covered = n;
+			Database.getFileHandles().write(file, ByteBuffer.allocate(HEADER_SIZE).putInt(covered).flip(), 0);
+		}
+	}
+
+	private void persist(int pgNo, boolean hasRoom) throws IOException {
+		if (persisted.get(pgNo) == hasRoom && pgNo < covered)
+			return;
+		persisted.set(pgNo, hasRoom);
+		FileHandleManager files = Database.getFileHandles();
+		if (pgNo >= covered) {
+			// pages between the old end and pgNo are unknown; mark them free
+			persisted.set(covered, pgNo);
+			int first = covered / 8;
+			ByteBuffer bits = ByteBuffer.allocate(pgNo / 8 - first + 1);
+			for (int b = first; b <= pgNo / 8; b++)
+				bits.put((byte) bitsOf(b));
+			bits.flip();
+			files.write(file, bits, HEADER_SIZE + first);
+			covered = pgNo + 1;
+			files.write(file, ByteBuffer.allocate(HEADER_SIZE).putInt(covered).flip(), 0);
+		} else {
+			files.write(file, ByteBuffer.wrap(new byte[] { (byte) bitsOf(pgNo / 8) }), HEADER_SIZE + pgNo / 8);
+		}
+	}
+
+	// the byte of the sidecar bitmap holding pages 8*b .. 8*b+7
+	private int bitsOf(int b) {
+		int v = 0;
+		for (int i = 0; i < 8; i++) {
+			if (persisted.get(b * 8 + i))
+				v |= 1 << i;
+		}
+		return v;
+	}
+}
@@ -1,6 +1,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -15,8 +16,28 @@ import java.util.*;
  */
 public class HeapFile implements DbFile {
 
+	// per-thread buffer pages are serialized into on their way to disk; direct,
+	// so that the channel does not copy it once more
+	private static final ThreadLocal<ByteBuffer> writeBuffer = new ThreadLocal<ByteBuffer>();
+
+	/** The most pages {@link #readPages} reads with one request. */
+	public static final int MAX_RUN = 64;
+	/** The number of pages a scan asks the buffer pool for at a time. */
+	public static final int READ_AHEAD = 16;
+	/** The default most empty pages the file grows by at a time. */
+	public static final int EXTENT_PAGES = 64;
+
 	private final File f;
 	private final TupleDesc td;
+	private volatile int id;
+	// pages with empty slots; loaded on first use
+	private FreeSpaceMap freeSpace;
+	// summaries of the values on each page; loaded on first use
+	private ZoneMap zoneMap;
+	private volatile AccessMode accessMode;
+	private volatile int extentPages = EXTENT_PAGES;
+	// 0 for the buffer pool's page size
+	private final int pageSize;
 
 	/**
 	 * Constructs a heap file backed by the specified file.
@@ -24,9 +45,60 @@ public class HeapFile implements DbFile {
 	 * @param f the file that stores the on-disk backing store for this heap file.
 	 */
 	public HeapFile(File f, TupleDesc td) {
+		this(f, td, AccessMode.STANDARD);
+	}
+
+	/**
+	 * Constructs a heap file backed by the specified file, reading its pages
+	 * the way mode says.
+	 */
+	public HeapFile(File f, TupleDesc td, AccessMode mode) {
 		// some code goes here
 		this.f = f;
 		this.td = td;
+		this.id = f.getAbsoluteFile().hashCode();
+		this.accessMode = mode;
+		this.pageSize = 0;
+	}
+
+	/**
+	 * Constructs a heap file whose pages are pageSize bytes rather than
+	 * {@link BufferPool#getPageSize()}. Large pages suit tables that are mostly
+	 * scanned: a scan makes fewer, larger reads, and the zone map and free space
+	 * map have fewer entries. Small pages suit tables updated a row at a time,
+	 * as a page is the unit of locking, logging and caching. The file must have
+	 * been written with the same page size.
+	 */
+	public HeapFile(File f, TupleDesc td, AccessMode mode, int pageSize) {
+		if (pageSize < td.getSize() + 1)
+			throw new IllegalArgumentException("page size " + pageSize + " holds no tuple");
+		this.f = f;
+		this.td = td;
+		this.id = f.getAbsoluteFile().hashCode();
+		this.accessMode = mode;
+		this.pageSize = pageSize;
+	}
+
+	public AccessMode getAccessMode() {
+		return accessMode;
+	}
+
+	public void setAccessMode(AccessMode mode) {
+		this.accessMode = mode;
+	}
+
+	public int getExtentPages() {
+		return extentPages;
+	}
+
+	/**
+	 * Set the most empty pages the file grows by at a time. A file smaller than
+	 * that grows by its own size, so small tables stay small.
+	 */
+	public void setExtentPages(int n) {
+		if (n < 1)
+			throw new IllegalArgumentException("extent of " + n + " pages");
+		this.extentPages = n;
 	}
 
 	/**
@@ -50,7 +122,16 @@ public class HeapFile implements DbFile {
 	 */
 	public int getId() {
 		// some code goes here
-		return f.getAbsoluteFile().hashCode();
+		return id;
+	}
+
+	/**
+	 * Give the file the id the system catalog assigned it, which unlike the
+	 * default does not depend on the path the database is mounted at. Call
+	 * before the file is added to the catalog.
+	 */
+	public void setId(int id) {
+		this.id = id;
 	}
 
 	/**
@@ -63,6 +144,10 @@ public class HeapFile implements DbFile {
 		return td;
 	}
 
+	public int getPageSize() {
+		return pageSize == 0 ? BufferPool.getPageSize() : pageSize;
+	}
+
 	// see DbFile.java for javadocs
 	public Page readPage(PageId pid) {
 		// some code goes here
@@ -74,43 +159,177 @@ public class HeapFile implements DbFile {
 			throw new IllegalArgumentException("Page number is out of range!");
 		}
 
-		byte[] pageData = HeapPage.createEmptyPageData();
+		byte[] pageData = HeapPage.createEmptyPageData(getPageSize());
 
 		try {
-			RandomAccessFile raf = new RandomAccessFile(f, "r");
-			try {
-				raf.seek(BufferPool.getPageSize() * pageNum);
-				raf.read(pageData, 0, BufferPool.getPageSize());
-				return new HeapPage(new HeapPageId(getId(), pageNum), pageData);
-			} finally {
-				raf.close();
+			readPageBytes(pageNum, pageData);
+			return new HeapPage(new HeapPageId(getId(), pageNum), pageData);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Reads the pages sorted by page number, with one scatter read per run of
+	 * up to {@link #MAX_RUN} adjacent pages.
+	 */
+	@Override
+	public List<Page> readPages(List<PageId> pids) {
+		int n = pids.size();
+		int numPages = numPages();
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			PageId pid = pids.get(i);
+			if (pid.getTableId() != getId()) {
+				throw new IllegalArgumentException("Page not found in table!");
+			}
+			if (pid.getPageNumber() < 0 || pid.getPageNumber() > numPages) {
+				throw new IllegalArgumentException("Page number is out of range!");
+			}
+			order[i] = i;
+		}
+		Arrays.sort(order, (a, b) -> Integer.compare(pids.get(a).getPageNumber(), pids.get(b).getPageNumber()));
+
+		Page[] pages = new Page[n];
+		try {
+			for (int i = 0; i < n;) {
+				int first = pids.get(order[i]).getPageNumber();
+				int j = i + 1;
+				while (j < n && j - i < MAX_RUN && pids.get(order[j]).getPageNumber() == first + (j - i))
+					j++;
+				byte[][] run = new byte[j - i][];
+				for (int k = 0; k < run.length; k++)
+					run[k] = HeapPage.createEmptyPageData(getPageSize());
+				readPageRun(first, run);
+				for (int k = 0; k < run.length; k++)
+					pages[order[i + k]] = new HeapPage(new HeapPageId(getId(), first + k), run[k]);
+				i = j;
 			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		return Arrays.asList(pages);
+	}
+
+	/**
+	 * Read the images of the pages from page first on into pages, one page
+	 * each, with a single scatter read; pages past the end of the file read as
+	 * zeroes.
+	 */
+	protected void readPageRun(int first, byte[][] pages) throws IOException {
+		ByteBuffer[] bufs = new ByteBuffer[pages.length];
+		for (int k = 0; k < pages.length; k++)
+			bufs[k] = ByteBuffer.wrap(pages[k]);
+		Database.getFileHandles().read(f, bufs, (long) getPageSize() * first, accessMode);
+	}
+
+	/**
+	 * Read the image of page pgNo into dst, which is a page long; a page past
+	 * the end of the file reads as zeroes.
+	 */
+	protected void readPageBytes(int pgNo, byte[] dst) throws IOException {
+		Database.getFileHandles().read(f, ByteBuffer.wrap(dst), (long) getPageSize() * pgNo, accessMode);
+	}
+
+	/**
+	 * Write the image of page pgNo, the remaining bytes of src, to disk.
+	 */
+	protected void writePageBytes(int pgNo, ByteBuffer src) throws IOException {
+		Database.getFileHandles().write(f, src, (long) pgNo * getPageSize(), accessMode);
+	}
+
+	/**
+	 * Write the images of the pages from page first on, the remaining bytes of
+	 * src, to disk with a single write.
+	 */
+	protected void writePageRun(int first, ByteBuffer src) throws IOException {
+		writePageBytes(first, src);
 	}
 
 	// see DbFile.java for javadocs
 	public void writePage(Page page) throws IOException {
 		// some code goes here
 		// not necessary for lab1
-		byte[] pdata = page.getPageData();
-		int offset = page.getId().getPageNumber() * BufferPool.getPageSize();
-		try {
-			RandomAccessFile raf = new RandomAccessFile(f, "rw");
-			raf.seek(offset);
-			raf.write(pdata, 0, BufferPool.getPageSize());
-			raf.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+		int pgNo = page.getId().getPageNumber();
+		boolean hasRoom = ((HeapPage) page).getNumEmptySlots() > 0;
+		int size = getPageSize();
+		ByteBuffer buf = writeBuffer.get();
+		if (buf == null || buf.capacity() < size) {
+			buf = ByteBuffer.allocateDirect(size);
+			writeBuffer.set(buf);
 		}
+		buf.clear();
+		page.writePageData(buf);
+		buf.flip();
+		FreeSpaceMap fsm = freeSpace();
+		ZoneMap zones = zoneMap();
+		long[] summary = zones.summarize((HeapPage) page);
+		fsm.beforeWrite(pgNo, hasRoom);
+		zones.beforeWrite(pgNo, summary);
+		// the sidecars only take the page's new state once it is on disk
+		writePageBytes(pgNo, buf);
+		fsm.afterWrite(pgNo, hasRoom);
+		zones.afterWrite(pgNo, summary);
+	}
+
+	/**
+	 * @return the sidecar file the free-space map of this table is kept in
+	 */
+	public File getFreeSpaceMapFile() {
+		return new File(f.getPath() + ".fsm");
+	}
+
+	private synchronized FreeSpaceMap freeSpace() throws IOException {
+		if (freeSpace == null) {
+			freeSpace = FreeSpaceMap.open(getFreeSpaceMapFile(), this);
+		}
+		return freeSpace;
+	}
+
+	/**
+	 * Called when page p was read back from disk because the transaction that
+	 * dirtied it aborted. An insert of that transaction may have marked the
+	 * page full; offer its room again.
+	 */
+	void restored(HeapPage p) throws IOException {
+		if (p.getNumEmptySlots() > 0)
+			freeSpace().markFree(p.getId().getPageNumber());
+	}
+
+	/**
+	 * @return the sidecar file the zone map of this table is kept in
+	 */
+	public File getZoneMapFile() {
+		return new File(f.getPath() + ".zm");
+	}
+
+	/**
+	 * @return the summaries of the values on the pages of this table
+	 */
+	public synchronized ZoneMap zoneMap() throws IOException {
+		if (zoneMap == null) {
+			zoneMap = ZoneMap.open(getZoneMapFile(), this);
+		}
+		return zoneMap;
+	}
+
+	/**
+	 * Recompute the free-space map from the pages on disk, e.g. after the table
+	 * file was changed behind the database's back.
+	 */
+	public void rebuildFreeSpaceMap() throws IOException {
+		freeSpace().rebuild(this);
 	}
 
 	/**
 	 * Returns the number of pages in this HeapFile.
 	 */
 	public int numPages() {
-		return (int) (this.f.length() / BufferPool.getPageSize());
+		try {
+			return (int) (Database.getFileHandles().length(f) / getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	// see DbFile.java for javadocs
@@ -119,38 +338,248 @@ public class HeapFile implements DbFile {
 		// some code goes here
 		// return null;
 		// not necessary for lab1
-		ArrayList<Page> emptyPages = new ArrayList<Page>();
 		ArrayList<Page> updatedPages = new ArrayList<Page>();
-		try {
-			for (int i = 0; i < this.numPages(); i++) {
+		BufferPool pool = Database.getBufferPool();
+		FreeSpaceMap fsm = freeSpace();
+		// go straight to the pages the free-space map says have room
+		HeapPage hp = null;
+		int from = 0;
+		while (hp == null) {
+			for (int i = fsm.nextFree(from); i >= 0 && i < this.numPages(); i = fsm.nextFree(i + 1)) {
 				HeapPageId pid = new HeapPageId(this.getId(), i);
-				HeapPage hp = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
-				if (hp.getNumEmptySlots() > 0) {
-					emptyPages.add(hp);
+				boolean held = pool.holdsLock(tid, pid);
+				HeapPage candidate = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+				if (i >= this.numPages()) {
+					// cut off by a vacuum while we waited for the lock
+					if (!held)
+						pool.releasePage(tid, pid);
+					break;
 				}
+				if (candidate.getNumEmptySlots() > 0) {
+					hp = candidate;
+					break;
+				}
+				// stale hint
+				fsm.markFull(i);
+				if (!held)
+					pool.releasePage(tid, pid);
 			}
-			if (emptyPages.isEmpty()) {
-				HeapPageId hpid = new HeapPageId(this.getId(), this.numPages());
-				HeapPage hp = new HeapPage(hpid, HeapPage.createEmptyPageData());
-				hp.insertTuple(t);
-				this.writePage(hp);
-				updatedPages.add(hp);
-			} else {
-				HeapPage hp = (HeapPage) emptyPages.get(0);
-				hp.insertTuple(t);
+			// only empty pages go to disk directly; the tuple goes into the
+			// buffered copy under an X lock, so that nothing uncommitted
+			// becomes visible to readers of committed pages
+			if (hp == null)
+				from = allocatePages(growth());
+		}
+		hp.insertTuple(t);
+		zoneMap().widen(hp.getId().getPageNumber(), t);
+		if (hp.getNumEmptySlots() == 0)
+			fsm.markFull(hp.getId().getPageNumber());
+		updatedPages.add(hp);
+
+		return updatedPages;
+	}
+
+	/**
+	 * Inserts the tuples in bulk. The pages the free-space map says have room
+	 * are filled first; the rest of the tuples go to empty pages added to the
+	 * end of the file in extents of up to {@link #getExtentPages}, each with one
+	 * write, and filled in the buffer pool. An extent is no larger than the
+	 * frames of the pool not taken by dirty pages, so that all of its pages can
+	 * be held at once. Each page is locked once, and is marked dirty as soon as
+	 * it is filled, so that it stays in the pool while the next extent is
+	 * brought in.
+	 *
+	 * @throws DbException if the pages the tuples need do not fit in the buffer
+	 *                     pool
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		ArrayList<Page> updatedPages = new ArrayList<Page>();
+		BufferPool pool = Database.getBufferPool();
+		FreeSpaceMap fsm = freeSpace();
+		int next = 0;
+		for (int i = fsm.nextFree(0); next < tuples.size() && i >= 0 && i < this.numPages(); i = fsm.nextFree(i + 1)) {
+			HeapPageId pid = new HeapPageId(this.getId(), i);
+			boolean held = pool.holdsLock(tid, pid);
+			HeapPage hp = (HeapPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+			if (i >= this.numPages()) {
+				// cut off by a vacuum while we waited for the lock
+				if (!held)
+					pool.releasePage(tid, pid);
+				break;
+			}
+			int before = next;
+			next = fill(tid, hp, tuples, next);
+			if (next > before)
 				updatedPages.add(hp);
+			else if (!held)
+				pool.releasePage(tid, pid);
+		}
+		int perPage = (getPageSize() * 8) / (td.getSize() * 8 + 1);
+		int frames = Math.max(1, (getPageSize() + BufferPool.getPageSize() - 1) / BufferPool.getPageSize());
+		while (next < tuples.size()) {
+			int n = Math.min(extentPages, (tuples.size() - next + perPage - 1) / perPage);
+			n = Math.min(n, pool.freeFrames() / frames);
+			if (n == 0)
+				throw new DbException("No more pages: the buffer pool holds no more dirty pages for " + (tuples.size() - next)
+						+ " more tuples");
+			int first = allocatePages(n);
+			ArrayList<PageId> pids = new ArrayList<PageId>(n);
+			for (int i = first; i < first + n; i++)
+				pids.add(new HeapPageId(this.getId(), i));
+			// another insert may have taken some of the new pages meanwhile
+			for (Page p : pool.getPages(tid, pids, Permissions.READ_WRITE)) {
+				int before = next;
+				next = fill(tid, (HeapPage) p, tuples, next);
+				if (next > before)
+					updatedPages.add(p);
 			}
-		} catch (DbException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		} catch (TransactionAbortedException e) {
-			e.printStackTrace();
 		}
-
 		return updatedPages;
 	}
 
+	// insert tuples from next on into hp until it is full; returns the next
+	// tuple to insert
+	private int fill(TransactionId tid, HeapPage hp, List<Tuple> tuples, int next) throws DbException, IOException {
+		int room = hp.getNumEmptySlots();
+		int end = Math.min(tuples.size(), next + room);
+		ZoneMap zones = zoneMap();
+		for (int i = next; i < end; i++) {
+			hp.insertTuple(tuples.get(i));
+			zones.widen(hp.getId().getPageNumber(), tuples.get(i));
+		}
+		if (end - next == room)
+			freeSpace.markFull(hp.getId().getPageNumber());
+		if (end > next)
+			hp.markDirty(true, tid);
+		return end;
+	}
+
+	// the number of empty pages to add when no page has room for an insert
+	private int growth() {
+		return Math.max(1, Math.min(extentPages, this.numPages()));
+	}
+
+	// add n empty pages to the end of the file with one write, and return the
+	// number of the first
+	private synchronized int allocatePages(int n) throws IOException {
+		FreeSpaceMap fsm = freeSpace();
+		int first = this.numPages();
+		fsm.beforeWrite(first + n - 1, true);
+		writePageRun(first, ByteBuffer.wrap(new byte[n * getPageSize()]));
+		for (int i = first; i < first + n; i++)
+			fsm.afterWrite(i, true);
+		zoneMap().allocated(first, n);
+		return first;
+	}
+
+	/**
+	 * Count the tuples of this file as tid sees them, from the slot headers of
+	 * its pages alone, without decoding any tuple.
+	 */
+	public long countTuples(TransactionId tid) throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		int n = this.numPages();
+		long count = 0;
+		ArrayList<PageId> pids = new ArrayList<PageId>(READ_AHEAD);
+		for (int first = 0; first < n; first += READ_AHEAD) {
+			pids.clear();
+			for (int i = first; i < Math.min(n, first + READ_AHEAD); i++)
+				pids.add(new HeapPageId(this.getId(), i));
+			for (Page p : pool.getPages(tid, pids, Permissions.READ_ONLY))
+				count += ((HeapPage) p).getNumUsedSlots();
+		}
+		return count;
+	}
+
+	/**
+	 * Move the tuples on the last pages of this file into empty slots of
+	 * earlier pages, as part of transaction tid, so that the emptied pages can
+	 * be cut off by {@link #truncate} once tid commits. Every page touched is
+	 * locked exclusively through the buffer pool, as an update would, so this
+	 * runs alongside other transactions; it stops early when no earlier page
+	 * has room left. Moved tuples get new RecordIds.
+	 *
+	 * @param maxPages the most pages to empty, from the last one backwards
+	 * @return the number of tuples moved
+	 */
+	public int compact(TransactionId tid, int maxPages)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		FreeSpaceMap fsm = freeSpace();
+		ZoneMap zones = zoneMap();
+		int moved = 0;
+		int hole = 0;
+		HeapPage target = null;
+		for (int last = this.numPages() - 1; maxPages > 0 && last > 0; last--, maxPages--) {
+			HeapPage source = (HeapPage) pool.getPage(tid, new HeapPageId(this.getId(), last), Permissions.READ_WRITE);
+			Iterator<Tuple> it = source.iterator();
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				while (target == null || target.getNumEmptySlots() == 0) {
+					hole = fsm.nextFree(hole);
+					if (hole < 0 || hole >= last)
+						return moved;
+					target = (HeapPage) pool.getPage(tid, new HeapPageId(this.getId(), hole), Permissions.READ_WRITE);
+					if (target.getNumEmptySlots() == 0)
+						fsm.markFull(hole);
+					hole++;
+				}
+				source.deleteTuple(t);
+				target.insertTuple(t);
+				zones.widen(target.getId().getPageNumber(), t);
+				source.markDirty(true, tid);
+				target.markDirty(true, tid);
+				fsm.markFree(last);
+				if (target.getNumEmptySlots() == 0)
+					fsm.markFull(target.getId().getPageNumber());
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Cut the empty pages at the end of this file off, as part of transaction
+	 * tid. The pages are locked exclusively first, so none is in use by another
+	 * transaction; a page tid itself changed is left alone, since its empty
+	 * image is not on disk until tid commits.
+	 *
+	 * @return the number of pages removed
+	 */
+	public int truncate(TransactionId tid) throws DbException, IOException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		int n = this.numPages();
+		int end = n;
+		while (end > 0) {
+			HeapPage p = (HeapPage) pool.getPage(tid, new HeapPageId(this.getId(), end - 1), Permissions.READ_WRITE);
+			if (p.getNumUsedSlots() > 0 || p.isDirty() != null)
+				break;
+			end--;
+		}
+		if (end == n)
+			return 0;
+		synchronized (this) {
+			// pages were added meanwhile; they are not locked
+			if (this.numPages() != n)
+				return 0;
+			// the sidecars stop covering the pages before they go
+			freeSpace().truncate(end);
+			zoneMap().truncate(end);
+			truncatePages(end);
+		}
+		for (int i = end; i < n; i++)
+			pool.discardPage(new HeapPageId(this.getId(), i));
+		return n - end;
+	}
+
+	/**
+	 * Cut the file down to its first n pages.
+	 */
+	protected void truncatePages(int n) throws IOException {
+		Database.getFileHandles().truncate(f, (long) n * getPageSize());
+	}
+
 	// see DbFile.java for javadocs
 	public Page deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
 		// some code goes here
@@ -161,6 +590,11 @@ public class HeapFile implements DbFile {
 				affectedPage = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
 				affectedPage.deleteTuple(t);
 				affectedPage.markDirty(true, tid);
+				try {
+					freeSpace().markFree(pid.getPageNumber());
+				} catch (IOException e) {
+					throw new DbException("failed to load free-space map: " + e.getMessage());
+				}
 			}
 		}
 		if (affectedPage == null) {
@@ -172,31 +606,76 @@ public class HeapFile implements DbFile {
 	// see DbFile.java for javadocs
 	public DbFileIterator iterator(TransactionId tid) {
 		// some code goes here
+		return iterator(tid, null);
+	}
+
+	/**
+	 * Returns an iterator over the tuples of this file that pass p. Pages whose
+	 * {@link ZoneMap} summary shows that none of their tuples can pass, or that
+	 * they are empty, are skipped without being read or locked, and on the
+	 * pages read only the field p tests is decoded for tuples that do not
+	 * pass.
+	 */
+	public DbFileIterator iterator(TransactionId tid, Predicate p) {
 		return new DbFileIterator() {
 			private int pageNum = -1;
 			private Iterator<Tuple> tupleIterator = null;
 			private final BufferPool pool = Database.getBufferPool();
 			private final int tableId = getId();
+			private ZoneMap zones;
+			// pages found to be worth reading and not read yet, in order
+			private final ArrayDeque<Integer> ahead = new ArrayDeque<Integer>();
 
 			@Override
 			public void open() throws DbException, TransactionAbortedException {
 				pageNum = 0;
-				tupleIterator = ((HeapPage) pool.getPage(tid, new HeapPageId(tableId, pageNum++),
-						Permissions.READ_ONLY)).iterator();
+				tupleIterator = null;
+				ahead.clear();
+				if (zones == null) {
+					try {
+						zones = zoneMap();
+					} catch (IOException e) {
+						throw new DbException("failed to load zone map: " + e.getMessage());
+					}
+				}
+			}
 
+			// the next page that may hold a tuple passing p, or null; up to
+			// READ_AHEAD such pages are read into the buffer pool together
+			private HeapPage nextPage() throws DbException, TransactionAbortedException {
+				if (ahead.isEmpty()) {
+					int n = numPages();
+					while (pageNum < n && ahead.size() < READ_AHEAD) {
+						if (zones == null || zones.mayMatch(pageNum, p))
+							ahead.add(pageNum);
+						pageNum++;
+					}
+					if (ahead.size() > 1) {
+						ArrayList<PageId> pids = new ArrayList<PageId>(ahead.size());
+						for (int i : ahead)
+							pids.add(new HeapPageId(tableId, i));
+						pool.getPages(tid, pids, Permissions.READ_ONLY);
+					}
+				}
+				Integer next = ahead.poll();
+				if (next == null)
+					return null;
+				return (HeapPage) pool.getPage(tid, new HeapPageId(tableId, next), Permissions.READ_ONLY);
 			}
 
 			@Override
 			public boolean hasNext() throws DbException, TransactionAbortedException {
-				if (tupleIterator != null && tupleIterator.hasNext()) {
+				if (tupleIterator != null && tupleIterator.hasNext())
 					return true;
-				} else if (pageNum < 0 || pageNum > numPages()) {
+				if (pageNum < 0)
 					return false;
-				} else {
-					tupleIterator = ((HeapPage) pool.getPage(tid, new HeapPageId(tableId, pageNum++),
-							Permissions.READ_ONLY)).iterator();
-					return hasNext();
+				HeapPage page;
+				while ((page = nextPage()) != null) {
+					tupleIterator = page.iterator(p);
+					if (tupleIterator.hasNext())
+						return true;
 				}
+				return false;
 			}
 
 			@Override
@@ -216,6 +695,7 @@ public class HeapFile implements DbFile {
 			public void close() {
 				pageNum = -1;
 				tupleIterator = null;
+				ahead.clear();
 			}
 		};
 	}
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -90,10 +91,25 @@ public class HeapFileEncoder {
   public static void convert(File inFile, File outFile, int npagebytes,
                  int numFields, Type[] typeAr, char fieldSeparator)
       throws IOException {
+      convert(inFile, outFile, npagebytes, numFields, typeAr, fieldSeparator, null);
+  }
+
+  /** Convert the specified input text file into a binary page file like
+   * {@link #convert(File, File, int, int, Type[], char)}, storing the string
+   * fields with a non-null entry in dicts as codes of that dictionary, for a
+   * HeapFile of a TupleDesc with the same dictionaries.
+   *
+   * @param dicts the dictionary of each field, or null to store all fields as
+   *   they are
+   * @see TupleDesc#TupleDesc(Type[], String[], StringDictionary[])
+   */
+  public static void convert(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator, StringDictionary[] dicts)
+      throws IOException {
 
       int nrecbytes = 0;
       for (int i = 0; i < numFields ; i++) {
-          nrecbytes += typeAr[i].getLen();
+          nrecbytes += dicts != null && dicts[i] != null ? Type.INT_TYPE.getLen() : typeAr[i].getLen();
       }
       int nrecords = (npagebytes * 8) /  (nrecbytes * 8 + 1);  //floor comes for free
       
@@ -145,6 +161,9 @@ public class HeapFileEncoder {
                     System.out.println ("BAD LINE : " + s);
                 }
             }
+            else if (dicts != null && dicts[fieldNo] != null) {
+                pageStream.writeInt(dicts[fieldNo].encode(s.trim()).getCode());
+            }
             else   if (typeAr[fieldNo] == Type.STRING_TYPE) {
                 s = s.trim();
                 int overflow = Type.STRING_LEN - s.length();
@@ -222,5 +241,137 @@ public class HeapFileEncoder {
     }
     br.close();
     os.close();
+    // the file was rewritten without going through the open handles
+    Database.getFileHandles().close(outFile);
+    // nor through HeapFile, so page summaries of an older file are stale
+    new File(outFile.getPath() + ".zm").delete();
+  }
+
+  /** Convert the specified tuple list (with only integer fields) into a
+   * file of {@link SlottedPage}s, as read by {@link SlottedFile}.
+   *
+   * @see #convertSlotted(File, File, int, int, Type[], char)
+   */
+  public static void convertSlotted(ArrayList<ArrayList<Integer>> tuples, File outFile, int npagebytes,
+                 int numFields) throws IOException {
+      Type[] ts = new Type[numFields];
+      Arrays.fill(ts, Type.INT_TYPE);
+      TupleDesc td = new TupleDesc(ts);
+      SlottedWriter w = new SlottedWriter(outFile, npagebytes);
+      try {
+          for (ArrayList<Integer> tuple : tuples) {
+              if (tuple.size() > numFields) {
+                  throw new RuntimeException("Tuple has more than " + numFields + " fields: (" +
+                          Utility.listToString(tuple) + ")");
+              }
+              Tuple t = new Tuple(td);
+              for (int i = 0; i < numFields; i++)
+                  t.setField(i, new IntField(tuple.get(i)));
+              w.add(t);
+          }
+      } finally {
+          w.close();
+      }
+  }
+
+   /** Convert the specified input text file into a file of
+    * {@link SlottedPage}s, as read by {@link SlottedFile}. The input format
+    * is the same as for {@link #convert(File, File, int, int, Type[], char)};
+    * strings are stored with only as many bytes as they have, after being
+    * trimmed and cut to {@link Type#STRING_LEN}.
+    *
+    * @param inFile The input file to read data from
+    * @param outFile The output file to write data to
+    * @param npagebytes The number of bytes per page in the output file
+    * @param numFields the number of fields in each input line/output tuple
+    * @param typeAr the type of each field
+    * @param fieldSeparator the character between fields of a line
+    * @throws IOException if the input/output file can't be opened
+    */
+  public static void convertSlotted(File inFile, File outFile, int npagebytes,
+                 int numFields, Type[] typeAr, char fieldSeparator)
+      throws IOException {
+      TupleDesc td = new TupleDesc(Arrays.copyOf(typeAr, numFields));
+      BufferedReader br = new BufferedReader(new FileReader(inFile));
+      SlottedWriter w = new SlottedWriter(outFile, npagebytes);
+      try {
+          String line;
+          while ((line = br.readLine()) != null) {
+              if (line.isEmpty())
+                  continue;
+              String[] fields = line.split(java.util.regex.Pattern.quote(String.valueOf(fieldSeparator)), -1);
+              if (fields.length < numFields) {
+                  System.out.println ("BAD LINE : " + line);
+                  continue;
+              }
+              Tuple t = new Tuple(td);
+              try {
+                  for (int i = 0; i < numFields; i++) {
+                      String s = fields[i].trim();
+                      if (typeAr[i] == Type.INT_TYPE)
+                          t.setField(i, new IntField(Integer.parseInt(s)));
+                      else
+                          t.setField(i, new StringField(s, Type.STRING_LEN));
+                  }
+              } catch (NumberFormatException e) {
+                  System.out.println ("BAD LINE : " + line);
+                  continue;
+              }
+              w.add(t);
+          }
+      } finally {
+          br.close();
+          w.close();
+      }
+  }
+
+  /**
+   * Fills slotted pages with tuples and writes each to the output file as
+   * soon as the next tuple does not fit on it any more.
+   */
+  private static class SlottedWriter {
+      private final File outFile;
+      private final FileOutputStream os;
+      private final int npagebytes;
+      private SlottedPage page;
+      private int npages = 0;
+
+      SlottedWriter(File outFile, int npagebytes) throws IOException {
+          this.outFile = outFile;
+          this.os = new FileOutputStream(outFile);
+          this.npagebytes = npagebytes;
+      }
+
+      void add(Tuple t) throws IOException {
+          if (page != null && !page.hasRoomFor(t))
+              flush();
+          if (page == null)
+              page = new SlottedPage(new HeapPageId(0, npages), new byte[npagebytes], t.getTupleDesc());
+          try {
+              page.insertTuple(t);
+          } catch (DbException e) {
+              throw new IOException("tuple does not fit on a page: " + t);
+          }
+      }
+
+      private void flush() throws IOException {
+          os.write(page.getPageData());
+          page = null;
+          npages++;
+      }
+
+      // an empty input still makes one (empty) page
+      void close() throws IOException {
+          try {
+              if (page != null)
+                  flush();
+              else if (npages == 0)
+                  os.write(new byte[npagebytes]);
+          } finally {
+              os.close();
+          }
+          // the file was rewritten without going through the open handles
+          Database.getFileHandles().close(outFile);
+      }
   }
 }
@@ -2,10 +2,20 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * A page keeps the bytes it was read from and decodes tuples from them only
+ * when they are asked for: {@link #getField(int, int)} decodes a single field,
+ * {@link #getTuple(int)} and the iterators build a Tuple per call. Tuples
+ * inserted after the page was read are kept as objects until the page is
+ * serialized again.
+ * <p>
+ * The bytes the page was read from are also its before image, so loading a
+ * page copies nothing; a commit replaces them with the committed content.
  *
  * @see HeapFile
  * @see BufferPool
@@ -15,11 +25,20 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
+    // the slot header, in SlotBitmap words
+    final long used[];
+    final int headerSize;
+    // the page as of the last commit, i.e. its before image; never modified,
+    // only replaced by setBeforeImage, as before images share it
+    byte data[];
+    // tuples inserted since the last commit, by slot; a used slot without
+    // one is decoded from data
     final Tuple tuples[];
     final int numSlots;
+    final int tupleSize;
+    // the page size of the table, see DbFile#getPageSize
+    final int pageSize;
 
-    byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     TransactionId dirtyTid;
@@ -31,9 +50,10 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is that of its file, see {@link DbFile#getPageSize}.
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
@@ -41,29 +61,25 @@ public class HeapPage implements Page {
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
+     * <p>
+     * The page keeps data rather than a copy of it, so the caller must not
+     * modify the array afterwards.
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
         this.pid = id;
-        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        DbFile file = Database.getCatalog().getDatabaseFile(id.getTableId());
+        this.td = file.getTupleDesc();
+        this.pageSize = file.getPageSize();
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
+        this.tupleSize = td.getSize();
+        if (data.length < pageSize)
+            throw new IOException("page data is shorter than a page");
+        this.data = data;
+
+        // the header is the only part of data that changes in place
+        headerSize = getHeaderSize();
+        used = SlotBitmap.read(data, 0, numSlots);
         tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
-        setBeforeImage();
     }
 
     /** Retrieve the number of tuples on this page.
@@ -71,7 +87,7 @@ public class HeapPage implements Page {
     */
     private int getNumTuples() {        
         // some code goes here
-       return (BufferPool.getPageSize()<<3)/((td.getSize()<<3)+1);
+       return (pageSize<<3)/((td.getSize()<<3)+1);
     }
 
     /**
@@ -92,7 +108,7 @@ public class HeapPage implements Page {
             byte[] oldDataRef = null;
             synchronized(oldDataLock)
             {
-                oldDataRef = oldData;
+                oldDataRef = data;
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -104,9 +120,11 @@ public class HeapPage implements Page {
     }
     
     public void setBeforeImage() {
+        byte[] committed = getPageData();
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        data = committed;
+        Arrays.fill(tuples, null);
         }
     }
 
@@ -119,39 +137,57 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * @return the tuple in slot slotId, decoded from the page if it was not
+     *         inserted since the page was read. Each call decodes a new Tuple.
+     * @throws NoSuchElementException if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
-            return null;
-        }
+    public Tuple getTuple(int slotId) throws NoSuchElementException {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId))
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        Tuple inserted = tuples[slotId];
+        if (inserted != null)
+            return inserted;
 
-        // read fields in the tuple
         Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
-            }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+        t.setRecordId(new RecordId(pid, slotId));
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            t.setField(j, readField(j, offset + td.getFieldOffset(j)));
         }
-
         return t;
     }
 
+    /**
+     * Decode a single field of the tuple in slot slotId, without building the
+     * rest of the tuple.
+     *
+     * @param slotId the slot of the tuple
+     * @param col the index of the field in the tuple
+     * @throws NoSuchElementException if the slot is empty or col is not a
+     *         valid field reference
+     */
+    public Field getField(int slotId, int col) throws NoSuchElementException {
+        if (slotId < 0 || slotId >= numSlots || !isSlotUsed(slotId))
+            throw new NoSuchElementException("slot " + slotId + " is empty");
+        Tuple inserted = tuples[slotId];
+        if (inserted != null)
+            return inserted.getField(col);
+        return readField(col, slotOffset(slotId) + td.getFieldOffset(col));
+    }
+
+    // decode field col stored at offset in data
+    private Field readField(int col, int offset) {
+        StringDictionary dict = td.getDictionary(col);
+        if (dict != null)
+            return dict.get(Type.readInt(data, offset));
+        return td.getFieldType(col).parse(data, offset);
+    }
+
+    // where the tuple in slot slotId starts in data
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * tupleSize;
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -164,64 +200,61 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
+        byte[] pageData = new byte[pageSize];
+        writePageData(ByteBuffer.wrap(pageData));
+        return pageData;
+    }
 
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
+    /**
+     * Writes the bytes of this page into buf at its position, without any
+     * intermediate buffer: the image the page was read from is copied as a
+     * whole, then the header, the slots emptied and the tuples inserted since
+     * are written over it.
+     *
+     * @see #getPageData
+     */
+    public void writePageData(ByteBuffer buf) {
+        int start = buf.position();
+        buf.put(data, 0, pageSize);
+        SlotBitmap.write(used, buf, start, headerSize);
 
-            // empty slot
+        for (int i=0; i<numSlots; i++) {
+            int offset = start + slotOffset(i);
             if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
+                // empty slot, and the ones after it
+                int next = SlotBitmap.nextSet(used, i);
+                int end = next < 0 ? numSlots : next;
+                zero(buf, offset, (end - i) * tupleSize);
+                i = end - 1;
+            } else if (tuples[i] != null) {
+                // inserted slot
+                buf.position(offset);
+                for (int j=0; j<td.numFields(); j++) {
+                    Field f = tuples[i].getField(j);
+                    if (td.getDictionary(j) != null)
+                        buf.putInt(((DictField) f).getCode());
+                    else
+                        f.serialize(buf);
                 }
             }
         }
 
         // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        int end = start + slotOffset(numSlots);
+        zero(buf, end, start + pageSize - end);
+        buf.position(start + pageSize);
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public int getPageDataSize() {
+        return pageSize;
+    }
 
-        return baos.toByteArray();
+    private static void zero(ByteBuffer buf, int offset, int len) {
+        int i = 0;
+        for (; i + 8 <= len; i += 8)
+            buf.putLong(offset + i, 0L);
+        for (; i < len; i++)
+            buf.put(offset + i, (byte) 0);
     }
 
     /**
@@ -234,8 +267,15 @@ public class HeapPage implements Page {
      * @return The returned ByteArray.
      */
     public static byte[] createEmptyPageData() {
-        int len = BufferPool.getPageSize();
-        return new byte[len]; //all 0
+        return createEmptyPageData(BufferPool.getPageSize());
+    }
+
+    /**
+     * Like {@link #createEmptyPageData()}, for a table with pages of
+     * pageSize bytes.
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
     }
 
     /**
@@ -263,9 +303,10 @@ public class HeapPage implements Page {
 
     /**
      * Adds the specified tuple to the page;  the tuple should be updated to reflect
-     *  that it is now stored on this page.
+     *  that it is now stored on this page. Fields stored with a dictionary are
+     *  replaced by their DictFields, adding new strings to the dictionary.
      * @throws DbException if the page is full (no empty slots) or tupledesc
-     *         is mismatch.
+     *         is mismatch, or a dictionary could not be written.
      * @param t The tuple to add.
      */
     public void insertTuple(Tuple t) throws DbException {
@@ -277,17 +318,24 @@ public class HeapPage implements Page {
         if ( !this.td.equals(t.getTupleDesc()) ) {
             throw new DbException("tuple descriptions mismatch");
         }
-        for (int i = 0; i < this.numSlots; i++)
-        {
-            if (!this.isSlotUsed(i))
-            {
-                markSlotUsed(i,true);
-                tuples[i] = t;
-                RecordId rid = new RecordId(this.pid, i);
-                t.setRecordId(rid);
-                return;
+        for (int j = 0; j < td.numFields(); j++) {
+            StringDictionary dict = td.getDictionary(j);
+            if (dict == null)
+                continue;
+            Field f = t.getField(j);
+            if (f instanceof DictField && ((DictField) f).getDictionary() == dict && ((DictField) f).getCode() >= 0)
+                continue;
+            try {
+                t.setField(j, dict.encode(((StringField) f).getValue()));
+            } catch (IOException e) {
+                throw new DbException("could not add to dictionary " + dict.getFile() + ": " + e.getMessage());
             }
         }
+        int i = SlotBitmap.nextClear(used, 0, numSlots);
+        markSlotUsed(i,true);
+        tuples[i] = t;
+        RecordId rid = new RecordId(this.pid, i);
+        t.setRecordId(rid);
     }
 
     /**
@@ -320,13 +368,14 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int emptySlot = 0;
-        for(int i = 0; i<numSlots;++i){
-            if(!isSlotUsed(i)){
-                ++emptySlot;
-            }
-        }
-        return emptySlot;
+        return numSlots - SlotBitmap.count(used);
+    }
+
+    /**
+     * Returns the number of tuples on this page, from the header alone.
+     */
+    public int getNumUsedSlots() {
+        return SlotBitmap.count(used);
     }
 
     /**
@@ -334,9 +383,7 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-    	int index = i/8;
-    	int r = i % 8;
-    	return ((header[index] >> (r)) & 1) == 0 ? false : true ;
+        return SlotBitmap.get(used, i);
     }
 
     /**
@@ -345,15 +392,7 @@ public class HeapPage implements Page {
     private void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
-        int index = i/8;
-        int r = i%8;
-
-        if (value) {
-            this.header[index] |= (1 << r);
-        } 
-        else {
-            this.header[index] &= ~(1 << r);
-        }
+        SlotBitmap.set(used, i, value);
     }
 
     /**
@@ -362,18 +401,36 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
+        return iterator(null);
+    }
+
+    /**
+     * @return an iterator over the tuples on this page that pass p, or over
+     *         all of them if p is null. The field p tests is decoded on its
+     *         own, so tuples that do not pass are never built.
+     */
+    public Iterator<Tuple> iterator(Predicate p) {
         class iterator implements Iterator<Tuple>{
             private int current = 0;
+            // the slot hasNext last found to pass p, so it is tested once
+            private int matched = -1;
 
             @Override
             public boolean hasNext(){
-                while(current<numSlots){
-                    if(isSlotUsed(current)){
+                while(current >= 0 && current<numSlots){
+                    if(current == matched){
                         return true;
                     }
-                    else{
-                        current++;
+                    // skip to the next used slot
+                    current = SlotBitmap.nextSet(used, current);
+                    if(current < 0){
+                        return false;
+                    }
+                    if(p == null || p.filter(getField(current, p.getField()))){
+                        matched = current;
+                        return true;
                     }
+                    current++;
                 }
                 return  false;
             }
@@ -381,7 +438,7 @@ public class HeapPage implements Page {
             @Override
             public Tuple next(){
                 if(hasNext()){
-                    return tuples[current++];
+                    return getTuple(current++);
                 }
                 else{
                     throw new NoSuchElementException();
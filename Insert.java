@@ -1,7 +1,7 @@
 package simpledb;
 
 import java.io.IOException;
-import java.util.NoSuchElementException;
+import java.util.ArrayList;
 
 /**
  * Inserts tuples read from the child operator into the tableId specified in the
@@ -11,6 +11,9 @@ public class Insert extends Operator {
 
 	private static final long serialVersionUID = 1L;
 
+	/** The number of tuples handed to the buffer pool at a time. */
+	static final int BATCH_SIZE = 1024;
+
 	private TransactionId t;
 	private OpIterator child;
 	private int tableId;
@@ -67,7 +70,7 @@ public class Insert extends Operator {
 	 * @return A 1-field tuple containing the number of inserted records, or null if
 	 *         called more than once.
 	 * @see Database#getBufferPool
-	 * @see BufferPool#insertTuple
+	 * @see BufferPool#insertTuples
 	 */
 	/**
 	 * checks if tuples have been inserted
@@ -81,13 +84,19 @@ public class Insert extends Operator {
 		Tuple out = new Tuple(td);
 		int count = 0;
 		
+		// tuples go to the table in batches, so that it can fill whole pages at once
+		ArrayList<Tuple> batch = new ArrayList<Tuple>(BATCH_SIZE);
 		while (child.hasNext()) {
-			try {
-				buf.insertTuple(t, tableId, child.next());
-			} catch (NoSuchElementException | DbException | IOException | TransactionAbortedException e) {
-				e.printStackTrace();
+			batch.add(child.next());
+			if (batch.size() == BATCH_SIZE || !child.hasNext()) {
+				try {
+					buf.insertTuples(t, tableId, batch);
+				} catch (IOException e) {
+					throw new DbException("failed to insert tuples: " + e.getMessage());
+				}
+				count += batch.size();
+				batch.clear();
 			}
-			count++;
 		}
 		inserted = true; // now that all are inserted, set to true
 		out.setField(0, new IntField(count));
@@ -37,13 +37,24 @@ public class KeyHolder {
 	public ConcurrentHashMap<PageId, ArrayList<Locks>> locking;
 	// a waiting table
 	public ConcurrentHashMap<TransactionId, PageId> dpGraph;
-	// graph information
-	private ConcurrentHashMap<TransactionId, NodeInfo> graphInfo;
+	// transactions waiting for a key lock of KeyRangeHolder -> the holders
+	// they wait for
+	private final ConcurrentHashMap<TransactionId, Set<TransactionId>> keyWaits;
+	// transactions picked to break a deadlock, aborted at their next check
+	private final Set<TransactionId> victims;
+	// told about every released lock, for hold times
+	private final LockProfiler profiler;
 
 	public KeyHolder() {
+		this(new LockProfiler());
+	}
+
+	public KeyHolder(LockProfiler profiler) {
 		this.locking = new ConcurrentHashMap<>();
 		this.dpGraph = new ConcurrentHashMap<>();
-		this.graphInfo = new ConcurrentHashMap<>();
+		this.keyWaits = new ConcurrentHashMap<>();
+		this.victims = ConcurrentHashMap.newKeySet();
+		this.profiler = profiler;
 	}
 
 	/**
@@ -90,6 +101,7 @@ public class KeyHolder {
 				//System.out.println(tid + " released page " + pid);
 				lockedBy.remove(l);
 				locking.put(pid, lockedBy);
+				profiler.lockReleased(tid, pid);
 				return true;
 			}
 		}
@@ -113,6 +125,10 @@ public class KeyHolder {
 		for (PageId pid : pids) {
 			unlock(tid, pid);
 		}
+		// a finished transaction is not waiting for anything
+		dpGraph.remove(tid);
+		keyWaits.remove(tid);
+		victims.remove(tid);
 	}
 
 	/**
@@ -124,6 +140,10 @@ public class KeyHolder {
 	 */
 	public synchronized boolean SLock(TransactionId tid, PageId pid) {
 		// System.out.println("SLock on " + tid + " page " + pid);
+		if (olderWaiter(tid, pid)) {
+			dpGraph.put(tid, pid);
+			return false;
+		}
 		ArrayList<Locks> lockedBy = locking.get(pid);
 		if (lockedBy != null && lockedBy.size() > 0) {
 			// single transaction locking
@@ -172,6 +192,10 @@ public class KeyHolder {
 	 */
 	public synchronized boolean XLock(TransactionId tid, PageId pid) {
 		// System.out.println("XLock on " + tid + " page " + pid);
+		if (olderWaiter(tid, pid)) {
+			dpGraph.put(tid, pid);
+			return false;
+		}
 		ArrayList<Locks> lockedBy = locking.get(pid);
 		if (lockedBy != null && lockedBy.size() > 0) {
 			// only one or two locks -> mine or not mine
@@ -203,6 +227,26 @@ public class KeyHolder {
 		}
 	}
 
+	/**
+	 * a new request queues up behind an older transaction already waiting for the
+	 * page, so that a deadlock victim that retries right away cannot keep taking
+	 * the page from under the transaction it was aborted in favour of. Upgrades of
+	 * a lock tid already holds never wait here.
+	 * 
+	 * @param tid
+	 * @param pid
+	 * @return true if an older transaction is waiting for pid
+	 */
+	private synchronized boolean olderWaiter(TransactionId tid, PageId pid) {
+		if (exists(tid, pid))
+			return false;
+		for (Map.Entry<TransactionId, PageId> w : dpGraph.entrySet()) {
+			if (w.getValue().equals(pid) && w.getKey().getId() < tid.getId())
+				return true;
+		}
+		return false;
+	}
+
 	/**
 	 * @param pid
 	 * @param tid
@@ -228,7 +272,7 @@ public class KeyHolder {
 	 * @param pid
 	 * @return
 	 */
-	public boolean exists(TransactionId tid, PageId pid) {
+	public synchronized boolean exists(TransactionId tid, PageId pid) {
 		ArrayList<Locks> lockedBy = locking.get(pid);
 		if (lockedBy == null || lockedBy.size() == 0)
 			return false;
@@ -254,145 +298,111 @@ public class KeyHolder {
 		if (lockedBy == null || lockedBy.size() == 0)
 			return false;
 
-		// check each transaction t is waiting for
-		HashSet<TransactionId> cause = detectCycle();
-
-		//System.out.println(tid + " waiting for: " + lockedBy + " caused by: " + cause);
-
-		if (cause != null && cause.contains(tid)) {
-			dpGraph.remove(tid);
-			return true;
-		}
-
-		return false;
+		return breakCycle(tid);
 	}
-	
+
 	/**
-	 * store each transaction as nodes in a dpgraph
-	 * helps to identify cycles(deadlocks) among the waiting transactions
+	 * note that tid waits for a key lock of {@link KeyRangeHolder} held by
+	 * blockers, and detect a deadlock through that wait
 	 * 
-	 * @author xx
-	 *
+	 * @param tid
+	 * @param blockers the transactions holding the key in a conflicting mode
+	 * @return true if tid must abort to break a deadlock
 	 */
-	private static class NodeInfo {
-		int color;
-		TransactionId tid;
-		TransactionId parent;
-		int d;
-		int f;
-
-		NodeInfo(TransactionId tid) {
-			this.color = 0;
-			this.tid = tid;
-		}
-
-		public String toString() {
-			return "tid=" + tid + " parent=" + parent + " color=" + color + " d=" + d + " f=" + f;
-		}
+	public synchronized boolean handleKeyDeadlock(TransactionId tid, Set<TransactionId> blockers) {
+		// a thread waits for one lock at a time, so tid is not waiting for a page
+		dpGraph.remove(tid);
+		keyWaits.put(tid, blockers);
+		return breakCycle(tid);
 	}
 
-	final int WHITE = 0;
-	final int GRAY = 1;
-	final int BLACK = 2;
-	int t;
-	
 	/**
-	 * performs DFS on dpgraph
+	 * note that tid no longer waits for a key lock
+	 * 
 	 * @param tid
 	 */
-	synchronized void recDFS(TransactionId tid) {
-		NodeInfo info = graphInfo.get(tid);
+	public synchronized void keyWaitDone(TransactionId tid) {
+		keyWaits.remove(tid);
+	}
 
-		if (info == null) {
-			info = new NodeInfo(tid);
-			graphInfo.put(tid, info);
+	private synchronized boolean breakCycle(TransactionId tid) {
+		// somebody else's check already picked tid to break a deadlock
+		if (victims.remove(tid)) {
+			dpGraph.remove(tid);
+			keyWaits.remove(tid);
+			return true;
 		}
-		info.color = GRAY;
-		info.d = ++t;
-
-		PageId page = dpGraph.get(tid);
-		if (page == null) return; // !!!
-
-		ArrayList<Locks> lockedBy = locking.get(page);
-		if (lockedBy == null) return; // !!!
-
-		for (Locks l : lockedBy) {
-			TransactionId v = l.tid;
-			NodeInfo vInfo = graphInfo.get(v);
 
-			if (vInfo == null) {
-				vInfo = new NodeInfo(tid);
-				graphInfo.put(tid, vInfo);
+		// check each transaction t is waiting for. Only the youngest transaction
+		// on the cycle is aborted, so that the others make progress instead of
+		// all of them aborting and running into each other again
+		ArrayList<TransactionId> cycle = findCycle(tid);
+		if (cycle != null) {
+			TransactionId victim = tid;
+			for (TransactionId t : cycle) {
+				if (t.getId() > victim.getId())
+					victim = t;
 			}
-
-			if (vInfo.color == WHITE) {
-				vInfo.parent = tid;
-				graphInfo.put(v, vInfo);
-				recDFS(v);
+			if (victim.equals(tid)) {
+				dpGraph.remove(tid);
+				keyWaits.remove(tid);
+				return true;
 			}
+			victims.add(victim);
 		}
 
-		info.color = BLACK;
-		info.f = ++t;
-		graphInfo.put(tid, info);
+		return false;
 	}
 	
 	/**
-	 * performs full DFS on dpgraph
+	 * follow the waits-for graph from the holders of the page or key tid waits
+	 * for, looking for a path back to tid. A transaction waiting to upgrade its
+	 * own S lock does not wait for itself.
+	 * 
+	 * @param tid
+	 * @return the transactions on a cycle through tid, or null if there is none
 	 */
-	synchronized void DFS() {
-		for (TransactionId s : dpGraph.keySet()) {
-			if (graphInfo.get(s) == null || graphInfo.get(s).color == WHITE) {
-				recDFS(s);
+	private synchronized ArrayList<TransactionId> findCycle(TransactionId tid) {
+		HashMap<TransactionId, TransactionId> waitedOnBy = new HashMap<>();
+		ArrayDeque<TransactionId> toVisit = new ArrayDeque<>();
+		waitedOnBy.put(tid, null);
+		toVisit.push(tid);
+		while (!toVisit.isEmpty()) {
+			TransactionId u = toVisit.pop();
+			for (TransactionId holder : waitsFor(u)) {
+				if (holder.equals(u))
+					continue;
+				if (holder.equals(tid)) {
+					// u waits for tid, walk back along the path to tid
+					ArrayList<TransactionId> cycle = new ArrayList<>();
+					for (TransactionId t = u; t != null; t = waitedOnBy.get(t))
+						cycle.add(t);
+					return cycle;
+				}
+				if (!waitedOnBy.containsKey(holder)) {
+					waitedOnBy.put(holder, u);
+					toVisit.push(holder);
+				}
 			}
 		}
+		return null;
 	}
 
 	/**
-	 * identify the cause of the cycle
-	 * in the dpgraph, these are the transactions that cause the deadlock
 	 * @param tid
-	 * @return
+	 * @return the transactions holding the page or key tid waits for
 	 */
-	private synchronized boolean cycle(TransactionId tid) {
-		NodeInfo info = graphInfo.get(tid);
+	private synchronized ArrayList<TransactionId> waitsFor(TransactionId tid) {
+		ArrayList<TransactionId> holders = new ArrayList<>();
 		PageId page = dpGraph.get(tid);
-		ArrayList<Locks> lockedBy = locking.get(page);
-
-		if (lockedBy == null)
-			return false;
-
-		for (Locks v : lockedBy) {
-			NodeInfo vInfo = graphInfo.get(v.tid);
-
-			if (vInfo.d <= info.f && info.d < info.f && vInfo.d <= info.d && info.f <= vInfo.f) {
-				return true;
-			}
-		}
-
-		return false;
-	}
-	
-	/**
-	 * constructs a cycle out of all the relevant transactions
-	 * @return
-	 */
-	private synchronized HashSet<TransactionId> detectCycle() {
-		DFS();
-		for (TransactionId u : dpGraph.keySet()) {
-			if (cycle(u)) {
-				HashSet<TransactionId> cycle = new HashSet<>();
-				TransactionId current = u;
-				do {
-					cycle.add(current);
-					current = graphInfo.get(current).parent;
-				} while (current != null && !current.equals(u));
-				graphInfo.clear();
-				return cycle;
-			}
+		ArrayList<Locks> lockedBy = page == null ? null : locking.get(page);
+		if (lockedBy != null) {
+			for (Locks l : lockedBy)
+				holders.add(l.tid);
 		}
-		graphInfo.clear();
-		return null;
+		Set<TransactionId> keyHolders = keyWaits.get(tid);
+		if (keyHolders != null)
+			holders.addAll(keyHolders);
+		return holders;
 	}
-
 }
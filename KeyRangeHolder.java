@@ -0,0 +1,211 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * KeyRangeHolder manages next-key locks on the keys of B+ tree indexes.
+ * <p>
+ * A range scan takes an S lock on every key it returns plus the first key past
+ * the end of the range (the "next key", or the supremum when the scan runs off
+ * the right end of the index). An insert of key k checks the key that follows k
+ * for S locks held by other transactions before it goes in, and holds an X lock
+ * on k itself until commit. Together these give phantom protection for an
+ * {@link IndexPredicate} range without locking whole leaf pages, so inserts
+ * outside a locked range do not conflict with the scan.
+ * <p>
+ * A blocked request polls until the conflicting holders are gone. While it
+ * waits, it is an edge of the waits-for graph of the {@link KeyHolder} of the
+ * page locks, so that a deadlock through key and page locks alike aborts its
+ * youngest transaction.
+ */
+public class KeyRangeHolder {
+	Permissions S = Permissions.READ_ONLY;
+	Permissions X = Permissions.READ_WRITE;
+
+	/** how long to sleep between retries of a blocked key lock request */
+	static final long RETRY_MILLIS = 10;
+
+	/**
+	 * Identifies one key of one index. A null key stands for the supremum, the
+	 * position past the largest key of the index.
+	 */
+	public static class RangeKey {
+		private final int tableId;
+		private final Field key;
+
+		public RangeKey(int tableId, Field key) {
+			this.tableId = tableId;
+			this.key = key;
+		}
+
+		public boolean isSupremum() {
+			return key == null;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof RangeKey))
+				return false;
+			RangeKey other = (RangeKey) o;
+			// Field.equals does not accept null, so compare the supremum by hand
+			if (key == null || other.key == null)
+				return tableId == other.tableId && key == other.key;
+			return tableId == other.tableId && key.equals(other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * tableId + (key == null ? 0 : key.hashCode());
+		}
+
+		public String toString() {
+			return "table=" + tableId + " key=" + (key == null ? "+inf" : key.toString());
+		}
+	}
+
+	// keys -> transactions holding a lock on the key and the mode they hold it in
+	private final ConcurrentHashMap<RangeKey, HashMap<TransactionId, Permissions>> locking;
+	// transaction -> keys it holds locks on, so that commit does not scan the table
+	private final ConcurrentHashMap<TransactionId, HashSet<RangeKey>> heldBy;
+	// the page lock table whose waits-for graph key waits join
+	private final KeyHolder keyHolder;
+
+	public KeyRangeHolder() {
+		this(new KeyHolder());
+	}
+
+	public KeyRangeHolder(KeyHolder keyHolder) {
+		this.locking = new ConcurrentHashMap<>();
+		this.heldBy = new ConcurrentHashMap<>();
+		this.keyHolder = keyHolder;
+	}
+
+	/**
+	 * Try to grant a lock on key to tid without blocking.
+	 *
+	 * @param tid
+	 * @param key
+	 * @param perm READ_ONLY for an S lock, READ_WRITE for an X lock
+	 * @return true if granted
+	 */
+	public synchronized boolean tryLock(TransactionId tid, RangeKey key, Permissions perm) {
+		return tryLock(tid, key, perm, null);
+	}
+
+	// grant the lock, or add the holders it conflicts with to blockers
+	private synchronized boolean tryLock(TransactionId tid, RangeKey key, Permissions perm,
+			Set<TransactionId> blockers) {
+		HashMap<TransactionId, Permissions> holders = locking.get(key);
+		Permissions mine = holders == null ? null : holders.get(tid);
+		if (mine == X || mine == perm)
+			return true;
+		boolean granted = true;
+		if (holders != null) {
+			for (Map.Entry<TransactionId, Permissions> h : holders.entrySet()) {
+				if (h.getKey().equals(tid))
+					continue;
+				// S is compatible with S only
+				if (perm == X || h.getValue() == X) {
+					granted = false;
+					if (blockers != null)
+						blockers.add(h.getKey());
+				}
+			}
+		}
+		if (!granted)
+			return false;
+		locking.computeIfAbsent(key, k -> new HashMap<>()).put(tid, perm);
+		heldBy.computeIfAbsent(tid, t -> new HashSet<>()).add(key);
+		return true;
+	}
+
+	/**
+	 * Grant a lock on key to tid, waiting for conflicting holders to finish.
+	 *
+	 * @throws TransactionAbortedException if tid is aborted to break a deadlock
+	 */
+	public void lock(TransactionId tid, RangeKey key, Permissions perm) throws TransactionAbortedException {
+		HashSet<TransactionId> blockers = new HashSet<>();
+		try {
+			while (!tryLock(tid, key, perm, blockers)) {
+				waitOrAbort(tid, blockers);
+				blockers = new HashSet<>();
+			}
+		} finally {
+			keyHolder.keyWaitDone(tid);
+		}
+	}
+
+	/**
+	 * Instant-duration check made before inserting a key in front of nextKey:
+	 * blocks while another transaction holds an S lock on nextKey, i.e. while
+	 * the gap the new key falls into is covered by somebody's range scan. No
+	 * lock is retained.
+	 *
+	 * @throws TransactionAbortedException if tid is aborted to break a
+	 *                                     deadlock
+	 */
+	public void checkInsert(TransactionId tid, RangeKey nextKey) throws TransactionAbortedException {
+		try {
+			HashSet<TransactionId> others = othersLocking(tid, nextKey);
+			while (!others.isEmpty()) {
+				waitOrAbort(tid, others);
+				others = othersLocking(tid, nextKey);
+			}
+		} finally {
+			keyHolder.keyWaitDone(tid);
+		}
+	}
+
+	private synchronized HashSet<TransactionId> othersLocking(TransactionId tid, RangeKey key) {
+		HashSet<TransactionId> others = new HashSet<>();
+		HashMap<TransactionId, Permissions> holders = locking.get(key);
+		if (holders == null)
+			return others;
+		for (TransactionId t : holders.keySet()) {
+			if (!t.equals(tid))
+				others.add(t);
+		}
+		return others;
+	}
+
+	// called without holding this, so that the page lock table is never
+	// locked inside the key lock table
+	private void waitOrAbort(TransactionId tid, Set<TransactionId> blockers) throws TransactionAbortedException {
+		if (keyHolder.handleKeyDeadlock(tid, blockers))
+			throw new TransactionAbortedException();
+		try {
+			Thread.sleep(RETRY_MILLIS);
+		} catch (InterruptedException e) {
+			throw new TransactionAbortedException();
+		}
+	}
+
+	/**
+	 * @return true if tid holds any lock on key
+	 */
+	public synchronized boolean holdsLock(TransactionId tid, RangeKey key) {
+		HashMap<TransactionId, Permissions> holders = locking.get(key);
+		return holders != null && holders.containsKey(tid);
+	}
+
+	/**
+	 * release all key locks held by a transaction
+	 *
+	 * @param tid
+	 */
+	public synchronized void releaseAllLocksBy(TransactionId tid) {
+		HashSet<RangeKey> keys = heldBy.remove(tid);
+		if (keys == null)
+			return;
+		for (RangeKey key : keys) {
+			HashMap<TransactionId, Permissions> holders = locking.get(key);
+			if (holders == null)
+				continue;
+			holders.remove(tid);
+			if (holders.isEmpty())
+				locking.remove(key);
+		}
+	}
+}
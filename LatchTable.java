@@ -0,0 +1,82 @@
+package simpledb;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * LatchTable hands out short-term read/write latches on pages.
+ * <p>
+ * Latches are separate from the transactional locks managed by {@link KeyHolder}:
+ * they protect the physical consistency of a page while a single operation reads
+ * or changes it, and are released as soon as that operation is done instead of at
+ * commit. They take part in no deadlock detection, so callers must acquire them
+ * in a fixed order (parent before child) and never wait for a transactional lock
+ * while holding one.
+ */
+public class LatchTable {
+
+	/*
+	 * the latch of one page, with the number of threads holding or waiting for
+	 * it; the entry goes away when the last of them is done
+	 */
+	private static class Latch {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		// only changed inside compute calls on the table
+		int users;
+	}
+
+	// page -> its latch, while some thread holds or waits for it
+	private final ConcurrentHashMap<PageId, Latch> latches;
+
+	public LatchTable() {
+		this.latches = new ConcurrentHashMap<>();
+	}
+
+	// the latch of pid, counting the caller as a user
+	private Latch use(PageId pid) {
+		return latches.compute(pid, (p, l) -> {
+			if (l == null)
+				l = new Latch();
+			l.users++;
+			return l;
+		});
+	}
+
+	// the latch of pid, which the caller holds
+	private Latch held(PageId pid) {
+		Latch l = latches.get(pid);
+		if (l == null)
+			throw new IllegalMonitorStateException("page " + pid + " is not latched");
+		return l;
+	}
+
+	private void done(PageId pid) {
+		latches.computeIfPresent(pid, (p, l) -> --l.users == 0 ? null : l);
+	}
+
+	/**
+	 * Acquire the latch on pid in shared mode, blocking while it is held
+	 * exclusively by another thread.
+	 */
+	public void latchShared(PageId pid) {
+		use(pid).lock.readLock().lock();
+	}
+
+	public void unlatchShared(PageId pid) {
+		held(pid).lock.readLock().unlock();
+		done(pid);
+	}
+
+	/**
+	 * Acquire the latch on pid in exclusive mode, blocking while it is held by
+	 * any other thread.
+	 */
+	public void latchExclusive(PageId pid) {
+		use(pid).lock.writeLock().lock();
+	}
+
+	public void unlatchExclusive(PageId pid) {
+		held(pid).lock.writeLock().unlock();
+		done(pid);
+	}
+}
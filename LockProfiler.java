@@ -0,0 +1,399 @@
+package simpledb;
+
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * LockProfiler records where transactions contend for the page locks granted by
+ * {@link KeyHolder}: per table and per page, how many locks were granted, how
+ * many of them had to wait and for how long, how long they were held, and how
+ * many transactions were aborted as deadlock victims while waiting.
+ * <p>
+ * Every table keeps its counters. A page only gets counters once a lock on it
+ * had to wait, and only the {@link #getMaxPages()} pages with the most wait
+ * time keep theirs, so that a scan of a large table does not leave counters
+ * behind for every page it read.
+ * <p>
+ * The numbers are available through {@link #tableStats()} and
+ * {@link #pageStats()}, printed by {@link #dump(PrintStream, int)} (the
+ * <tt>lockstats;</tt> command of the parser), and emitted as the JFR events
+ * {@link LockWaitEvent} and {@link LockHoldEvent}.
+ */
+public class LockProfiler {
+
+	/**
+	 * upper bounds, in microseconds, of the wait-time histogram buckets; the
+	 * last bucket takes everything above the last bound
+	 */
+	public static final long[] WAIT_BUCKETS_MICROS = { 100, 1000, 10000, 100000, 1000000 };
+
+	/** how many pages keep their own counters by default */
+	public static final int DEFAULT_MAX_PAGES = 1000;
+
+	/**
+	 * Counters of one table or one page. All of them are updated without
+	 * locking, so a snapshot read while transactions run may be slightly
+	 * inconsistent.
+	 */
+	public static class LockStats {
+		private final LongAdder acquisitions = new LongAdder();
+		private final LongAdder waits = new LongAdder();
+		private final LongAdder waitNanos = new LongAdder();
+		private final AtomicLong maxWaitNanos = new AtomicLong();
+		private final LongAdder[] waitHistogram = new LongAdder[WAIT_BUCKETS_MICROS.length + 1];
+		private final LongAdder holds = new LongAdder();
+		private final LongAdder holdNanos = new LongAdder();
+		private final AtomicLong maxHoldNanos = new AtomicLong();
+		private final LongAdder deadlockVictims = new LongAdder();
+
+		LockStats() {
+			for (int i = 0; i < waitHistogram.length; i++)
+				waitHistogram[i] = new LongAdder();
+		}
+
+		void granted(long waited) {
+			acquisitions.increment();
+			if (waited > 0)
+				waited(waited);
+		}
+
+		void waited(long nanos) {
+			waits.increment();
+			waitNanos.add(nanos);
+			maxWaitNanos.accumulateAndGet(nanos, Math::max);
+			long micros = nanos / 1000;
+			int b = 0;
+			while (b < WAIT_BUCKETS_MICROS.length && micros >= WAIT_BUCKETS_MICROS[b])
+				b++;
+			waitHistogram[b].increment();
+		}
+
+		void held(long nanos) {
+			holds.increment();
+			holdNanos.add(nanos);
+			maxHoldNanos.accumulateAndGet(nanos, Math::max);
+		}
+
+		/** @return the number of locks granted, not counting repeated requests */
+		public long getAcquisitions() {
+			return acquisitions.sum();
+		}
+
+		/** @return the number of lock requests that could not be granted at once */
+		public long getWaits() {
+			return waits.sum();
+		}
+
+		public long getWaitNanos() {
+			return waitNanos.sum();
+		}
+
+		public long getMaxWaitNanos() {
+			return maxWaitNanos.get();
+		}
+
+		/**
+		 * @return the number of waits per bucket of {@link #WAIT_BUCKETS_MICROS}
+		 */
+		public long[] getWaitHistogram() {
+			long[] h = new long[waitHistogram.length];
+			for (int i = 0; i < h.length; i++)
+				h[i] = waitHistogram[i].sum();
+			return h;
+		}
+
+		/** @return the number of locks released */
+		public long getHolds() {
+			return holds.sum();
+		}
+
+		public long getHoldNanos() {
+			return holdNanos.sum();
+		}
+
+		public long getMaxHoldNanos() {
+			return maxHoldNanos.get();
+		}
+
+		/** @return the number of transactions aborted while waiting for a lock */
+		public long getDeadlockVictims() {
+			return deadlockVictims.sum();
+		}
+	}
+
+	/** A transaction waited for a page lock; its duration is the wait. */
+	@Name("simpledb.LockWait")
+	@Label("Lock Wait")
+	@Category("SimpleDB")
+	@Description("A transaction waited for a page lock")
+	public static class LockWaitEvent extends Event {
+		@Label("Table")
+		int table;
+		@Label("Page")
+		String page;
+		@Label("Transaction")
+		long transaction;
+		@Label("Exclusive")
+		boolean exclusive;
+		@Label("Deadlock Victim")
+		@Description("The transaction was aborted instead of getting the lock")
+		boolean deadlockVictim;
+	}
+
+	/** A page lock was released. */
+	@Name("simpledb.LockHold")
+	@Label("Lock Hold")
+	@Category("SimpleDB")
+	@Description("A transaction held a page lock")
+	public static class LockHoldEvent extends Event {
+		@Label("Table")
+		int table;
+		@Label("Page")
+		String page;
+		@Label("Transaction")
+		long transaction;
+		@Label("Held")
+		@Timespan(Timespan.NANOSECONDS)
+		long held;
+	}
+
+	private volatile boolean enabled = true;
+	private final int maxPages;
+	// table id -> counters
+	private final ConcurrentHashMap<Integer, LockStats> tables;
+	// page that had to wait for a lock -> counters, at most maxPages of them
+	private final ConcurrentHashMap<PageId, LockStats> pages;
+	// transaction -> pages it holds locks on -> when the first of them was granted
+	private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Long>> heldSince;
+
+	public LockProfiler() {
+		this(DEFAULT_MAX_PAGES);
+	}
+
+	/**
+	 * @param maxPages how many pages keep their own counters
+	 */
+	public LockProfiler(int maxPages) {
+		if (maxPages < 1)
+			throw new IllegalArgumentException("maxPages must be positive: " + maxPages);
+		this.maxPages = maxPages;
+		this.tables = new ConcurrentHashMap<>();
+		this.pages = new ConcurrentHashMap<>();
+		this.heldSince = new ConcurrentHashMap<>();
+	}
+
+	/** @return how many pages keep their own counters */
+	public int getMaxPages() {
+		return maxPages;
+	}
+
+	/** Turn recording on or off; counters collected so far are kept. */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/** Forget everything recorded so far. */
+	public void reset() {
+		tables.clear();
+		pages.clear();
+	}
+
+	private LockStats table(PageId pid) {
+		return tables.computeIfAbsent(pid.getTableId(), t -> new LockStats());
+	}
+
+	// the counters of a page a lock had to wait for
+	private LockStats contended(PageId pid) {
+		LockStats s = pages.get(pid);
+		if (s != null)
+			return s;
+		s = pages.computeIfAbsent(pid, p -> new LockStats());
+		if (pages.size() > maxPages)
+			evictCoolest(pid);
+		return s;
+	}
+
+	// drop the counters of the page, other than keep, with the least wait time;
+	// waits are slow anyway, so a linear scan is fine
+	private void evictCoolest(PageId keep) {
+		Map.Entry<PageId, LockStats> coolest = null;
+		for (Map.Entry<PageId, LockStats> e : pages.entrySet()) {
+			if (e.getKey().equals(keep))
+				continue;
+			if (coolest == null || e.getValue().getWaitNanos() < coolest.getValue().getWaitNanos())
+				coolest = e;
+		}
+		if (coolest != null)
+			pages.remove(coolest.getKey(), coolest.getValue());
+	}
+
+	/**
+	 * Called when a lock request of tid on pid could not be granted at once.
+	 *
+	 * @return the event timing the wait, to be passed back to
+	 *         {@link #lockGranted} or {@link #deadlockVictim}
+	 */
+	LockWaitEvent waitStarted() {
+		LockWaitEvent e = new LockWaitEvent();
+		e.begin();
+		return e;
+	}
+
+	/**
+	 * Called when tid was granted a lock on pid.
+	 *
+	 * @param waitNanos how long the request waited, 0 if it was granted at once
+	 * @param wait      the event returned by {@link #waitStarted()}, or null
+	 */
+	void lockGranted(TransactionId tid, PageId pid, Permissions perm, long waitNanos, LockWaitEvent wait) {
+		if (!enabled)
+			return;
+		// a page already locked by tid only counts again if the request had to
+		// wait, i.e. for a contended upgrade
+		Long since = heldSince.computeIfAbsent(tid, t -> new ConcurrentHashMap<>()).putIfAbsent(pid, System.nanoTime());
+		if (since == null || waitNanos > 0) {
+			table(pid).granted(waitNanos);
+			LockStats page = waitNanos > 0 ? contended(pid) : pages.get(pid);
+			if (page != null)
+				page.granted(waitNanos);
+		}
+		if (wait != null)
+			commit(wait, tid, pid, perm, false);
+	}
+
+	/**
+	 * Called when tid was aborted to break a deadlock while waiting for a lock
+	 * on pid.
+	 */
+	void deadlockVictim(TransactionId tid, PageId pid, Permissions perm, long waitNanos, LockWaitEvent wait) {
+		if (!enabled)
+			return;
+		for (LockStats s : new LockStats[] { table(pid), contended(pid) }) {
+			s.waited(waitNanos);
+			s.deadlockVictims.increment();
+		}
+		if (wait != null)
+			commit(wait, tid, pid, perm, true);
+	}
+
+	private void commit(LockWaitEvent e, TransactionId tid, PageId pid, Permissions perm, boolean victim) {
+		e.end();
+		if (e.shouldCommit()) {
+			e.table = pid.getTableId();
+			e.page = pid.getTableId() + ":" + pid.getPageNumber();
+			e.transaction = tid.getId();
+			e.exclusive = perm == Permissions.READ_WRITE;
+			e.deadlockVictim = victim;
+			e.commit();
+		}
+	}
+
+	/**
+	 * Called when tid released its lock on pid.
+	 */
+	void lockReleased(TransactionId tid, PageId pid) {
+		ConcurrentHashMap<PageId, Long> held = heldSince.get(tid);
+		Long since = held == null ? null : held.remove(pid);
+		if (held != null && held.isEmpty())
+			heldSince.remove(tid, held);
+		if (since == null || !enabled)
+			return;
+		long nanos = System.nanoTime() - since;
+		table(pid).held(nanos);
+		LockStats page = pages.get(pid);
+		if (page != null)
+			page.held(nanos);
+		LockHoldEvent e = new LockHoldEvent();
+		if (e.isEnabled()) {
+			e.table = pid.getTableId();
+			e.page = pid.getTableId() + ":" + pid.getPageNumber();
+			e.transaction = tid.getId();
+			e.held = nanos;
+			e.commit();
+		}
+	}
+
+	/** @return the counters of every table that has been locked, by table id */
+	public Map<Integer, LockStats> tableStats() {
+		return Collections.unmodifiableMap(tables);
+	}
+
+	/**
+	 * @return the counters of the pages kept, at most {@link #getMaxPages()}
+	 *         of those a lock had to wait for
+	 */
+	public Map<PageId, LockStats> pageStats() {
+		return Collections.unmodifiableMap(pages);
+	}
+
+	/**
+	 * @return up to n pages, those with the most total wait time first
+	 */
+	public List<PageId> hottestPages(int n) {
+		ArrayList<Map.Entry<PageId, LockStats>> all = new ArrayList<>(pages.entrySet());
+		all.sort((a, b) -> Long.compare(b.getValue().getWaitNanos(), a.getValue().getWaitNanos()));
+		ArrayList<PageId> hot = new ArrayList<>();
+		for (Map.Entry<PageId, LockStats> e : all) {
+			if (hot.size() == n || e.getValue().getWaits() == 0)
+				break;
+			hot.add(e.getKey());
+		}
+		return hot;
+	}
+
+	/**
+	 * Print the counters of every table and of the hottest pages.
+	 *
+	 * @param out      where to print
+	 * @param topPages how many of the pages with the most wait time to list
+	 */
+	public void dump(PrintStream out, int topPages) {
+		out.println("lock statistics per table");
+		for (Map.Entry<Integer, LockStats> e : new TreeMap<>(tables).entrySet()) {
+			out.println(format(tableName(e.getKey()), e.getValue()));
+		}
+		out.println("hottest pages");
+		for (PageId pid : hottestPages(topPages)) {
+			out.println(format(tableName(pid.getTableId()) + " page " + pid.getPageNumber(), pages.get(pid)));
+		}
+	}
+
+	private static String tableName(int tableId) {
+		try {
+			return Database.getCatalog().getTableName(tableId);
+		} catch (NoSuchElementException e) {
+			return Integer.toString(tableId);
+		}
+	}
+
+	private static String format(String what, LockStats s) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("  %s: acquired=%d waited=%d wait=%.1fms maxwait=%.1fms held=%.1fms maxheld=%.1fms victims=%d",
+				what, s.getAcquisitions(), s.getWaits(), s.getWaitNanos() / 1e6, s.getMaxWaitNanos() / 1e6,
+				s.getHoldNanos() / 1e6, s.getMaxHoldNanos() / 1e6, s.getDeadlockVictims()));
+		sb.append(" waits(us)=[");
+		long[] h = s.getWaitHistogram();
+		for (int i = 0; i < h.length; i++) {
+			if (i > 0)
+				sb.append(' ');
+			sb.append(i < WAIT_BUCKETS_MICROS.length ? "<" + WAIT_BUCKETS_MICROS[i] : ">=" + WAIT_BUCKETS_MICROS[i - 1]);
+			sb.append(':').append(h[i]);
+		}
+		sb.append(']');
+		return sb.toString();
+	}
+}
@@ -2,6 +2,7 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -88,6 +89,7 @@ public class LogFile {
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    private byte[] pageBuffer;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
@@ -240,9 +242,14 @@ public class LogFile {
         for (int i = 0; i < pageInfo.length; i++) {
             raf.writeInt(pageInfo[i]);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        // every caller holds the lock on this log, so the buffer can be reused
+        int pageSize = p.getPageDataSize();
+        if (pageBuffer == null || pageBuffer.length < pageSize)
+            pageBuffer = new byte[pageSize];
+        ByteBuffer buf = ByteBuffer.wrap(pageBuffer);
+        p.writePageData(buf);
+        raf.writeInt(buf.position());
+        raf.write(pageBuffer, 0, buf.position());
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
@@ -6,6 +6,8 @@ import java.util.Iterator;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.List;
+import java.util.BitSet;
 
 /**
  * LogicalPlan represents a logical query plan that has been through
@@ -289,6 +291,8 @@ public class LogicalPlan {
         HashMap<String,String> equivMap = new HashMap<String,String>();
         HashMap<String,Double> filterSelectivities = new HashMap<String, Double>();
         HashMap<String,TableStats> statsMap = new HashMap<String,TableStats>();
+        HashMap<String,SeqScan> scans = new HashMap<String,SeqScan>();
+        HashMap<String,List<Predicate>> scanFilters = new HashMap<String,List<Predicate>>();
 
         while (tableIt.hasNext()) {
             LogicalScanNode table = tableIt.next();
@@ -300,6 +304,7 @@ public class LogicalPlan {
             }
             
             subplanMap.put(table.alias,ss);
+            scans.put(table.alias, ss);
             String baseTableName = Database.getCatalog().getTableName(table.t);
             statsMap.put(baseTableName, baseTableStats.get(baseTableName));
             filterSelectivities.put(table.alias, 1.0);
@@ -334,6 +339,11 @@ public class LogicalPlan {
             } catch (NoSuchElementException e) {
                 throw new ParsingException("Unknown field " + lf.fieldQuantifiedName);
             }
+            // the first filter on a table also goes into its scan, which can
+            // skip the pages it rules out
+            if (subplan instanceof SeqScan && ((SeqScan) subplan).getPredicate() == null)
+                ((SeqScan) subplan).setPredicate(p);
+            scanFilters.computeIfAbsent(lf.tableAlias, k -> new ArrayList<Predicate>()).add(p);
             subplanMap.put(lf.tableAlias, new Filter(p, subplan));
 
             TableStats s = statsMap.get(Database.getCatalog().getTableName(this.getTableId(lf.tableAlias)));
@@ -343,6 +353,22 @@ public class LogicalPlan {
 
             //s.addSelectivityFactor(estimateFilterSelectivity(lf,statsMap));
         }
+
+        // scans of partitioned tables read only the partitions all their
+        // filters leave, several at a time in read-only transactions, which
+        // take no locks
+        for (Map.Entry<String,SeqScan> e : scans.entrySet()) {
+            DbFile file = Database.getCatalog().getDatabaseFile(getTableId(e.getKey()));
+            if (!(file instanceof PartitionedFile))
+                continue;
+            PartitionedFile pf = (PartitionedFile) file;
+            BitSet parts = pf.prune(scanFilters.getOrDefault(e.getKey(), new ArrayList<Predicate>()));
+            e.getValue().setPartitions(parts);
+            if (t.isReadOnly())
+                e.getValue().setThreads(Math.min(parts.cardinality(), Runtime.getRuntime().availableProcessors()));
+            if (explain)
+                System.out.println("Scanning " + parts.cardinality() + " of " + pf.numPartitions() + " partitions of " + e.getKey());
+        }
         
         JoinOptimizer jo = new JoinOptimizer(this,joins);
 
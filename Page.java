@@ -1,5 +1,7 @@
 package simpledb;
 
+import java.nio.ByteBuffer;
+
 /**
  * Page is the interface used to represent pages that are resident in the
  * BufferPool.  Typically, DbFiles will read and write pages from disk.
@@ -46,14 +48,37 @@ public interface Page {
 
     public byte[] getPageData();
 
+  /**
+   * Writes the bytes getPageData would return into buf at its position,
+   * advancing the position past them. Pages that can serialize themselves
+   * without building a new array override this.
+   *
+   * @param buf where to write the page; must have room for a whole page
+   */
+    default void writePageData(ByteBuffer buf) {
+        buf.put(getPageData());
+    }
+
+    /**
+     * @return the number of bytes getPageData returns; pages of tables with
+     * their own page size override this
+     * @see BufferPool#getPageSize()
+     */
+    default int getPageDataSize() {
+        return BufferPool.getPageSize();
+    }
+
     /** Provide a representation of this page before any modifications were made
         to it.  Used by recovery.
+        Pages need not keep a copy of themselves while they are unchanged: one
+        can be taken when the page is first marked dirty, before it is modified.
     */
     public Page getBeforeImage();
 
     /*
      * a transaction that wrote this page just committed it.
-     * copy current content to the before image.
+     * copy current content to the before image, e.g. by dropping the copy
+     * kept since the page was dirtied.
      */
     public void setBeforeImage();
 }
@@ -0,0 +1,148 @@
+package simpledb;
+
+/**
+ * PageCodec is a small LZ77 compressor for page images, in the spirit of LZ4:
+ * fast rather than tight, and good at the runs of zeroes and repeated bytes
+ * of fixed-width pages.
+ * <p>
+ * The compressed form is a sequence of blocks, each a token byte whose high
+ * nibble is the number of literal bytes and low nibble the match length minus
+ * 4 (15 meaning more length bytes of up to 255 each follow), the literals,
+ * then a 2-byte little-endian distance back to the match. The last block has
+ * literals only.
+ *
+ * @see CompressedHeapFile
+ */
+public class PageCodec {
+
+	private static final int MIN_MATCH = 4;
+	private static final int HASH_BITS = 12;
+	private static final int MAX_DISTANCE = 0xffff;
+
+	private PageCodec() {
+	}
+
+	/**
+	 * @return the largest number of bytes compressing len bytes can take
+	 */
+	public static int maxCompressedLength(int len) {
+		return len + len / 255 + 16;
+	}
+
+	/**
+	 * Compress src[0..len) into dst, which must hold
+	 * {@link #maxCompressedLength(int)} bytes.
+	 *
+	 * @return the number of bytes written to dst
+	 */
+	public static int compress(byte[] src, int len, byte[] dst) {
+		int[] table = new int[1 << HASH_BITS];
+		int anchor = 0;
+		int out = 0;
+		int i = 0;
+		while (i + MIN_MATCH <= len) {
+			int seq = readInt(src, i);
+			int h = (seq * -1640531535) >>> (32 - HASH_BITS);
+			// positions are stored plus one, so that 0 is an empty entry
+			int ref = table[h] - 1;
+			table[h] = i + 1;
+			if (ref < 0 || i - ref > MAX_DISTANCE || readInt(src, ref) != seq) {
+				i++;
+				continue;
+			}
+			int matchLen = MIN_MATCH;
+			while (i + matchLen < len && src[ref + matchLen] == src[i + matchLen])
+				matchLen++;
+			out = writeBlock(src, anchor, i - anchor, dst, out, i - ref, matchLen);
+			i += matchLen;
+			anchor = i;
+		}
+		return writeBlock(src, anchor, len - anchor, dst, out, 0, 0);
+	}
+
+	// a block of literals followed by a match, or by nothing if matchLen is 0
+	private static int writeBlock(byte[] src, int litStart, int litLen, byte[] dst, int out, int distance,
+			int matchLen) {
+		int m = matchLen == 0 ? 0 : matchLen - MIN_MATCH;
+		dst[out++] = (byte) ((Math.min(litLen, 15) << 4) | Math.min(m, 15));
+		if (litLen >= 15)
+			out = writeLength(dst, out, litLen - 15);
+		System.arraycopy(src, litStart, dst, out, litLen);
+		out += litLen;
+		if (matchLen == 0)
+			return out;
+		dst[out++] = (byte) distance;
+		dst[out++] = (byte) (distance >>> 8);
+		if (m >= 15)
+			out = writeLength(dst, out, m - 15);
+		return out;
+	}
+
+	private static int writeLength(byte[] dst, int out, int len) {
+		while (len >= 255) {
+			dst[out++] = (byte) 255;
+			len -= 255;
+		}
+		dst[out++] = (byte) len;
+		return out;
+	}
+
+	/**
+	 * Decompress src[off..off+len) into dst.
+	 *
+	 * @return the number of bytes written to dst
+	 * @throws IllegalArgumentException if src is not a valid compressed form,
+	 *                                  or does not fit in dst
+	 */
+	public static int decompress(byte[] src, int off, int len, byte[] dst) {
+		int in = off;
+		int end = off + len;
+		int out = 0;
+		try {
+			while (in < end) {
+				int token = src[in++] & 0xff;
+				int litLen = token >>> 4;
+				if (litLen == 15) {
+					int b;
+					do {
+						b = src[in++] & 0xff;
+						litLen += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, in, dst, out, litLen);
+				in += litLen;
+				out += litLen;
+				if (in == end)
+					break;
+				int distance = (src[in++] & 0xff) | (src[in++] & 0xff) << 8;
+				int matchLen = token & 0x0f;
+				if (matchLen == 15) {
+					int b;
+					do {
+						b = src[in++] & 0xff;
+						matchLen += b;
+					} while (b == 255);
+				}
+				matchLen += MIN_MATCH;
+				int ref = out - distance;
+				if (distance == 0 || ref < 0)
+					throw new IllegalArgumentException("corrupt compressed page: bad match distance");
+				if (distance >= matchLen) {
+					System.arraycopy(dst, ref, dst, out, matchLen);
+					out += matchLen;
+				} else {
+					// the match overlaps what it produces, e.g. a run of zeroes
+					for (int k = 0; k < matchLen; k++)
+						dst[out++] = dst[ref++];
+				}
+			}
+		} catch (IndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("corrupt compressed page: " + e.getMessage());
+		}
+		return out;
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | (b[i + 3] & 0xff) << 24;
+	}
+}
@@ -606,7 +606,12 @@ public class Parser {
 
     protected void start(String[] argv) throws IOException {
         // first add tables to database
-        Database.getCatalog().loadSchema(argv[0]);
+        try {
+            Database.getCatalog().loadSchema(argv[0]);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(0);
+        }
         TableStats.computeStatistics();
 
         String queryFile = null;
@@ -681,6 +686,12 @@ public class Parser {
                         quit = true;
                         break;
                     }
+                    if (cmd.equalsIgnoreCase("lockstats;")) {
+                        Database.getBufferPool().getLockProfiler().dump(System.out, 10);
+                        line = line.substring(split + 1);
+                        buffer = new StringBuilder();
+                        continue;
+                    }
 
                     long startTime = System.currentTimeMillis();
                     processNextStatement(new ByteArrayInputStream(
@@ -0,0 +1,438 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * PartitionedFile is a table stored as several DbFiles, its partitions, split
+ * on the value of one column: either by ranges of an int column, or by the
+ * hash of any column. Each tuple is inserted into the partition its value
+ * belongs to, and a scan with a predicate on the partitioning column reads only
+ * the partitions that can hold tuples passing it, see {@link #prune}.
+ * <p>
+ * The partitions are ordinary tables with ids of their own; the
+ * {@link Catalog} knows them through the PartitionedFile, so that the
+ * BufferPool can read and write their pages, but does not list them as tables.
+ * Pages, locks and RecordIds all belong to the partitions.
+ */
+public class PartitionedFile implements DbFile {
+
+	/** How tuples are assigned to partitions. */
+	public enum Scheme {
+		/** partition i holds the values from bound i - 1 up to, but not including, bound i */
+		RANGE,
+		/** partition i holds the values whose hash code is i modulo the number of partitions */
+		HASH
+	}
+
+	/** The number of tuples a worker of a parallel scan hands over at a time. */
+	static final int BATCH_SIZE = 256;
+
+	private volatile int id;
+	private final TupleDesc td;
+	private final Scheme scheme;
+	private final int field;
+	private final int[] bounds;
+	private final DbFile[] partitions;
+
+	private PartitionedFile(TupleDesc td, Scheme scheme, int field, int[] bounds, DbFile[] partitions) {
+		if (partitions.length == 0)
+			throw new IllegalArgumentException("a partitioned table needs a partition");
+		if (field < 0 || field >= td.numFields())
+			throw new IllegalArgumentException("no field " + field + " in " + td);
+		int[] ids = new int[partitions.length];
+		for (int i = 0; i < partitions.length; i++) {
+			if (!partitions[i].getTupleDesc().equals(td))
+				throw new IllegalArgumentException("partition " + i + " has schema " + partitions[i].getTupleDesc());
+			ids[i] = partitions[i].getId();
+		}
+		this.id = Arrays.hashCode(ids);
+		this.td = td;
+		this.scheme = scheme;
+		this.field = field;
+		this.bounds = bounds;
+		this.partitions = partitions;
+	}
+
+	/**
+	 * @param field      the int field to partition on
+	 * @param bounds     the ascending bounds between the partitions, one fewer
+	 *                   than partitions; partition 0 holds the values below
+	 *                   bounds[0], the last one the values from the last bound
+	 *                   on
+	 * @param partitions the files of the partitions, all with schema td
+	 */
+	public static PartitionedFile byRange(TupleDesc td, int field, int[] bounds, DbFile[] partitions) {
+		if (td.getFieldType(field) != Type.INT_TYPE)
+			throw new IllegalArgumentException("range partitioning needs an int field, not " + td.getFieldType(field));
+		if (bounds.length != partitions.length - 1)
+			throw new IllegalArgumentException(partitions.length + " partitions need " + (partitions.length - 1)
+					+ " bounds, not " + bounds.length);
+		for (int i = 1; i < bounds.length; i++) {
+			if (bounds[i] <= bounds[i - 1])
+				throw new IllegalArgumentException("partition bounds must ascend: " + Arrays.toString(bounds));
+		}
+		return new PartitionedFile(td, Scheme.RANGE, field, bounds.clone(), partitions.clone());
+	}
+
+	/**
+	 * @param field      the field to partition on
+	 * @param partitions the files of the partitions, all with schema td
+	 */
+	public static PartitionedFile byHash(TupleDesc td, int field, DbFile[] partitions) {
+		return new PartitionedFile(td, Scheme.HASH, field, null, partitions.clone());
+	}
+
+	public Scheme getScheme() {
+		return scheme;
+	}
+
+	/**
+	 * @return the field the table is partitioned on
+	 */
+	public int getField() {
+		return field;
+	}
+
+	public int numPartitions() {
+		return partitions.length;
+	}
+
+	public DbFile getPartition(int i) {
+		return partitions[i];
+	}
+
+	/**
+	 * @return the partition a tuple with value v in the partitioning field
+	 *         belongs to
+	 */
+	public int partitionOf(Field v) {
+		if (scheme == Scheme.HASH)
+			return Math.floorMod(v.hashCode(), partitions.length);
+		int x = ((IntField) v).getValue();
+		int lo = 0;
+		int hi = bounds.length;
+		// the number of bounds at or below x
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (bounds[mid] <= x)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	/**
+	 * @return the partitions that may hold tuples passing all of ps; all of
+	 *         them if ps says nothing about the partitioning field
+	 */
+	public BitSet prune(List<Predicate> ps) {
+		BitSet parts = new BitSet(partitions.length);
+		parts.set(0, partitions.length);
+		for (Predicate p : ps)
+			parts.and(prune(p));
+		return parts;
+	}
+
+	/**
+	 * @return the partitions that may hold tuples passing p; all of them if p
+	 *         is null or not on the partitioning field
+	 */
+	public BitSet prune(Predicate p) {
+		BitSet parts = new BitSet(partitions.length);
+		if (p == null || p.getField() != field) {
+			parts.set(0, partitions.length);
+		} else if (scheme == Scheme.HASH) {
+			if (p.getOp() == Predicate.Op.EQUALS)
+				parts.set(partitionOf(p.getOperand()));
+			else
+				parts.set(0, partitions.length);
+		} else {
+			for (int i = 0; i < partitions.length; i++) {
+				int min = i == 0 ? Integer.MIN_VALUE : bounds[i - 1];
+				int max = i == bounds.length ? Integer.MAX_VALUE : bounds[i] - 1;
+				if (p.mayMatch(min, max))
+					parts.set(i);
+			}
+		}
+		return parts;
+	}
+
+	// the partition with the given table id
+	private DbFile partition(int tableId) throws NoSuchElementException {
+		DbFile f = findPartition(tableId);
+		if (f == null)
+			throw new NoSuchElementException("table " + tableId + " is not a partition of this table");
+		return f;
+	}
+
+	/**
+	 * @return the partition with the given table id, or null
+	 */
+	DbFile findPartition(int tableId) {
+		for (DbFile f : partitions) {
+			if (f.getId() == tableId)
+				return f;
+		}
+		return null;
+	}
+
+	// see DbFile.java for javadocs
+	public Page readPage(PageId pid) {
+		return partition(pid.getTableId()).readPage(pid);
+	}
+
+	// see DbFile.java for javadocs
+	public void writePage(Page p) throws IOException {
+		partition(p.getId().getTableId()).writePage(p);
+	}
+
+	// see DbFile.java for javadocs
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		return partitions[partitionOf(t.getField(field))].insertTuple(tid, t);
+	}
+
+	/**
+	 * Inserts the tuples into their partitions, with one bulk insert per
+	 * partition.
+	 */
+	public ArrayList<Page> insertTuples(TransactionId tid, List<Tuple> tuples)
+			throws DbException, IOException, TransactionAbortedException {
+		ArrayList<ArrayList<Tuple>> byPartition = new ArrayList<ArrayList<Tuple>>(partitions.length);
+		for (int i = 0; i < partitions.length; i++)
+			byPartition.add(new ArrayList<Tuple>());
+		for (Tuple t : tuples)
+			byPartition.get(partitionOf(t.getField(field))).add(t);
+		ArrayList<Page> modified = new ArrayList<Page>();
+		for (int i = 0; i < partitions.length; i++) {
+			if (!byPartition.get(i).isEmpty())
+				modified.addAll(partitions[i].insertTuples(tid, byPartition.get(i)));
+		}
+		return modified;
+	}
+
+	// see DbFile.java for javadocs
+	public Page deleteTuple(TransactionId tid, Tuple t) throws DbException, IOException, TransactionAbortedException {
+		DbFile f = findPartition(t.getRecordId().getPageId().getTableId());
+		if (f == null)
+			throw new DbException("tuple " + t + " is not in this table");
+		return f.deleteTuple(tid, t);
+	}
+
+	// see DbFile.java for javadocs
+	public DbFileIterator iterator(TransactionId tid) {
+		return iterator(tid, null);
+	}
+
+	/**
+	 * Returns an iterator over the tuples that pass p, reading only the
+	 * partitions that may hold such tuples.
+	 */
+	public DbFileIterator iterator(TransactionId tid, Predicate p) {
+		return iterator(tid, p, prune(p));
+	}
+
+	/**
+	 * Returns an iterator over the tuples of the given partitions that pass p,
+	 * one partition after the other.
+	 */
+	public DbFileIterator iterator(TransactionId tid, Predicate p, BitSet parts) {
+		return new AbstractDbFileIterator() {
+			private int current = -1;
+			private DbFileIterator it;
+
+			public void open() throws DbException, TransactionAbortedException {
+				current = -1;
+				it = null;
+			}
+
+			public void rewind() throws DbException, TransactionAbortedException {
+				close();
+				open();
+			}
+
+			public void close() {
+				super.close();
+				if (it != null)
+					it.close();
+				it = null;
+				current = -1;
+			}
+
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				while (it == null || !it.hasNext()) {
+					if (it != null)
+						it.close();
+					current = parts.nextSetBit(current + 1);
+					if (current < 0 || current >= partitions.length) {
+						it = null;
+						return null;
+					}
+					it = partitions[current].iterator(tid, p);
+					it.open();
+				}
+				return it.next();
+			}
+		};
+	}
+
+	/**
+	 * Returns an iterator over the tuples of the given partitions that pass p,
+	 * scanning up to threads partitions at a time on threads of its own. The
+	 * tuples come in no particular order.
+	 * <p>
+	 * All workers read as tid. The lock manager tracks one waiting page per
+	 * transaction, so this is meant for read-only transactions (see
+	 * {@link Transaction#startReadOnly}), which read committed pages without
+	 * locks, or for tables no other transaction is writing.
+	 */
+	public DbFileIterator parallelIterator(TransactionId tid, Predicate p, BitSet parts, int threads) {
+		return new ParallelIterator(tid, p, parts, threads);
+	}
+
+	private static final List<Tuple> END = Collections.emptyList();
+
+	private class ParallelIterator extends AbstractDbFileIterator {
+		private final TransactionId tid;
+		private final Predicate p;
+		private final BitSet parts;
+		private final int threads;
+		// the batches of the current run, and whether it was closed; every open
+		// starts a run of its own, so workers of a closed run never mix in
+		private BlockingQueue<List<Tuple>> queue;
+		private AtomicBoolean stop;
+		private AtomicReference<Exception> failure;
+		// partitions of the current run not done yet
+		private int running;
+		private Iterator<Tuple> batch;
+
+		ParallelIterator(TransactionId tid, Predicate p, BitSet parts, int threads) {
+			this.tid = tid;
+			this.p = p;
+			this.parts = parts;
+			this.threads = Math.max(1, threads);
+		}
+
+		public void open() throws DbException, TransactionAbortedException {
+			close();
+			BlockingQueue<List<Tuple>> q = new ArrayBlockingQueue<List<Tuple>>(threads * 4);
+			AtomicBoolean s = new AtomicBoolean();
+			AtomicReference<Exception> f = new AtomicReference<Exception>();
+			running = parts.get(0, partitions.length).cardinality();
+			ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, running)), r -> {
+				Thread t = new Thread(r, "partition-scan");
+				t.setDaemon(true);
+				return t;
+			});
+			for (int i = parts.nextSetBit(0); i >= 0 && i < partitions.length; i = parts.nextSetBit(i + 1)) {
+				DbFile part = partitions[i];
+				pool.execute(() -> scan(part, q, s, f));
+			}
+			pool.shutdown();
+			queue = q;
+			stop = s;
+			failure = f;
+		}
+
+		// runs on a worker: hand the tuples of part over in batches
+		private void scan(DbFile part, BlockingQueue<List<Tuple>> q, AtomicBoolean s, AtomicReference<Exception> f) {
+			try {
+				DbFileIterator it = part.iterator(tid, p);
+				it.open();
+				try {
+					ArrayList<Tuple> b = new ArrayList<Tuple>(BATCH_SIZE);
+					while (!s.get() && it.hasNext()) {
+						b.add(it.next());
+						if (b.size() == BATCH_SIZE) {
+							put(q, s, b);
+							b = new ArrayList<Tuple>(BATCH_SIZE);
+						}
+					}
+					if (!b.isEmpty())
+						put(q, s, b);
+				} finally {
+					it.close();
+				}
+			} catch (Exception e) {
+				f.compareAndSet(null, e);
+			} finally {
+				put(q, s, END);
+			}
+		}
+
+		// wait for room in the queue unless the run is stopped meanwhile; the
+		// workers are never interrupted, since that would close the file
+		// channels they read through for every thread
+		private void put(BlockingQueue<List<Tuple>> q, AtomicBoolean s, List<Tuple> b) {
+			try {
+				while (!s.get()) {
+					if (q.offer(b, 10, TimeUnit.MILLISECONDS))
+						return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		protected Tuple readNext() throws DbException, TransactionAbortedException {
+			while (batch == null || !batch.hasNext()) {
+				if (queue == null || running == 0)
+					return null;
+				List<Tuple> b;
+				try {
+					b = queue.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new DbException("interrupted while scanning partitions");
+				}
+				if (b == END) {
+					running--;
+					Exception e = failure.get();
+					if (e instanceof TransactionAbortedException)
+						throw (TransactionAbortedException) e;
+					if (e != null)
+						throw new DbException("scanning a partition failed: " + e.getMessage());
+				}
+				batch = b.iterator();
+			}
+			return batch.next();
+		}
+
+		public void rewind() throws DbException, TransactionAbortedException {
+			open();
+		}
+
+		public void close() {
+			super.close();
+			if (stop != null)
+				stop.set(true);
+			queue = null;
+			stop = null;
+			failure = null;
+			batch = null;
+			running = 0;
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @see HeapFile#setId
+	 */
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	// see DbFile.java for javadocs
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+}
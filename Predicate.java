@@ -47,6 +47,9 @@ public class Predicate implements Serializable {
     private int field;
     private Op op;
     private Field operand;
+    // the operand as a code of the dictionary last compared with; see filter
+    private transient DictField coded;
+    private transient int codedSize;
     
     /**
      * Constructor.
@@ -104,10 +107,64 @@ public class Predicate implements Serializable {
      */
     public boolean filter(Tuple t) {
         // some code goes here
-        Field f = t.getField(field);
+        return filter(t.getField(field));
+    }
+
+    /**
+     * Compares f, the value of the field number specified in the constructor,
+     * to the operand. A string operand is looked up once in the dictionary of
+     * a {@link DictField}, so that tuples of that dictionary are compared by
+     * their codes.
+     * 
+     * @return true if the comparison is true, false otherwise.
+     */
+    public boolean filter(Field f) {
+        if (f instanceof DictField && operand instanceof StringField) {
+            StringDictionary dict = ((DictField) f).getDictionary();
+            if (dict != null) {
+                DictField c = coded;
+                // a string missing from the dictionary may have been added since
+                if (c == null || c.getDictionary() != dict || (c.getCode() < 0 && codedSize != dict.size())) {
+                    codedSize = dict.size();
+                    c = dict.lookup(((StringField) operand).getValue());
+                    coded = c;
+                }
+                return f.compare(op, c);
+            }
+        }
     	return f.compare(op, operand);
     }
 
+    /**
+     * Tells whether a tuple whose compared field is an int between min and
+     * max (inclusive) could pass this predicate, e.g. to skip a block of
+     * tuples whose bounds are known.
+     *
+     * @return false only if no such tuple can pass; true for predicates on
+     *         non-int operands
+     */
+    public boolean mayMatch(int min, int max) {
+        if (!(operand instanceof IntField))
+            return true;
+        int v = ((IntField) operand).getValue();
+        switch (op) {
+        case EQUALS:
+            return min <= v && v <= max;
+        case GREATER_THAN:
+            return max > v;
+        case GREATER_THAN_OR_EQ:
+            return max >= v;
+        case LESS_THAN:
+            return min < v;
+        case LESS_THAN_OR_EQ:
+            return min <= v;
+        case NOT_EQUALS:
+            return !(min == v && max == v);
+        default:
+            return true;
+        }
+    }
+
     /**
      * Returns something useful, like "f = field_id op = op_string operand =
      * operand_string"
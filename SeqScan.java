@@ -14,6 +14,11 @@ public class SeqScan implements OpIterator {
     private String tableAlias;
     private DbFile dbFile;
     private DbFileIterator iterator;
+    private Predicate predicate;
+    // the partitions of a PartitionedFile to read, or null for all
+    private BitSet partitions;
+    // how many partitions of a PartitionedFile to read at a time
+    private int threads = 1;
 
     /**
      * Creates a sequential scan over the specified table as a part of the
@@ -39,6 +44,71 @@ public class SeqScan implements OpIterator {
         this.iterator = dbFile.iterator(tid);
     }
 
+    /**
+     * Creates a sequential scan that only returns the tuples that pass p,
+     * letting the table skip whatever it can tell fails p without reading it.
+     *
+     * @param p
+     *            the predicate, on the fields of the table
+     */
+    public SeqScan(TransactionId tid, int tableid, String tableAlias, Predicate p) {
+        this(tid, tableid, tableAlias);
+        setPredicate(p);
+    }
+
+    /**
+     * Makes this scan return only the tuples that pass p, or all of them if
+     * p is null. Takes effect when the scan is next opened.
+     */
+    public void setPredicate(Predicate p) {
+        this.predicate = p;
+        this.iterator = makeIterator();
+    }
+
+    /**
+     * Makes a scan of a {@link PartitionedFile} read only the given
+     * partitions, e.g. those {@link PartitionedFile#prune} leaves, or all of
+     * them if parts is null. Takes effect when the scan is next opened.
+     */
+    public void setPartitions(BitSet parts) {
+        this.partitions = parts;
+        this.iterator = makeIterator();
+    }
+
+    /**
+     * @return the partitions this scan reads, or null for all
+     */
+    public BitSet getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * Makes a scan of a {@link PartitionedFile} read up to n partitions at a
+     * time, see {@link PartitionedFile#parallelIterator}. Takes effect when
+     * the scan is next opened.
+     */
+    public void setThreads(int n) {
+        this.threads = n;
+        this.iterator = makeIterator();
+    }
+
+    private DbFileIterator makeIterator() {
+        if (!(dbFile instanceof PartitionedFile))
+            return dbFile.iterator(tid, predicate);
+        PartitionedFile pf = (PartitionedFile) dbFile;
+        BitSet parts = partitions != null ? partitions : pf.prune(predicate);
+        if (threads > 1)
+            return pf.parallelIterator(tid, predicate, parts, threads);
+        return pf.iterator(tid, predicate, parts);
+    }
+
+    /**
+     * @return the predicate the tuples of this scan pass, or null
+     */
+    public Predicate getPredicate() {
+        return predicate;
+    }
+
     /**
      * @return
      *       return the table name of the table the operator scans. This should
@@ -74,7 +144,8 @@ public class SeqScan implements OpIterator {
         // some code goes here
         this.tableAlias = tableAlias;
         dbFile = Database.getCatalog().getDatabaseFile(tableid);
-        iterator = dbFile.iterator(tid);
+        partitions = null;
+        iterator = makeIterator();
         
     }
 
@@ -125,6 +196,25 @@ public class SeqScan implements OpIterator {
         iterator.close();
     }
 
+    /**
+     * Counts the tuples this scan returns. Without a predicate, the tuples
+     * of a HeapFile are counted from the slot headers of its pages, without
+     * decoding them.
+     */
+    public long count() throws DbException, TransactionAbortedException {
+        if (dbFile instanceof HeapFile && predicate == null)
+            return ((HeapFile) dbFile).countTuples(tid);
+        DbFileIterator it = makeIterator();
+        long n = 0;
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
     public void rewind() throws DbException, NoSuchElementException,
             TransactionAbortedException {
         // some code goes here
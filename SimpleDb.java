@@ -43,8 +43,9 @@ public class SimpleDb {
                     fieldSeparator=args[4].charAt(0);
             }
 
-            HeapFileEncoder.convert(sourceTxtFile,targetDatFile,
-                        BufferPool.getPageSize(),numOfAttributes,ts,fieldSeparator);
+            BulkLoader.Result r = BulkLoader.load(sourceTxtFile, targetDatFile,
+                        new TupleDesc(ts), fieldSeparator);
+            System.out.println("Loaded " + r);
 
         } catch (IOException e) {
                 throw new RuntimeException(e);
@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * SlotBitmap holds the slot headers of pages as long words, slot i being bit
+ * i % 64 of word i / 64, so that counting slots and finding the next used or
+ * empty one look at 64 slots at a time. That is the bit order of the header
+ * bytes on disk, with the first byte lowest.
+ * <p>
+ * Bits past the last slot of a page are kept clear.
+ *
+ * @see HeapPage
+ * @see BTreeLeafPage
+ * @see BTreeHeaderPage
+ */
+final class SlotBitmap {
+
+	private SlotBitmap() {
+	}
+
+	/**
+	 * @return the words of a bitmap for numSlots slots, all empty
+	 */
+	static long[] create(int numSlots) {
+		return new long[(numSlots + 63) >>> 6];
+	}
+
+	/**
+	 * @return the words of the header of numSlots slots stored in b from off
+	 *         on, in (numSlots + 7) / 8 bytes
+	 */
+	static long[] read(byte[] b, int off, int numSlots) {
+		long[] words = create(numSlots);
+		int len = (numSlots + 7) >>> 3;
+		int i = 0;
+		for (; i + 8 <= len; i += 8)
+			words[i >>> 3] = (b[off + i] & 0xffL) | (b[off + i + 1] & 0xffL) << 8 | (b[off + i + 2] & 0xffL) << 16
+					| (b[off + i + 3] & 0xffL) << 24 | (b[off + i + 4] & 0xffL) << 32 | (b[off + i + 5] & 0xffL) << 40
+					| (b[off + i + 6] & 0xffL) << 48 | (b[off + i + 7] & 0xffL) << 56;
+		for (; i < len; i++)
+			words[i >>> 3] |= (b[off + i] & 0xffL) << ((i & 7) << 3);
+		if ((numSlots & 63) != 0)
+			words[words.length - 1] &= (1L << numSlots) - 1;
+		return words;
+	}
+
+	/**
+	 * @return header byte i of the bitmap
+	 */
+	static byte byteAt(long[] words, int i) {
+		return (byte) (words[i >>> 3] >>> ((i & 7) << 3));
+	}
+
+	/**
+	 * Write the first len header bytes of the bitmap into buf from pos on.
+	 */
+	static void write(long[] words, ByteBuffer buf, int pos, int len) {
+		for (int i = 0; i < len; i++)
+			buf.put(pos + i, byteAt(words, i));
+	}
+
+	static boolean get(long[] words, int i) {
+		return (words[i >>> 6] & (1L << i)) != 0;
+	}
+
+	static void set(long[] words, int i, boolean value) {
+		if (value)
+			words[i >>> 6] |= 1L << i;
+		else
+			words[i >>> 6] &= ~(1L << i);
+	}
+
+	/**
+	 * Mark the first numSlots slots used.
+	 */
+	static void setAll(long[] words, int numSlots) {
+		Arrays.fill(words, -1L);
+		if ((numSlots & 63) != 0)
+			words[words.length - 1] = (1L << numSlots) - 1;
+	}
+
+	/**
+	 * @return the number of used slots
+	 */
+	static int count(long[] words) {
+		int n = 0;
+		for (long w : words)
+			n += Long.bitCount(w);
+		return n;
+	}
+
+	/**
+	 * @return the first used slot at or after from, or -1
+	 */
+	static int nextSet(long[] words, int from) {
+		int w = from >>> 6;
+		if (w >= words.length)
+			return -1;
+		long bits = words[w] & (-1L << from);
+		while (bits == 0) {
+			if (++w == words.length)
+				return -1;
+			bits = words[w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(bits);
+	}
+
+	/**
+	 * @return the last used slot at or before from, or -1
+	 */
+	static int prevSet(long[] words, int from) {
+		if (from < 0)
+			return -1;
+		int w = from >>> 6;
+		long bits = words[w] & (-1L >>> (63 - (from & 63)));
+		while (bits == 0) {
+			if (--w < 0)
+				return -1;
+			bits = words[w];
+		}
+		return (w << 6) + 63 - Long.numberOfLeadingZeros(bits);
+	}
+
+	/**
+	 * @return the first empty slot at or after from, or -1 if the slots from
+	 *         there to numSlots are all used
+	 */
+	static int nextClear(long[] words, int from, int numSlots) {
+		int w = from >>> 6;
+		if (from >= numSlots)
+			return -1;
+		long bits = ~words[w] & (-1L << from);
+		while (bits == 0) {
+			if (++w == words.length)
+				return -1;
+			bits = ~words[w];
+		}
+		int slot = (w << 6) + Long.numberOfTrailingZeros(bits);
+		return slot < numSlots ? slot : -1;
+	}
+}
@@ -0,0 +1,231 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * SlottedFile is a {@link DbFile} of {@link SlottedPage}s: like a
+ * {@link HeapFile} it stores tuples in no particular order, but as
+ * variable-length records, so tables of short strings take a fraction of the
+ * pages a HeapFile needs. Pages are addressed with {@link HeapPageId}s.
+ * <p>
+ * Inserts go to a page that recently had tuples deleted, then to the last
+ * page, and otherwise to a new page appended to the file.
+ *
+ * @see SlottedPage
+ * @see HeapFileEncoder#convertSlotted
+ */
+public class SlottedFile implements DbFile {
+
+	private final File f;
+	private final TupleDesc td;
+	private volatile int id;
+	private volatile AccessMode accessMode;
+	// pages that had tuples deleted since the file was opened
+	private final BitSet roomy;
+
+	/**
+	 * Constructs a slotted file backed by the specified file.
+	 */
+	public SlottedFile(File f, TupleDesc td) {
+		this(f, td, AccessMode.STANDARD);
+	}
+
+	/**
+	 * Constructs a slotted file backed by the specified file, reading its
+	 * pages the way mode says.
+	 */
+	public SlottedFile(File f, TupleDesc td, AccessMode mode) {
+		this.f = f;
+		this.td = td;
+		this.id = f.getAbsoluteFile().hashCode();
+		this.accessMode = mode;
+		this.roomy = new BitSet();
+	}
+
+	public AccessMode getAccessMode() {
+		return accessMode;
+	}
+
+	public void setAccessMode(AccessMode mode) {
+		this.accessMode = mode;
+	}
+
+	/**
+	 * @return the File backing this SlottedFile on disk.
+	 */
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * @return an ID uniquely identifying this SlottedFile.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * @see HeapFile#setId
+	 */
+	public void setId(int id) {
+		this.id = id;
+	}
+
+	public TupleDesc getTupleDesc() {
+		return td;
+	}
+
+	// see DbFile.java for javadocs
+	public Page readPage(PageId pid) {
+		if (pid.getTableId() != getId()) {
+			throw new IllegalArgumentException("Page not found in table!");
+		}
+		int pageNum = pid.getPageNumber();
+		if (pageNum < 0 || pageNum > numPages()) {
+			throw new IllegalArgumentException("Page number is out of range!");
+		}
+		byte[] pageData = SlottedPage.createEmptyPageData();
+		try {
+			Database.getFileHandles().read(f, ByteBuffer.wrap(pageData), (long) BufferPool.getPageSize() * pageNum,
+					accessMode);
+			return new SlottedPage(new HeapPageId(getId(), pageNum), pageData);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public void writePage(Page page) throws IOException {
+		long offset = (long) page.getId().getPageNumber() * BufferPool.getPageSize();
+		Database.getFileHandles().write(f, ByteBuffer.wrap(page.getPageData()), offset, accessMode);
+	}
+
+	/**
+	 * Returns the number of pages in this SlottedFile.
+	 */
+	public int numPages() {
+		try {
+			return (int) (Database.getFileHandles().length(f) / BufferPool.getPageSize());
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// see DbFile.java for javadocs
+	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		ArrayList<Page> updatedPages = new ArrayList<Page>();
+		int need = SlottedPage.recordLength(t) + SlottedPage.SLOT_SIZE;
+		if (need > BufferPool.getPageSize() - SlottedPage.HEADER_SIZE)
+			throw new DbException("tuple does not fit on a page");
+
+		SlottedPage sp = null;
+		int last = numPages() - 1;
+		for (int i = nextRoomy(0); sp == null && i >= 0 && i < last; i = nextRoomy(i + 1)) {
+			sp = tryPage(tid, i, t);
+			if (sp == null) {
+				synchronized (roomy) {
+					roomy.clear(i);
+				}
+			}
+		}
+		if (sp == null && last >= 0)
+			sp = tryPage(tid, last, t);
+		// only an empty page goes to disk directly; the tuple goes into the
+		// buffered copy under an X lock
+		if (sp == null) {
+			HeapPageId pid;
+			synchronized (this) {
+				pid = new HeapPageId(getId(), numPages());
+				Database.getFileHandles().append(f, ByteBuffer.wrap(SlottedPage.createEmptyPageData()));
+			}
+			sp = (SlottedPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+		}
+		sp.insertTuple(t);
+		updatedPages.add(sp);
+		return updatedPages;
+	}
+
+	private int nextRoomy(int from) {
+		synchronized (roomy) {
+			return roomy.nextSetBit(from);
+		}
+	}
+
+	/**
+	 * @return page pgNo locked for tid if t fits on it, otherwise null, with
+	 *         the lock released again unless tid held it before
+	 */
+	private SlottedPage tryPage(TransactionId tid, int pgNo, Tuple t)
+			throws DbException, TransactionAbortedException {
+		BufferPool pool = Database.getBufferPool();
+		HeapPageId pid = new HeapPageId(getId(), pgNo);
+		boolean held = pool.holdsLock(tid, pid);
+		SlottedPage candidate = (SlottedPage) pool.getPage(tid, pid, Permissions.READ_WRITE);
+		if (candidate.hasRoomFor(t))
+			return candidate;
+		if (!held)
+			pool.releasePage(tid, pid);
+		return null;
+	}
+
+	// see DbFile.java for javadocs
+	public Page deleteTuple(TransactionId tid, Tuple t) throws DbException, TransactionAbortedException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || rid.getPageId().getTableId() != getId()
+				|| rid.getPageId().getPageNumber() >= numPages()) {
+			throw new DbException("tuple " + t + " is not in this table");
+		}
+		SlottedPage sp = (SlottedPage) Database.getBufferPool().getPage(tid, rid.getPageId(),
+				Permissions.READ_WRITE);
+		sp.deleteTuple(t);
+		sp.markDirty(true, tid);
+		synchronized (roomy) {
+			roomy.set(rid.getPageId().getPageNumber());
+		}
+		return sp;
+	}
+
+	// see DbFile.java for javadocs
+	public DbFileIterator iterator(TransactionId tid) {
+		return new AbstractDbFileIterator() {
+			private int pageNum = -1;
+			private Iterator<Tuple> tupleIterator = null;
+
+			@Override
+			public void open() throws DbException, TransactionAbortedException {
+				pageNum = 0;
+				tupleIterator = null;
+			}
+
+			@Override
+			protected Tuple readNext() throws DbException, TransactionAbortedException {
+				if (pageNum < 0)
+					return null;
+				while (tupleIterator == null || !tupleIterator.hasNext()) {
+					if (pageNum >= numPages())
+						return null;
+					tupleIterator = ((SlottedPage) Database.getBufferPool().getPage(tid,
+							new HeapPageId(getId(), pageNum++), Permissions.READ_ONLY)).iterator();
+				}
+				return tupleIterator.next();
+			}
+
+			@Override
+			public void rewind() throws DbException, TransactionAbortedException {
+				close();
+				open();
+			}
+
+			@Override
+			public void close() {
+				super.close();
+				pageNum = -1;
+				tupleIterator = null;
+			}
+		};
+	}
+}
@@ -0,0 +1,369 @@
+package simpledb;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SlottedPage stores the tuples of one page of a {@link SlottedFile} as
+ * variable-length records, so that strings take only the bytes they need
+ * instead of {@link Type#STRING_LEN} bytes each.
+ * <p>
+ * The page starts with a header of two ints: the number of slots in the slot
+ * directory and the offset where the record area begins. The slot directory
+ * follows, one entry per slot: the record's offset and length as unsigned
+ * shorts, offset 0 marking an empty slot. Records are packed from the end of
+ * the page towards the directory. A record stores each int field in 4 bytes
+ * and each string field as an unsigned short length followed by that many
+ * bytes. A page of zeroes is an empty page.
+ * <p>
+ * Slot numbers never change while a tuple is on the page, so they serve as
+ * the tuple number of its {@link RecordId}; records may move when the page is
+ * compacted to make room for an insert. Pages can be at most 64KB.
+ *
+ * @see SlottedFile
+ */
+public class SlottedPage implements Page {
+
+	static final int HEADER_SIZE = 8;
+	static final int SLOT_SIZE = 4;
+	// length prefix of a string field
+	static final int STRING_PREFIX = 2;
+
+	final HeapPageId pid;
+	final TupleDesc td;
+	// the page image, changed in place
+	private final byte[] data;
+	private final ByteBuffer buf;
+	private int numSlots;
+	// start of the record area
+	private int recordsStart;
+	// total length of the records on the page
+	private int liveBytes;
+
+	// the content as of the last commit, copied before the first change; null
+	// while the page is unchanged
+	private byte[] oldData;
+	private final Object oldDataLock = new Object();
+
+	private volatile TransactionId dirtyTid;
+
+	/**
+	 * Create a SlottedPage from a set of bytes of data read from disk, for a
+	 * table in the catalog.
+	 */
+	public SlottedPage(HeapPageId id, byte[] data) throws IOException {
+		this(id, data, Database.getCatalog().getTupleDesc(id.getTableId()));
+	}
+
+	/**
+	 * Create a SlottedPage of the given schema, e.g. for a file not in the
+	 * catalog yet. The page takes over data, and is as large as data is.
+	 */
+	SlottedPage(HeapPageId id, byte[] data, TupleDesc td) throws IOException {
+		if (data.length > 0x10000)
+			throw new IOException("slotted pages can be at most 64KB");
+		this.pid = id;
+		this.td = td;
+		this.data = data;
+		this.buf = ByteBuffer.wrap(data);
+		this.numSlots = buf.getInt(0);
+		int start = buf.getInt(4);
+		this.recordsStart = start == 0 ? data.length : start;
+		if (numSlots < 0 || recordsStart > data.length || HEADER_SIZE + numSlots * SLOT_SIZE > recordsStart)
+			throw new IOException("corrupt slotted page " + id.getPageNumber());
+		for (int i = 0; i < numSlots; i++) {
+			liveBytes += recordLength(i);
+		}
+	}
+
+	/**
+	 * @return the bytes of an empty page
+	 */
+	public static byte[] createEmptyPageData() {
+		return new byte[BufferPool.getPageSize()];
+	}
+
+	public HeapPageId getId() {
+		return pid;
+	}
+
+	private int recordOffset(int slot) {
+		return buf.getChar(HEADER_SIZE + slot * SLOT_SIZE);
+	}
+
+	private int recordLength(int slot) {
+		return buf.getChar(HEADER_SIZE + slot * SLOT_SIZE + 2);
+	}
+
+	private void setSlot(int slot, int offset, int length) {
+		buf.putChar(HEADER_SIZE + slot * SLOT_SIZE, (char) offset);
+		buf.putChar(HEADER_SIZE + slot * SLOT_SIZE + 2, (char) length);
+	}
+
+	private void setHeader() {
+		buf.putInt(0, numSlots);
+		buf.putInt(4, recordsStart);
+	}
+
+	/**
+	 * @return the number of entries in the slot directory, used or not
+	 */
+	public int getNumSlots() {
+		return numSlots;
+	}
+
+	public boolean isSlotUsed(int slot) {
+		return slot >= 0 && slot < numSlots && recordOffset(slot) != 0;
+	}
+
+	/**
+	 * @return the number of bytes a record and, if needed, a new slot may
+	 *         still take on this page, after compaction
+	 */
+	public int getFreeSpace() {
+		return data.length - HEADER_SIZE - numSlots * SLOT_SIZE - liveBytes;
+	}
+
+	/**
+	 * @return the number of bytes t takes as a record
+	 */
+	public static int recordLength(Tuple t) {
+		TupleDesc td = t.getTupleDesc();
+		int len = 0;
+		for (int j = 0; j < td.numFields(); j++) {
+			if (td.getFieldType(j) == Type.STRING_TYPE)
+				len += STRING_PREFIX + Math.min(((StringField) t.getField(j)).getValue().length(), Type.STRING_LEN);
+			else
+				len += td.getFieldType(j).getLen();
+		}
+		return len;
+	}
+
+	private int freeSlot() {
+		for (int i = 0; i < numSlots; i++) {
+			if (recordOffset(i) == 0)
+				return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return whether t can be inserted into this page
+	 */
+	public boolean hasRoomFor(Tuple t) {
+		int need = recordLength(t) + (freeSlot() < 0 ? SLOT_SIZE : 0);
+		return need <= getFreeSpace();
+	}
+
+	/**
+	 * Adds the specified tuple to the page, compacting the records first if
+	 * the free space is fragmented; the tuple is updated to reflect that it is
+	 * now stored on this page.
+	 *
+	 * @throws DbException if the tuple does not fit or its TupleDesc does not
+	 *                     match
+	 */
+	public void insertTuple(Tuple t) throws DbException {
+		if (!td.equals(t.getTupleDesc()))
+			throw new DbException("tuple descriptions mismatch");
+		if (!hasRoomFor(t))
+			throw new DbException("not enough free space on page");
+		beforeChange();
+		int slot = freeSlot();
+		int dirEnd = HEADER_SIZE + (slot < 0 ? numSlots + 1 : numSlots) * SLOT_SIZE;
+		int len = recordLength(t);
+		if (recordsStart - len < dirEnd)
+			compact();
+		if (slot < 0)
+			slot = numSlots++;
+		recordsStart -= len;
+		writeRecord(t, recordsStart);
+		setSlot(slot, recordsStart, len);
+		liveBytes += len;
+		setHeader();
+		t.setRecordId(new RecordId(pid, slot));
+	}
+
+	private void writeRecord(Tuple t, int offset) {
+		buf.position(offset);
+		for (int j = 0; j < td.numFields(); j++) {
+			Field f = t.getField(j);
+			if (td.getFieldType(j) == Type.STRING_TYPE) {
+				String s = ((StringField) f).getValue();
+				int len = Math.min(s.length(), Type.STRING_LEN);
+				buf.putChar((char) len);
+				// like DataOutputStream.writeBytes, keep the low byte of each char
+				for (int i = 0; i < len; i++)
+					buf.put((byte) s.charAt(i));
+			} else {
+				f.serialize(buf);
+			}
+		}
+	}
+
+	/**
+	 * Delete the specified tuple from the page, freeing its slot and record.
+	 *
+	 * @throws DbException if this tuple is not on this page, or its slot is
+	 *                     already empty.
+	 */
+	public void deleteTuple(Tuple t) throws DbException {
+		RecordId rid = t.getRecordId();
+		if (rid == null || !pid.equals(rid.getPageId()))
+			throw new DbException("this tuple is not on this page");
+		int slot = rid.getTupleNumber();
+		if (!isSlotUsed(slot))
+			throw new DbException("tuple slot is already empty");
+		beforeChange();
+		int offset = recordOffset(slot);
+		int len = recordLength(slot);
+		liveBytes -= len;
+		setSlot(slot, 0, 0);
+		if (offset == recordsStart)
+			recordsStart += len;
+		// trailing empty slots go back to the free space
+		while (numSlots > 0 && recordOffset(numSlots - 1) == 0)
+			numSlots--;
+		if (liveBytes == 0)
+			recordsStart = data.length;
+		setHeader();
+	}
+
+	// move the records together at the end of the page
+	private void compact() {
+		byte[] old = data.clone();
+		ByteBuffer oldBuf = ByteBuffer.wrap(old);
+		int end = data.length;
+		for (int i = 0; i < numSlots; i++) {
+			int offset = oldBuf.getChar(HEADER_SIZE + i * SLOT_SIZE);
+			if (offset == 0)
+				continue;
+			int len = oldBuf.getChar(HEADER_SIZE + i * SLOT_SIZE + 2);
+			end -= len;
+			System.arraycopy(old, offset, data, end, len);
+			setSlot(i, end, len);
+		}
+		recordsStart = end;
+		setHeader();
+	}
+
+	/**
+	 * @return the tuple in the given slot, decoded from the page
+	 * @throws NoSuchElementException if the slot is empty
+	 */
+	public Tuple getTuple(int slot) throws NoSuchElementException {
+		if (!isSlotUsed(slot))
+			throw new NoSuchElementException("slot " + slot + " is empty");
+		Tuple t = new Tuple(td);
+		t.setRecordId(new RecordId(pid, slot));
+		int offset = recordOffset(slot);
+		for (int j = 0; j < td.numFields(); j++) {
+			t.setField(j, readField(j, offset));
+			offset += fieldLength(j, offset);
+		}
+		return t;
+	}
+
+	/**
+	 * Decode a single field of the tuple in the given slot, without building
+	 * the rest of the tuple.
+	 *
+	 * @throws NoSuchElementException if the slot is empty
+	 */
+	public Field getField(int slot, int col) throws NoSuchElementException {
+		if (!isSlotUsed(slot))
+			throw new NoSuchElementException("slot " + slot + " is empty");
+		int offset = recordOffset(slot);
+		for (int j = 0; j < col; j++) {
+			offset += fieldLength(j, offset);
+		}
+		return readField(col, offset);
+	}
+
+	private int fieldLength(int col, int offset) {
+		if (td.getFieldType(col) == Type.STRING_TYPE)
+			return STRING_PREFIX + buf.getChar(offset);
+		return td.getFieldType(col).getLen();
+	}
+
+	private Field readField(int col, int offset) {
+		if (td.getFieldType(col) == Type.STRING_TYPE) {
+			int len = buf.getChar(offset);
+			return new StringField(new String(data, offset + STRING_PREFIX, len), Type.STRING_LEN);
+		}
+		return td.getFieldType(col).parse(data, offset);
+	}
+
+	/**
+	 * @return an iterator over all tuples on this page (calling remove on this
+	 *         iterator throws an UnsupportedOperationException)
+	 */
+	public Iterator<Tuple> iterator() {
+		return new Iterator<Tuple>() {
+			private int current = 0;
+
+			@Override
+			public boolean hasNext() {
+				while (current < numSlots && !isSlotUsed(current))
+					current++;
+				return current < numSlots;
+			}
+
+			@Override
+			public Tuple next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return getTuple(current++);
+			}
+		};
+	}
+
+	public byte[] getPageData() {
+		return data.clone();
+	}
+
+	public void writePageData(ByteBuffer out) {
+		out.put(data);
+	}
+
+	// keep the committed content before the first change after a commit
+	private void beforeChange() {
+		synchronized (oldDataLock) {
+			if (oldData == null)
+				oldData = data.clone();
+		}
+	}
+
+	public SlottedPage getBeforeImage() {
+		try {
+			byte[] oldDataRef = null;
+			synchronized (oldDataLock) {
+				oldDataRef = oldData != null ? oldData : data;
+				oldDataRef = oldDataRef.clone();
+			}
+			return new SlottedPage(pid, oldDataRef, td);
+		} catch (IOException e) {
+			e.printStackTrace();
+			// should never happen -- we parsed it OK before!
+			System.exit(1);
+		}
+		return null;
+	}
+
+	public void setBeforeImage() {
+		synchronized (oldDataLock) {
+			// the current content is the before image from now on
+			oldData = null;
+		}
+	}
+
+	public void markDirty(boolean dirty, TransactionId tid) {
+		this.dirtyTid = dirty ? tid : null;
+	}
+
+	public TransactionId isDirty() {
+		return dirtyTid;
+	}
+}
@@ -0,0 +1,121 @@
+package simpledb;
+
+import java.io.*;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * StringDictionary maps the distinct values of one string column to small int
+ * codes, so that a {@link HeapFile} can store the column as 4-byte codes
+ * instead of {@link Type#STRING_LEN} + 4 bytes per row, and compare values by
+ * their codes (see {@link DictField}).
+ * <p>
+ * Codes are handed out in order starting at 0 and never change. The
+ * dictionary is kept in a file next to the table, as one string per code; a
+ * new string is written and forced to disk before its code is returned, so
+ * every code on a page can be decoded after a crash. Strings added by aborted
+ * transactions stay in the dictionary.
+ */
+public class StringDictionary {
+
+	private final File f;
+	private final ConcurrentHashMap<String, DictField> codes = new ConcurrentHashMap<String, DictField>();
+	// fields by code; replaced when it grows, and written before size is
+	private volatile DictField[] byCode = new DictField[16];
+	private volatile int size;
+
+	/**
+	 * Open the dictionary kept in f, which is created when the first string is
+	 * added if it does not exist.
+	 */
+	public StringDictionary(File f) throws IOException {
+		this.f = f;
+		if (f.exists()) {
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+				while (true) {
+					String s;
+					try {
+						s = in.readUTF();
+					} catch (EOFException e) {
+						break;
+					}
+					add(s);
+				}
+			}
+		}
+	}
+
+	public File getFile() {
+		return f;
+	}
+
+	/**
+	 * @return the number of strings in the dictionary
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the field of the given code
+	 * @throws NoSuchElementException if no string has that code
+	 */
+	public DictField get(int code) throws NoSuchElementException {
+		if (code < 0 || code >= size)
+			throw new NoSuchElementException("no string with code " + code + " in " + f);
+		return byCode[code];
+	}
+
+	/**
+	 * @return the field of s, or a field of code -1, equal to no field of
+	 *         this dictionary, if s is not in it; such a field is only valid
+	 *         until s is added, i.e. while {@link #size()} does not change
+	 */
+	public DictField lookup(String s) {
+		DictField field = codes.get(truncate(s));
+		return field != null ? field : new DictField(this, -1, s);
+	}
+
+	/**
+	 * @return the field of s, adding s to the dictionary if it is not in it
+	 *         yet
+	 * @throws IOException if a new string could not be written to disk
+	 */
+	public DictField encode(String s) throws IOException {
+		s = truncate(s);
+		DictField field = codes.get(s);
+		if (field != null)
+			return field;
+		synchronized (this) {
+			field = codes.get(s);
+			if (field != null)
+				return field;
+			try (FileOutputStream fos = new FileOutputStream(f, true)) {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+				out.writeUTF(s);
+				out.flush();
+				fos.getFD().sync();
+			}
+			return add(s);
+		}
+	}
+
+	private synchronized DictField add(String s) {
+		DictField field = new DictField(this, size, s);
+		DictField[] fields = byCode;
+		if (size == fields.length) {
+			DictField[] grown = new DictField[fields.length * 2];
+			System.arraycopy(fields, 0, grown, 0, size);
+			fields = grown;
+		}
+		fields[size] = field;
+		byCode = fields;
+		codes.put(s, field);
+		size++;
+		return field;
+	}
+
+	private static String truncate(String s) {
+		return s.length() > Type.STRING_LEN ? s.substring(0, Type.STRING_LEN) : s;
+	}
+}
@@ -0,0 +1,341 @@
+package simpledb;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * SystemCatalog is the file a persistent {@link Catalog} keeps its tables in,
+ * see {@link Catalog#open}. It is a file of {@link SlottedPage}s of
+ * {@link #PAGE_SIZE} bytes holding records of the schema
+ * <tt>(table int, kind int, pos int, value string)</tt>: per table one NAME
+ * record, an optional PKEY record, one record per column, whose kind gives
+ * its type, and one record per table option, in the syntax of
+ * {@link Catalog#loadSchema}.
+ * <p>
+ * A table's file is <tt>name.dat</tt> in the directory of the catalog file,
+ * so the catalog stores no paths and the database can be moved as a whole.
+ * The file is small, so it is read in one go, and every change writes it as
+ * a whole into a new file that replaces the old one, so that a crash leaves
+ * either the old or the new catalog. The pages are kept in memory, so adding
+ * a table only encodes the records of the new table.
+ */
+public class SystemCatalog {
+
+	/** The size of the pages of the catalog file. */
+	public static final int PAGE_SIZE = 4096;
+
+	static final int NAME = 0;
+	static final int PKEY = 1;
+	static final int INT_COLUMN = 2;
+	static final int STRING_COLUMN = 3;
+	static final int DICT_COLUMN = 4;
+	static final int OPTION = 5;
+
+	static final TupleDesc RECORD = new TupleDesc(
+			new Type[] { Type.INT_TYPE, Type.INT_TYPE, Type.INT_TYPE, Type.STRING_TYPE },
+			new String[] { "table", "kind", "pos", "value" });
+
+	/**
+	 * A table of the catalog, as stored.
+	 */
+	public static class Entry {
+		final int id;
+		final String name;
+		final String pkeyField;
+		final String[] fields;
+		final Type[] types;
+		final boolean[] dict;
+		final List<String> options;
+
+		Entry(int id, String name, String pkeyField, String[] fields, Type[] types, boolean[] dict,
+				List<String> options) {
+			this.id = id;
+			this.name = name;
+			this.pkeyField = pkeyField;
+			this.fields = fields;
+			this.types = types;
+			this.dict = dict;
+			this.options = options;
+		}
+
+		/**
+		 * @return the number of partitions the options split the table into,
+		 *         0 for an unpartitioned table; partition i has id id+1+i
+		 */
+		int numPartitions() {
+			return SystemCatalog.numPartitions(options);
+		}
+
+		/**
+		 * @return the first id after the ids of the table and its partitions
+		 */
+		int nextId() {
+			return id + 1 + numPartitions();
+		}
+	}
+
+	/**
+	 * @return the number of partitions table options split a table into, 0
+	 *         for an unpartitioned table
+	 * @throws IllegalArgumentException if a partitioning option is malformed
+	 */
+	static int numPartitions(List<String> options) {
+		for (String option : options) {
+			String[] spec = option.split(":");
+			if (spec.length != 3)
+				continue;
+			if (spec[0].equals("hash"))
+				return Integer.parseInt(spec[2]);
+			if (spec[0].equals("range"))
+				return spec[2].split(",").length + 1;
+		}
+		return 0;
+	}
+
+	private final File file;
+	// the tables, by name
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	// the pages of the file, as on disk; null when the file has to be
+	// rewritten as a whole, as after a failed write
+	private ArrayList<SlottedPage> pages;
+
+	public SystemCatalog(File file) {
+		this.file = file;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @return the directory the files of the tables are in
+	 */
+	public File getDirectory() {
+		return file.getAbsoluteFile().getParentFile();
+	}
+
+	/**
+	 * Read the tables of the catalog file; a missing file is an empty catalog.
+	 *
+	 * @throws IOException if the file cannot be read or is corrupt
+	 */
+	public synchronized List<Entry> read() throws IOException {
+		entries.clear();
+		pages = new ArrayList<SlottedPage>();
+		if (!file.exists())
+			return new ArrayList<Entry>();
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		if (bytes.length % PAGE_SIZE != 0)
+			throw new IOException("catalog " + file + " is not a whole number of pages");
+		// the records of a table are written together, but may span pages
+		LinkedHashMap<Integer, ArrayList<Tuple>> byTable = new LinkedHashMap<Integer, ArrayList<Tuple>>();
+		for (int pg = 0; pg < bytes.length / PAGE_SIZE; pg++) {
+			byte[] data = new byte[PAGE_SIZE];
+			System.arraycopy(bytes, pg * PAGE_SIZE, data, 0, PAGE_SIZE);
+			SlottedPage page = new SlottedPage(new HeapPageId(0, pg), data, RECORD);
+			pages.add(page);
+			Iterator<Tuple> it = page.iterator();
+			while (it.hasNext()) {
+				Tuple t = it.next();
+				byTable.computeIfAbsent(intValue(t, 0), k -> new ArrayList<Tuple>()).add(t);
+			}
+		}
+		for (ArrayList<Tuple> records : byTable.values()) {
+			Entry e = toEntry(records);
+			entries.put(e.name, e);
+		}
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	private static Entry toEntry(ArrayList<Tuple> records) throws IOException {
+		int id = intValue(records.get(0), 0);
+		String name = null;
+		String pkey = "";
+		ArrayList<String> fields = new ArrayList<String>();
+		ArrayList<Type> types = new ArrayList<Type>();
+		ArrayList<Boolean> dict = new ArrayList<Boolean>();
+		ArrayList<String> options = new ArrayList<String>();
+		for (Tuple t : records) {
+			String value = ((StringField) t.getField(3)).getValue();
+			switch (intValue(t, 1)) {
+			case NAME:
+				name = value;
+				break;
+			case PKEY:
+				pkey = value;
+				break;
+			case INT_COLUMN:
+			case STRING_COLUMN:
+			case DICT_COLUMN:
+				fields.add(value);
+				types.add(intValue(t, 1) == INT_COLUMN ? Type.INT_TYPE : Type.STRING_TYPE);
+				dict.add(intValue(t, 1) == DICT_COLUMN);
+				break;
+			case OPTION:
+				options.add(value);
+				break;
+			default:
+				throw new IOException("unknown catalog record of kind " + intValue(t, 1));
+			}
+		}
+		if (name == null || fields.isEmpty())
+			throw new IOException("incomplete catalog entry for table " + id);
+		boolean[] d = new boolean[dict.size()];
+		for (int i = 0; i < d.length; i++)
+			d[i] = dict.get(i);
+		return new Entry(id, name, pkey, fields.toArray(new String[0]), types.toArray(new Type[0]), d, options);
+	}
+
+	private static int intValue(Tuple t, int i) {
+		return ((IntField) t.getField(i)).getValue();
+	}
+
+	/**
+	 * @return the table of the given name, or null
+	 */
+	public synchronized Entry get(String name) {
+		return entries.get(name);
+	}
+
+	/**
+	 * Add a table, replacing the table of the same name, and write the change
+	 * to the file.
+	 *
+	 * @throws IllegalArgumentException if a string of e is longer than
+	 *                                  {@link Type#STRING_LEN}
+	 */
+	public synchronized void add(Entry e) throws IOException {
+		ArrayList<String> values = new ArrayList<String>(e.options);
+		values.add(e.name);
+		values.add(e.pkeyField);
+		values.addAll(Arrays.asList(e.fields));
+		for (String v : values) {
+			if (v.length() > Type.STRING_LEN)
+				throw new IllegalArgumentException("catalog strings are at most " + Type.STRING_LEN + " characters: " + v);
+		}
+		Entry old = entries.put(e.name, e);
+		try {
+			if (old == null && pages != null)
+				append(e);
+			else
+				rewrite();
+		} catch (IOException ex) {
+			if (old == null)
+				entries.remove(e.name);
+			else
+				entries.put(e.name, old);
+			pages = null;
+			throw ex;
+		}
+	}
+
+	/**
+	 * Remove a table and rewrite the file.
+	 *
+	 * @return the removed table, or null if there is none of that name
+	 */
+	public synchronized Entry remove(String name) throws IOException {
+		Entry e = entries.remove(name);
+		if (e == null)
+			return null;
+		try {
+			rewrite();
+		} catch (IOException ex) {
+			entries.put(name, e);
+			pages = null;
+			throw ex;
+		}
+		return e;
+	}
+
+	// the current pages with the records of e added to a copy of the last
+	// page and to new pages
+	private void append(Entry e) throws IOException {
+		ArrayList<SlottedPage> next = new ArrayList<SlottedPage>(pages);
+		if (!next.isEmpty()) {
+			SlottedPage last = next.get(next.size() - 1);
+			next.set(next.size() - 1, new SlottedPage(last.getId(), last.getPageData(), RECORD));
+		}
+		for (Tuple t : toRecords(e))
+			insert(next, t);
+		replace(next);
+	}
+
+	// all tables encoded anew
+	private void rewrite() throws IOException {
+		ArrayList<SlottedPage> fresh = new ArrayList<SlottedPage>();
+		for (Entry e : entries.values()) {
+			for (Tuple t : toRecords(e))
+				insert(fresh, t);
+		}
+		replace(fresh);
+	}
+
+	// write pages into a new file, which then replaces the old one
+	private void replace(ArrayList<SlottedPage> next) throws IOException {
+		File tmp = new File(file.getPath() + ".tmp");
+		try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			for (int pg = 0; pg < next.size(); pg++)
+				writeFully(ch, next.get(pg), (long) pg * PAGE_SIZE);
+			ch.force(true);
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		pages = next;
+	}
+
+	private static void insert(ArrayList<SlottedPage> pages, Tuple t) throws IOException {
+		SlottedPage page = pages.isEmpty() ? null : pages.get(pages.size() - 1);
+		if (page == null || !page.hasRoomFor(t)) {
+			page = new SlottedPage(new HeapPageId(0, pages.size()), new byte[PAGE_SIZE], RECORD);
+			pages.add(page);
+		}
+		try {
+			page.insertTuple(t);
+		} catch (DbException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private static void writeFully(FileChannel ch, SlottedPage page, long position) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
+		page.writePageData(buf);
+		buf.flip();
+		while (buf.hasRemaining())
+			position += ch.write(buf, position);
+	}
+
+	private static ArrayList<Tuple> toRecords(Entry e) {
+		ArrayList<Tuple> records = new ArrayList<Tuple>();
+		records.add(record(e.id, NAME, 0, e.name));
+		if (!e.pkeyField.isEmpty())
+			records.add(record(e.id, PKEY, 0, e.pkeyField));
+		for (int i = 0; i < e.fields.length; i++) {
+			int kind = e.types[i] == Type.INT_TYPE ? INT_COLUMN : e.dict[i] ? DICT_COLUMN : STRING_COLUMN;
+			records.add(record(e.id, kind, i, e.fields[i]));
+		}
+		for (int i = 0; i < e.options.size(); i++)
+			records.add(record(e.id, OPTION, i, e.options.get(i)));
+		return records;
+	}
+
+	private static Tuple record(int table, int kind, int pos, String value) {
+		Tuple t = new Tuple(RECORD);
+		t.setField(0, new IntField(table));
+		t.setField(1, new IntField(kind));
+		t.setField(2, new IntField(pos));
+		t.setField(3, new StringField(value, Type.STRING_LEN));
+		return t;
+	}
+}
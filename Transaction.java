@@ -12,12 +12,31 @@ public class Transaction {
     volatile boolean started = false;
 
     public Transaction() {
-        tid = new TransactionId();
+        this(false);
+    }
+
+    private Transaction(boolean readOnly) {
+        tid = new TransactionId(readOnly);
+    }
+
+    /**
+     * Create and start a read-only transaction. It writes no log records, does
+     * not force the log on commit and takes no page locks: every page it reads
+     * is the version left by the last committed transaction to modify that page.
+     * Any attempt to fetch a page READ_WRITE, or to insert or delete a tuple,
+     * fails with a DbException.
+     */
+    public static Transaction startReadOnly() {
+        Transaction t = new Transaction(true);
+        t.started = true;
+        return t;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (tid.isReadOnly())
+            return;
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -42,6 +61,12 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
+        if (started && tid.isReadOnly()) {
+            // nothing was locked, logged or dirtied
+            started = false;
+            return;
+        }
+
         if (started) {
             //write commit / abort records
             if (abort) {
@@ -12,15 +12,31 @@ public class TransactionId implements Serializable {
 
     static AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final boolean readOnly;
 
     public TransactionId() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly true for a transaction that declares it will not modify
+     *                 any page
+     * @see Transaction#startReadOnly()
+     */
+    public TransactionId(boolean readOnly) {
         myid = counter.getAndIncrement();
+        this.readOnly = readOnly;
     }
 
     public long getId() {
         return myid;
     }
 
+    /** @return true if this transaction was declared read-only */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
     @Override
 	public boolean equals(Object obj) {
 		if (this == obj)
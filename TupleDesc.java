@@ -25,9 +25,19 @@ public class TupleDesc implements Serializable {
          * */
         public final String fieldName;
 
+        /**
+         * The dictionary a string field is stored with, or null
+         * */
+        public final transient StringDictionary dictionary;
+
         public TDItem(Type t, String n) {
+            this(t, n, null);
+        }
+
+        public TDItem(Type t, String n, StringDictionary dictionary) {
             this.fieldName = n;
             this.fieldType = t;
+            this.dictionary = dictionary;
         }
         
         /**
@@ -35,8 +45,15 @@ public class TupleDesc implements Serializable {
          * @param t
          */
         public TDItem(Type t) {
-            this.fieldType = t;
-			this.fieldName = null;
+            this(t, null, null);
+        }
+
+        /**
+         * @return the number of bytes the field takes in a stored tuple: a
+         *         dictionary code for fields with a dictionary
+         */
+        int getLen() {
+            return dictionary != null ? Type.INT_TYPE.getLen() : fieldType.getLen();
         }
 
         public String toString() {
@@ -49,6 +66,11 @@ public class TupleDesc implements Serializable {
      */
     private TDItem[] TDItems;
 
+    /**
+     * Offset of each field within a stored tuple, computed on first use.
+     */
+    private transient int[] fieldOffsets;
+
     /**
      * @return
      *        An iterator which iterates over all the field TDItems
@@ -85,6 +107,26 @@ public class TupleDesc implements Serializable {
     	this.TDItems = TDItems;
     }
 
+    /**
+     * Create a new TupleDesc like {@link #TupleDesc(Type[], String[])}, whose
+     * string fields with a non-null entry in dictAr are stored as codes of
+     * that dictionary.
+     * 
+     * @param dictAr
+     *            array specifying the dictionary of each field, or null for
+     *            fields stored as they are
+     */
+    public TupleDesc(Type[] typeAr, String[] fieldAr, StringDictionary[] dictAr) {
+        this(typeAr, fieldAr);
+        for (int i = 0; i < TDItems.length; i++) {
+            if (dictAr[i] == null)
+                continue;
+            if (TDItems[i].fieldType != Type.STRING_TYPE)
+                throw new IllegalArgumentException("only string fields can have a dictionary");
+            TDItems[i] = new TDItem(TDItems[i].fieldType, TDItems[i].fieldName, dictAr[i]);
+        }
+    }
+
     /**
      * Constructor. Create a new tuple desc with typeAr.length fields with
      * fields of the specified types, with anonymous (unnamed) fields.
@@ -155,6 +197,18 @@ public class TupleDesc implements Serializable {
         return this.TDItems[i].fieldType;
     }
 
+    /**
+     * Gets the dictionary the ith field of this TupleDesc is stored with.
+     * 
+     * @return the dictionary, or null if the field is stored as it is
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public StringDictionary getDictionary(int i) throws NoSuchElementException {
+    	if (i < 0 || i >= TDItems.length) throw new NoSuchElementException("Invalid index");
+        return this.TDItems[i].dictionary;
+    }
+
     /**
      * Find the index of the field with a given name.
      * 
@@ -182,11 +236,30 @@ public class TupleDesc implements Serializable {
         // some code goes here
     	int size = 0;
     	for (int i = 0; i < TDItems.length; i ++) {
-    		size += TDItems[i].fieldType.getLen();
+    		size += TDItems[i].getLen();
     	}
         return size;
     }
 
+    /**
+     * @return The offset (in bytes) of the ith field from the start of a
+     *         tuple of this TupleDesc as stored on a page.
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i < 0 || i >= TDItems.length) throw new NoSuchElementException("Invalid index");
+        int[] offsets = fieldOffsets;
+        if (offsets == null) {
+            offsets = new int[TDItems.length];
+            for (int j = 1; j < TDItems.length; j++) {
+                offsets[j] = offsets[j-1] + TDItems[j-1].getLen();
+            }
+            fieldOffsets = offsets;
+        }
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.io.IOException;
+
+/**
+ * Vacuum gives the space of deleted tuples in a {@link HeapFile} back to the
+ * file system while the table stays in use. It works in short transactions,
+ * each emptying a few pages at the end of the file with
+ * {@link HeapFile#compact} and then cutting the empty pages off with
+ * {@link HeapFile#truncate}, so other transactions wait at most for one step.
+ * A step aborted by a deadlock is retried.
+ * <p>
+ * Moved tuples get new RecordIds. Nothing in the database keeps the RecordIds
+ * of heap tuples across transactions, so there is nothing else to update.
+ */
+public class Vacuum implements Runnable {
+
+	/** The number of pages a step empties by default. */
+	public static final int DEFAULT_PAGES_PER_STEP = 8;
+	/** The number of aborts in a row after which {@link #run} gives up. */
+	public static final int MAX_ABORTS = 10;
+
+	private final HeapFile file;
+	private final int pagesPerStep;
+	private long tuplesMoved;
+	private long pagesRemoved;
+	private int aborts;
+
+	public Vacuum(HeapFile file) {
+		this(file, DEFAULT_PAGES_PER_STEP);
+	}
+
+	/**
+	 * @param pagesPerStep the most pages a step empties
+	 */
+	public Vacuum(HeapFile file, int pagesPerStep) {
+		this.file = file;
+		this.pagesPerStep = pagesPerStep;
+	}
+
+	/**
+	 * Run one step: move the tuples of up to pagesPerStep pages at the end of
+	 * the file into holes, commit, then cut the empty pages off the file.
+	 *
+	 * @return false once there is nothing left to do
+	 */
+	public boolean step() throws DbException, IOException {
+		BufferPool pool = Database.getBufferPool();
+		TransactionId tid = new TransactionId();
+		try {
+			int moved = file.compact(tid, pagesPerStep);
+			pool.transactionComplete(tid, true);
+			tid = new TransactionId();
+			int removed = file.truncate(tid);
+			pool.transactionComplete(tid, true);
+			tuplesMoved += moved;
+			pagesRemoved += removed;
+			aborts = 0;
+			return moved > 0 || removed > 0;
+		} catch (TransactionAbortedException e) {
+			pool.transactionComplete(tid, false);
+			aborts++;
+			return true;
+		}
+	}
+
+	/**
+	 * Run steps until the file cannot shrink further, or too many steps in a
+	 * row were aborted.
+	 */
+	public void run() {
+		try {
+			while (step() && aborts < MAX_ABORTS)
+				;
+		} catch (DbException | IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the number of tuples moved so far
+	 */
+	public long getTuplesMoved() {
+		return tuplesMoved;
+	}
+
+	/**
+	 * @return the number of pages cut off the file so far
+	 */
+	public long getPagesRemoved() {
+		return pagesRemoved;
+	}
+}
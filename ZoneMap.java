@@ -0,0 +1,326 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * ZoneMap keeps a summary of every page of a {@link HeapFile}: the smallest and
+ * largest value of each int column on the page, and a bloom filter of the
+ * values of each string column. A scan with a predicate skips the pages whose
+ * summary shows that no tuple on them can pass, see
+ * {@link HeapFile#iterator(TransactionId, Predicate)}.
+ * <p>
+ * A summary must cover the tuples on its page but may be wider. An insert
+ * widens the summary of its page at once, so that the inserting transaction
+ * finds the tuple in its own scans; deletes and aborted inserts leave the
+ * summary wider than needed until the page is written next, when it is
+ * recomputed from the page. The map is stored in a sidecar file next to the
+ * table (a 4-byte count of the pages it covers, the 4-byte size of a summary,
+ * then the summaries) and written whenever the table writes a page, in an
+ * order that keeps the summary on disk covering the page on disk:
+ * <ul>
+ * <li>before a page is written, its summary is widened to cover the old and
+ * the new page;
+ * <li>after the page is on disk, the summary is narrowed to the new page.
+ * </ul>
+ * A missing or unreadable sidecar, or one covering more pages than the table
+ * has, is rebuilt by scanning the table. Pages past the end of the sidecar
+ * may hold anything.
+ */
+public class ZoneMap {
+
+	private static final int HEADER_SIZE = 8;
+	/** The number of bits of the bloom filter of a string column on a page. */
+	public static final int BLOOM_BITS = 256;
+	private static final int BLOOM_WORDS = BLOOM_BITS / 64;
+
+	private final File file;
+	private final TupleDesc td;
+	// where the summary of each column starts in that of a page, in longs; an
+	// int column takes one long, its min in the high half and max in the low
+	private final int[] columnOffsets;
+	private final int entryLongs;
+	// whether each long of a summary is part of a bloom filter
+	private final boolean[] bloomWord;
+	// summaries by page, including inserts not written yet
+	private long[] zones;
+	// the summaries as they are in the sidecar file
+	private long[] persisted;
+	// number of pages the sidecar covers
+	private int covered;
+
+	private ZoneMap(File file, TupleDesc td) {
+		this.file = file;
+		this.td = td;
+		this.columnOffsets = new int[td.numFields()];
+		int n = 0;
+		for (int i = 0; i < columnOffsets.length; i++) {
+			columnOffsets[i] = n;
+			n += td.getFieldType(i) == Type.INT_TYPE ? 1 : BLOOM_WORDS;
+		}
+		this.entryLongs = n;
+		this.bloomWord = new boolean[n];
+		for (int i = 0; i < columnOffsets.length; i++) {
+			if (td.getFieldType(i) != Type.INT_TYPE)
+				Arrays.fill(bloomWord, columnOffsets[i], columnOffsets[i] + BLOOM_WORDS, true);
+		}
+		this.zones = new long[0];
+		this.persisted = new long[0];
+	}
+
+	/**
+	 * Load the zone map of a heap file from its sidecar, or rebuild it from the
+	 * pages on disk if the sidecar is missing or does not match.
+	 *
+	 * @param sidecar the file the map is kept in
+	 * @param hf      the heap file the map describes
+	 */
+	static ZoneMap open(File sidecar, HeapFile hf) throws IOException {
+		ZoneMap m = new ZoneMap(sidecar, hf.getTupleDesc());
+		if (!m.load(hf.numPages()))
+			m.rebuild(hf);
+		return m;
+	}
+
+	private boolean load(int numPages) {
+		if (!file.exists())
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			int pages = in.readInt();
+			if (pages < 0 || pages > numPages || in.readInt() != entryLongs * 8)
+				return false;
+			long[] z = new long[pages * entryLongs];
+			for (int i = 0; i < z.length; i++)
+				z[i] = in.readLong();
+			zones = z;
+			persisted = z.clone();
+			covered = pages;
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Recompute the map from the pages of hf on disk and rewrite the sidecar.
+	 */
+	synchronized void rebuild(HeapFile hf) throws IOException {
+		covered = hf.numPages();
+		zones = new long[covered * entryLongs];
+		for (int i = 0; i < covered; i++) {
+			HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+			System.arraycopy(summarize(p), 0, zones, i * entryLongs, entryLongs);
+		}
+		persisted = zones.clone();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeInt(covered);
+			out.writeInt(entryLongs * 8);
+			for (long w : persisted)
+				out.writeLong(w);
+		}
+		Database.getFileHandles().close(file);
+	}
+
+	/**
+	 * @return the summary of the tuples on page
+	 */
+	long[] summarize(HeapPage page) {
+		long[] e = new long[entryLongs];
+		clear(e, 0);
+		for (int slot = SlotBitmap.nextSet(page.used, 0); slot >= 0; slot = SlotBitmap.nextSet(page.used, slot + 1)) {
+			for (int j = 0; j < columnOffsets.length; j++)
+				add(e, 0, j, page.getField(slot, j));
+		}
+		return e;
+	}
+
+	// the summary of no tuples at base
+	private void clear(long[] e, int base) {
+		for (int j = 0; j < columnOffsets.length; j++) {
+			int at = base + columnOffsets[j];
+			if (td.getFieldType(j) == Type.INT_TYPE)
+				e[at] = pack(Integer.MAX_VALUE, Integer.MIN_VALUE);
+			else
+				Arrays.fill(e, at, at + BLOOM_WORDS, 0L);
+		}
+	}
+
+	// the summary at base, widened by value f of column j
+	private void add(long[] e, int base, int j, Field f) {
+		int at = base + columnOffsets[j];
+		if (td.getFieldType(j) == Type.INT_TYPE) {
+			int v = ((IntField) f).getValue();
+			e[at] = pack(Math.min(min(e[at]), v), Math.max(max(e[at]), v));
+		} else {
+			int h = bloomHash(((StringField) f).getValue());
+			e[at + ((h >>> 6) & (BLOOM_WORDS - 1))] |= 1L << h;
+			h >>>= 16;
+			e[at + ((h >>> 6) & (BLOOM_WORDS - 1))] |= 1L << h;
+		}
+	}
+
+	// two bloom bit numbers, in the low and high 16 bits
+	private static int bloomHash(String s) {
+		return s.hashCode() * 0x9e3779b9;
+	}
+
+	private static long pack(int min, int max) {
+		return ((long) min << 32) | (max & 0xffffffffL);
+	}
+
+	private static int min(long w) {
+		return (int) (w >> 32);
+	}
+
+	private static int max(long w) {
+		return (int) w;
+	}
+
+	/**
+	 * @return false only if no tuple on page pgNo can pass p, or the page is
+	 *         empty, e.g. one the table grew by and has not used yet; p may be
+	 *         null
+	 */
+	public synchronized boolean mayMatch(int pgNo, Predicate p) {
+		if (pgNo >= covered)
+			return true;
+		int base = pgNo * entryLongs;
+		// every tuple has a value in column 0, so its summary tells if the page
+		// is empty
+		if (td.getFieldType(0) == Type.INT_TYPE) {
+			if (min(zones[base]) > max(zones[base]))
+				return false;
+		} else {
+			boolean empty = true;
+			for (int k = 0; k < BLOOM_WORDS; k++)
+				empty &= zones[base + k] == 0;
+			if (empty)
+				return false;
+		}
+		if (p == null)
+			return true;
+		int at = base + columnOffsets[p.getField()];
+		if (td.getFieldType(p.getField()) == Type.INT_TYPE)
+			return p.mayMatch(min(zones[at]), max(zones[at]));
+		if (p.getOp() != Predicate.Op.EQUALS || !(p.getOperand() instanceof StringField))
+			return true;
+		int h = bloomHash(((StringField) p.getOperand()).getValue());
+		if ((zones[at + ((h >>> 6) & (BLOOM_WORDS - 1))] & (1L << h)) == 0)
+			return false;
+		h >>>= 16;
+		return (zones[at + ((h >>> 6) & (BLOOM_WORDS - 1))] & (1L << h)) != 0;
+	}
+
+	/**
+	 * Widen the summary of page pgNo by a tuple inserted into it.
+	 */
+	public synchronized void widen(int pgNo, Tuple t) {
+		if (pgNo >= covered)
+			return;
+		for (int j = 0; j < columnOffsets.length; j++)
+			add(zones, pgNo * entryLongs, j, t.getField(j));
+	}
+
+	/**
+	 * Called right before page pgNo is written to the table.
+	 *
+	 * @param summary the summary of the page being written
+	 */
+	synchronized void beforeWrite(int pgNo, long[] summary) throws IOException {
+		extend(pgNo + 1);
+		int base = pgNo * entryLongs;
+		boolean changed = false;
+		for (int k = 0; k < entryLongs; k++) {
+			long u = union(k, persisted[base + k], summary[k]);
+			changed |= u != persisted[base + k];
+			persisted[base + k] = u;
+			zones[base + k] = union(k, zones[base + k], summary[k]);
+		}
+		if (changed)
+			write(pgNo, pgNo + 1);
+	}
+
+	/**
+	 * Called right after page pgNo was written to the table.
+	 *
+	 * @param summary the summary of the page written
+	 */
+	synchronized void afterWrite(int pgNo, long[] summary) throws IOException {
+		int base = pgNo * entryLongs;
+		System.arraycopy(summary, 0, zones, base, entryLongs);
+		if (!Arrays.equals(persisted, base, base + entryLongs, summary, 0, entryLongs)) {
+			System.arraycopy(summary, 0, persisted, base, entryLongs);
+			write(pgNo, pgNo + 1);
+		}
+	}
+
+	/**
+	 * Note that the n pages from page first on were added to the table empty,
+	 * past the pages the map covered.
+	 */
+	synchronized void allocated(int first, int n) throws IOException {
+		extend(first + n);
+		for (int i = first; i < first + n; i++) {
+			clear(zones, i * entryLongs);
+			clear(persisted, i * entryLongs);
+		}
+		write(first, first + n);
+	}
+
+	/**
+	 * Note that the table is being cut down to its first n pages. Called before
+	 * the table is truncated, so that the sidecar never covers pages the table
+	 * does not have.
+	 */
+	synchronized void truncate(int n) throws IOException {
+		if (n >= covered)
+			return;
+		covered = n;
+		Database.getFileHandles().write(file,
+				ByteBuffer.allocate(HEADER_SIZE).putInt(covered).putInt(entryLongs * 8).flip(), 0);
+	}
+
+	// the union of two longs at position k of summaries
+	private long union(int k, long a, long b) {
+		if (bloomWord[k])
+			return a | b;
+		return pack(Math.min(min(a), min(b)), Math.max(max(a), max(b)));
+	}
+
+	// cover pages up to n, the new ones with summaries that match anything
+	private void extend(int n) throws IOException {
+		if (n <= covered)
+			return;
+		if (n * entryLongs > zones.length) {
+			int len = Math.max(n, covered * 2) * entryLongs;
+			zones = Arrays.copyOf(zones, len);
+			persisted = Arrays.copyOf(persisted, len);
+		}
+		for (int i = covered; i < n; i++) {
+			for (int j = 0; j < columnOffsets.length; j++) {
+				int at = i * entryLongs + columnOffsets[j];
+				if (td.getFieldType(j) == Type.INT_TYPE)
+					zones[at] = pack(Integer.MIN_VALUE, Integer.MAX_VALUE);
+				else
+					Arrays.fill(zones, at, at + BLOOM_WORDS, -1L);
+			}
+			System.arraycopy(zones, i * entryLongs, persisted, i * entryLongs, entryLongs);
+		}
+		int old = covered;
+		covered = n;
+		// the summaries go to disk before the count that covers them
+		write(old, n);
+		Database.getFileHandles().write(file,
+				ByteBuffer.allocate(HEADER_SIZE).putInt(covered).putInt(entryLongs * 8).flip(), 0);
+	}
+
+	// write the persisted summaries of pages from..to to the sidecar
+	private void write(int from, int to) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate((to - from) * entryLongs * 8);
+		for (int k = from * entryLongs; k < to * entryLongs; k++)
+			buf.putLong(persisted[k]);
+		buf.flip();
+		Database.getFileHandles().write(file, buf, HEADER_SIZE + (long) from * entryLongs * 8);
+	}
+}